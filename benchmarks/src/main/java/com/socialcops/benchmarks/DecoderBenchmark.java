@@ -0,0 +1,50 @@
+package com.socialcops.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.socialcops.enums.DataIdentifier;
+
+/**
+ * @author PratickChokhani Decoding of the data identifier of each received
+ *         frame
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+
+	/**
+	 * Identifiers from the start and the end of the list, the most frequent
+	 * one and an invalid one
+	 */
+	@Param({ "RTC", "FIR", "CHG", "INVALID" })
+	private String identifier;
+
+	private byte opcode;
+
+	@Setup
+	public void setup() {
+		// Opcode of INVALID is never sent, so it stands for an unknown one
+		opcode = identifier.equals("INVALID") ? (byte) 0xFF : DataIdentifier.valueOf(identifier).getOpcode();
+	}
+
+	@Benchmark
+	public DataIdentifier decoder() {
+		return DataIdentifier.fromOpcode(opcode);
+	}
+}
@@ -0,0 +1,84 @@
+package com.socialcops.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.socialcops.directory.DirectoryUtils;
+import com.socialcops.models.FileDifference;
+import com.socialcops.models.FileTree;
+
+/**
+ * @author PratickChokhani Difference between the file tree and an older copy
+ *         of it in which every tenth file is older and every twentieth file is
+ *         missing
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DifferenceBenchmark {
+
+	@Param({ "WIDE", "DEEP", "MANY_SMALL", "FEW_HUGE" })
+	private TreeShape shape;
+
+	private Path root;
+	private FileTree fileTree;
+	private FileTree oldFileTree;
+	private final DateTime startTime = new DateTime(0L);
+
+	@Setup
+	public void setup() throws IOException {
+		root = Fixtures.createTree(shape);
+		fileTree = Fixtures.scan(root);
+		oldFileTree = new FileTree(fileTree);
+		age(oldFileTree, new int[1]);
+	}
+
+	/**
+	 * Makes every tenth file older and removes every twentieth file
+	 */
+	private static void age(FileTree directory, int[] counter) {
+		List<FileTree> childs = directory.getChilds();
+		for (int i = childs.size() - 1; i >= 0; i--) {
+			FileTree child = childs.get(i);
+			if (child.isDirectory()) {
+				age(child, counter);
+				continue;
+			}
+			int count = counter[0]++;
+			if (count % 20 == 0) {
+				childs.remove(i);
+			} else if (count % 10 == 0) {
+				child.setLastModified(child.getLastModified().minusHours(1));
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		Fixtures.delete(root);
+	}
+
+	@Benchmark
+	public List<FileDifference> calculateDifference() {
+		return DirectoryUtils.calculateDifference(fileTree, oldFileTree, startTime);
+	}
+}
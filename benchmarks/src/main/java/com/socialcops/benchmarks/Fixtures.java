@@ -0,0 +1,103 @@
+package com.socialcops.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.joda.JodaModule;
+import com.socialcops.directory.DirectoryUtils;
+import com.socialcops.models.FileTree;
+import com.socialcops.properties.SyncProperty;
+
+/**
+ * @author PratickChokhani Generates the data the benchmarks are run against
+ *         into temporary directories
+ */
+final class Fixtures {
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Generates the tree into a new temporary directory and makes it the sync
+	 * folder
+	 * 
+	 * @param shape
+	 * @return root of the tree
+	 * @throws IOException
+	 */
+	static Path createTree(TreeShape shape) throws IOException {
+		Path root = Files.createTempDirectory("sync-bench-" + shape.name().toLowerCase());
+		shape.create(root);
+		DirectoryUtils.setSyncFolder(root.toString());
+		return root;
+	}
+
+	/**
+	 * @param root
+	 * @return file tree of the directory
+	 */
+	static FileTree scan(Path root) {
+		return DirectoryUtils.createFileTree(root.toFile());
+	}
+
+	/**
+	 * Generates a file of random content into a temporary directory
+	 * 
+	 * @param size
+	 * @return the file
+	 * @throws IOException
+	 */
+	static Path createFile(long size) throws IOException {
+		Path directory = Files.createTempDirectory("sync-bench-file");
+		Path path = directory.resolve("data");
+		byte[] block = new byte[1 << 20];
+		new Random(size).nextBytes(block);
+		try (OutputStream out = Files.newOutputStream(path)) {
+			for (long written = 0; written < size; written += block.length) {
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		}
+		return path;
+	}
+
+	/**
+	 * @return object mapper configured as the synchronizer's
+	 */
+	static ObjectMapper objectMapper() {
+		ObjectMapper objectMapper = new ObjectMapper();
+		objectMapper.registerModule(new JodaModule());
+		return objectMapper;
+	}
+
+	/**
+	 * @param binaryPayload
+	 * @return configuration with the required properties set
+	 */
+	static SyncProperty syncProperty(boolean binaryPayload) {
+		Properties properties = new Properties();
+		properties.setProperty("master", "master");
+		properties.setProperty("server.ip", "127.0.0.1");
+		properties.setProperty("server.port", "0");
+		properties.setProperty("sync.folder", System.getProperty("java.io.tmpdir"));
+		properties.setProperty("schedule.delay.in.millis", "2000");
+		properties.setProperty("data.delivery.delay", "120000");
+		properties.setProperty("payload.format", binaryPayload ? "binary" : "json");
+		return new SyncProperty(properties);
+	}
+
+	/**
+	 * Deletes the directory along with its content
+	 * 
+	 * @param directory
+	 */
+	static void delete(Path directory) {
+		FileUtils.deleteQuietly(directory.toFile());
+	}
+}
@@ -0,0 +1,96 @@
+package com.socialcops.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.socialcops.codec.PayloadCodec;
+import com.socialcops.directory.DirectoryUtils;
+import com.socialcops.models.FileDifferenceData;
+import com.socialcops.models.FileTree;
+import com.socialcops.models.FileTreeWrapper;
+
+/**
+ * @author PratickChokhani Encoding and decoding of the file tree and file
+ *         differences sent to the remote system, in both payload formats
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadBenchmark {
+
+	@Param({ "WIDE", "DEEP", "MANY_SMALL", "FEW_HUGE" })
+	private TreeShape shape;
+
+	@Param({ "json", "binary" })
+	private String format;
+
+	private Path root;
+	private PayloadCodec payloadCodec;
+	private FileTreeWrapper fileTreeWrapper;
+	private FileDifferenceData fileDifferenceData;
+	private byte[] encodedFileTree;
+	private byte[] encodedFileDifference;
+
+	@Setup
+	public void setup() throws IOException {
+		root = Fixtures.createTree(shape);
+		payloadCodec = new PayloadCodec(Fixtures.objectMapper(), "binary".equals(format));
+		FileTree fileTree = Fixtures.scan(root);
+		fileTreeWrapper = new FileTreeWrapper(fileTree, DateTime.now());
+		// Every file is a difference against an empty folder
+		fileDifferenceData = new FileDifferenceData(
+				DirectoryUtils.calculateDifference(fileTree, null, new DateTime(0L)), new DateTime(0L),
+				DateTime.now());
+		encodedFileTree = encodeFileTree().toByteArray();
+		encodedFileDifference = encodeFileDifference().toByteArray();
+	}
+
+	@TearDown
+	public void tearDown() {
+		Fixtures.delete(root);
+	}
+
+	@Benchmark
+	public ByteArrayOutputStream encodeFileTree() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		payloadCodec.encode(fileTreeWrapper, out);
+		return out;
+	}
+
+	@Benchmark
+	public FileTreeWrapper decodeFileTree() throws IOException {
+		return payloadCodec.decodeFileTreeWrapper(new ByteArrayInputStream(encodedFileTree));
+	}
+
+	@Benchmark
+	public ByteArrayOutputStream encodeFileDifference() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		payloadCodec.encode(fileDifferenceData, out);
+		return out;
+	}
+
+	@Benchmark
+	public FileDifferenceData decodeFileDifference() throws IOException {
+		return payloadCodec.decodeFileDifferenceData(new ByteArrayInputStream(encodedFileDifference));
+	}
+}
@@ -0,0 +1,53 @@
+package com.socialcops.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.socialcops.directory.DirectoryUtils;
+import com.socialcops.models.FileTree;
+
+/**
+ * @author PratickChokhani Scan of the sync folder into a file tree
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+
+	@Param({ "WIDE", "DEEP", "MANY_SMALL", "FEW_HUGE" })
+	private TreeShape shape;
+
+	private Path root;
+
+	@Setup
+	public void setup() throws IOException {
+		root = Fixtures.createTree(shape);
+	}
+
+	@TearDown
+	public void tearDown() {
+		Fixtures.delete(root);
+	}
+
+	@Benchmark
+	public FileTree createFileTree() {
+		return DirectoryUtils.createFileTree(root.toFile());
+	}
+}
@@ -0,0 +1,111 @@
+package com.socialcops.benchmarks;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.primitives.Longs;
+import com.socialcops.models.SocketStreamData;
+import com.socialcops.shaping.RateSchedule;
+import com.socialcops.shaping.TrafficShaper;
+import com.socialcops.sockets.SocketManager;
+
+/**
+ * @author PratickChokhani File sent with {@link SocketManager#sendFile} and
+ *         received with {@link SocketManager#readToFile} over loopback.
+ *         Received data is written to a file so that both ends of a transfer
+ *         are measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+	@Param({ "65536", "67108864" })
+	private long size;
+
+	@Param({ "true", "false" })
+	private boolean zeroCopy;
+
+	@Param({ "false", "true" })
+	private boolean compression;
+
+	private Path source;
+	private Path target;
+	private SocketManager sender;
+	private SocketManager receiver;
+
+	@Setup
+	public void setup() throws Exception {
+		source = Fixtures.createFile(size);
+		target = Files.createTempFile("sync-bench", ".received");
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		TrafficShaper trafficShaper = new TrafficShaper(new RateSchedule(0L, ""), new RateSchedule(0L, ""));
+		sender = new SocketManager(port, "127.0.0.1", true, zeroCopy, compression, 1 << 20, 0, true, 8,
+				trafficShaper);
+		receiver = new SocketManager(port, "127.0.0.1", false, zeroCopy, compression, 1 << 20, 0, true, 8,
+				trafficShaper);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> master = executor.submit(sender::initiateMaster);
+			while (!receiver.initiateClient()) {
+				Thread.sleep(10L);
+			}
+			if (!master.get()) {
+				throw new IOException("Cannot connect over loopback.");
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		sender.close();
+		receiver.close();
+		Fixtures.delete(source.getParent());
+		Files.deleteIfExists(target);
+	}
+
+	@Benchmark
+	public long transfer() throws IOException {
+		sender.sendFile(Longs.toByteArray(1L), size, FileChannel.open(source, StandardOpenOption.READ));
+		long received = 0L;
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			SocketStreamData socketStreamData;
+			do {
+				socketStreamData = receiver.getDataIdentifier();
+				receiver.readToFile(channel, socketStreamData.getDataSize());
+				received += socketStreamData.getDataSize();
+			} while (!socketStreamData.isLast());
+		}
+		return received;
+	}
+}
@@ -0,0 +1,80 @@
+package com.socialcops.benchmarks;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * @author PratickChokhani Shapes of the sync folder the benchmarks are run
+ *         against. Each shape is generated into a directory with files of
+ *         random content
+ */
+public enum TreeShape {
+	/**
+	 * Single directory with many files
+	 */
+	WIDE {
+		@Override
+		void create(Path root) throws IOException {
+			createFiles(root, 10000, 1024);
+		}
+	},
+	/**
+	 * Long chain of nested directories with a few files at each level
+	 */
+	DEEP {
+		@Override
+		void create(Path root) throws IOException {
+			Path directory = root;
+			for (int level = 0; level < 100; level++) {
+				directory = Files.createDirectory(directory.resolve("level" + level));
+				createFiles(directory, 20, 1024);
+			}
+		}
+	},
+	/**
+	 * Many directories full of tiny files
+	 */
+	MANY_SMALL {
+		@Override
+		void create(Path root) throws IOException {
+			for (int i = 0; i < 50; i++) {
+				createFiles(Files.createDirectory(root.resolve("dir" + i)), 400, 100);
+			}
+		}
+	},
+	/**
+	 * Few large files. Files are sparse so that generating them is quick
+	 */
+	FEW_HUGE {
+		@Override
+		void create(Path root) throws IOException {
+			for (int i = 0; i < 4; i++) {
+				try (RandomAccessFile file = new RandomAccessFile(root.resolve("huge" + i).toFile(), "rw")) {
+					file.setLength(256L * 1024 * 1024);
+				}
+			}
+		}
+	};
+
+	private static final long SEED = 42L;
+
+	/**
+	 * Generates the tree in the empty directory
+	 * 
+	 * @param root
+	 * @throws IOException
+	 */
+	abstract void create(Path root) throws IOException;
+
+	private static void createFiles(Path directory, int count, int size) throws IOException {
+		Random random = new Random(SEED);
+		byte[] content = new byte[size];
+		for (int i = 0; i < count; i++) {
+			random.nextBytes(content);
+			Files.write(directory.resolve("file" + i), content);
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package com.socialcops.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+
+import com.google.common.hash.HashCode;
+import com.socialcops.enums.FileOperation;
+import com.socialcops.models.DirectoryDigest;
+import com.socialcops.models.DirectoryListing;
+import com.socialcops.models.FileDifference;
+import com.socialcops.models.FileDifferenceData;
+import com.socialcops.models.FileTree;
+import com.socialcops.models.FileTreeWrapper;
+
+/**
+ * @author PratickChokhani Compact binary form of the file tree and file
+ *         differences sent to remote system.
+ *
+ *         Payload starts with FORMAT (never the first byte of JSON) and
+ *         VERSION. Numbers are written as varints and times as epoch millis.
+ *
+ *         File tree is written in pre-order. Each node has flags (directory,
+ *         hash present), name, last modified time, size, hash as bytes and
+ *         for directories the number of childs. Paths are rebuilt from the
+ *         names while reading, absolute path is not sent.
+ *
+ *         File differences are written with their paths front coded, i.e.
+ *         only the length of the prefix shared with the previous path and the
+ *         rest of the path. Moves are followed by their source path.
+ *
+ *         Directory digests are the path and the digest if present. Directory
+ *         listings are the path, status (listed, same or missing) and for
+ *         listed directories their childs written as tree nodes without
+ *         their own childs, with the digest of sub directories.
+ */
+public class BinaryCodec {
+
+	/**
+	 * First byte of the binary payload
+	 */
+	public static final byte FORMAT = 0;
+	private static final byte VERSION = 1;
+	private static final int DIRECTORY = 1;
+	private static final int HASH = 2;
+	private static final int DIGEST = 4;
+	private static final int LISTED = 0;
+	private static final int SAME = 1;
+	private static final int MISSING = 2;
+
+	/**
+	 * @param fileTreeWrapper
+	 * @param data
+	 *            where file tree wrapper is written. It is not closed
+	 * @throws IOException
+	 */
+	public void encode(FileTreeWrapper fileTreeWrapper, OutputStream data) throws IOException {
+		DataOutputStream out = new DataOutputStream(data);
+		out.writeByte(FORMAT);
+		out.writeByte(VERSION);
+		writeTime(out, fileTreeWrapper.getCurDataTime());
+		writeNode(out, fileTreeWrapper.getFileTree());
+		out.flush();
+	}
+
+	/**
+	 * @param data
+	 *            file tree wrapper in bytes
+	 * @return file tree wrapper
+	 * @throws IOException
+	 */
+	public FileTreeWrapper decodeFileTreeWrapper(InputStream data) throws IOException {
+		DataInputStream in = new DataInputStream(data);
+		readHeader(in);
+		DateTime curDataTime = readTime(in);
+		return new FileTreeWrapper(readNode(in, null), curDataTime);
+	}
+
+	/**
+	 * @param fileDifferenceData
+	 * @param data
+	 *            where file difference data is written. It is not closed
+	 * @throws IOException
+	 */
+	public void encode(FileDifferenceData fileDifferenceData, OutputStream data) throws IOException {
+		DataOutputStream out = new DataOutputStream(data);
+		out.writeByte(FORMAT);
+		out.writeByte(VERSION);
+		writeTime(out, fileDifferenceData.getLastUpdate());
+		writeTime(out, fileDifferenceData.getCurrentDataTime());
+		List<FileDifference> fileDifferences = fileDifferenceData.getFileDifferences();
+		writeVarLong(out, fileDifferences.size());
+		byte[] previousPath = new byte[0];
+		for (FileDifference fileDifference : fileDifferences) {
+			byte[] path = fileDifference.getPath().getBytes(StandardCharsets.UTF_8);
+			int prefix = 0;
+			int maxPrefix = Math.min(path.length, previousPath.length);
+			while (prefix < maxPrefix && path[prefix] == previousPath[prefix]) {
+				prefix++;
+			}
+			out.writeByte(fileDifference.getFileOperation().ordinal() << 1
+					| (fileDifference.getHash() != null ? 1 : 0));
+			writeVarLong(out, prefix);
+			writeVarLong(out, path.length - prefix);
+			out.write(path, prefix, path.length - prefix);
+			writeTime(out, fileDifference.getLastModified());
+			writeVarLong(out, fileDifference.getSize());
+			if (fileDifference.getHash() != null) {
+				writeHash(out, fileDifference.getHash());
+			}
+			if (fileDifference.getFileOperation() == FileOperation.MOVE) {
+				writeString(out, fileDifference.getSourcePath());
+			}
+			previousPath = path;
+		}
+		out.flush();
+	}
+
+	/**
+	 * @param data
+	 *            file difference data in bytes
+	 * @return file difference data
+	 * @throws IOException
+	 */
+	public FileDifferenceData decodeFileDifferenceData(InputStream data) throws IOException {
+		DataInputStream in = new DataInputStream(data);
+		readHeader(in);
+		DateTime lastUpdate = readTime(in);
+		DateTime currentDataTime = readTime(in);
+		int count = (int) readVarLong(in);
+		FileOperation[] fileOperations = FileOperation.values();
+		List<FileDifference> fileDifferences = new ArrayList<>(count);
+		byte[] previousPath = new byte[0];
+		for (int i = 0; i < count; i++) {
+			int flags = in.readUnsignedByte();
+			int prefix = (int) readVarLong(in);
+			int suffix = (int) readVarLong(in);
+			byte[] path = new byte[prefix + suffix];
+			System.arraycopy(previousPath, 0, path, 0, prefix);
+			in.readFully(path, prefix, suffix);
+			DateTime lastModified = readTime(in);
+			long size = readVarLong(in);
+			String hash = (flags & 1) != 0 ? readHash(in) : null;
+			FileDifference fileDifference = new FileDifference(fileOperations[flags >> 1],
+					new String(path, StandardCharsets.UTF_8), lastModified, size, hash);
+			if (fileDifference.getFileOperation() == FileOperation.MOVE) {
+				fileDifference.setSourcePath(readString(in));
+			}
+			fileDifferences.add(fileDifference);
+			previousPath = path;
+		}
+		return new FileDifferenceData(fileDifferences, lastUpdate, currentDataTime);
+	}
+
+	/**
+	 * @param directoryDigests
+	 * @param data
+	 *            where directory digests are written. It is not closed
+	 * @throws IOException
+	 */
+	public void encodeDirectoryDigests(List<DirectoryDigest> directoryDigests, OutputStream data) throws IOException {
+		DataOutputStream out = new DataOutputStream(data);
+		out.writeByte(FORMAT);
+		out.writeByte(VERSION);
+		writeVarLong(out, directoryDigests.size());
+		for (DirectoryDigest directoryDigest : directoryDigests) {
+			writeString(out, directoryDigest.getPath());
+			out.writeByte(directoryDigest.getDigest() != null ? DIGEST : 0);
+			if (directoryDigest.getDigest() != null) {
+				writeHash(out, directoryDigest.getDigest());
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * @param data
+	 *            directory digests in bytes
+	 * @return directory digests
+	 * @throws IOException
+	 */
+	public List<DirectoryDigest> decodeDirectoryDigests(InputStream data) throws IOException {
+		DataInputStream in = new DataInputStream(data);
+		readHeader(in);
+		int count = (int) readVarLong(in);
+		List<DirectoryDigest> directoryDigests = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String path = readString(in);
+			String digest = (in.readUnsignedByte() & DIGEST) != 0 ? readHash(in) : null;
+			directoryDigests.add(new DirectoryDigest(path, digest));
+		}
+		return directoryDigests;
+	}
+
+	/**
+	 * @param directoryListings
+	 * @param data
+	 *            where directory listings are written. It is not closed
+	 * @throws IOException
+	 */
+	public void encodeDirectoryListings(List<DirectoryListing> directoryListings, OutputStream data)
+			throws IOException {
+		DataOutputStream out = new DataOutputStream(data);
+		out.writeByte(FORMAT);
+		out.writeByte(VERSION);
+		writeVarLong(out, directoryListings.size());
+		for (DirectoryListing directoryListing : directoryListings) {
+			writeString(out, directoryListing.getPath());
+			if (directoryListing.isSame()) {
+				out.writeByte(SAME);
+			} else if (directoryListing.getChilds() == null) {
+				out.writeByte(MISSING);
+			} else {
+				out.writeByte(LISTED);
+				writeVarLong(out, directoryListing.getChilds().size());
+				for (FileTree child : directoryListing.getChilds()) {
+					writeEntry(out, child);
+				}
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * @param data
+	 *            directory listings in bytes
+	 * @return directory listings
+	 * @throws IOException
+	 */
+	public List<DirectoryListing> decodeDirectoryListings(InputStream data) throws IOException {
+		DataInputStream in = new DataInputStream(data);
+		readHeader(in);
+		int count = (int) readVarLong(in);
+		List<DirectoryListing> directoryListings = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String path = readString(in);
+			int status = in.readUnsignedByte();
+			List<FileTree> childs = null;
+			if (status == LISTED) {
+				int childCount = (int) readVarLong(in);
+				childs = new ArrayList<>(childCount);
+				for (int j = 0; j < childCount; j++) {
+					childs.add(readEntry(in, path));
+				}
+			}
+			directoryListings.add(new DirectoryListing(path, status == SAME, childs));
+		}
+		return directoryListings;
+	}
+
+	/**
+	 * Writes the node without its childs along with the digest if it is a
+	 * directory
+	 */
+	private static void writeEntry(DataOutputStream out, FileTree fileTree) throws IOException {
+		boolean digest = fileTree.isDirectory() && fileTree.getDigest() != null;
+		out.writeByte((fileTree.isDirectory() ? DIRECTORY : 0) | (fileTree.getHash() != null ? HASH : 0)
+				| (digest ? DIGEST : 0));
+		writeString(out, fileTree.getName());
+		writeTime(out, fileTree.getLastModified());
+		writeVarLong(out, fileTree.getSize());
+		if (fileTree.getHash() != null) {
+			writeHash(out, fileTree.getHash());
+		}
+		if (digest) {
+			writeHash(out, fileTree.getDigest());
+		}
+	}
+
+	private static FileTree readEntry(DataInputStream in, String parentPath) throws IOException {
+		int flags = in.readUnsignedByte();
+		String name = readString(in);
+		DateTime lastModified = readTime(in);
+		String relativePath = parentPath.isEmpty() ? name : parentPath + File.separator + name;
+		FileTree fileTree = new FileTree((flags & DIRECTORY) != 0, name, null, relativePath, lastModified);
+		fileTree.setSize(readVarLong(in));
+		if ((flags & HASH) != 0) {
+			fileTree.setHash(readHash(in));
+		}
+		if ((flags & DIGEST) != 0) {
+			fileTree.setDigest(readHash(in));
+		}
+		return fileTree;
+	}
+
+	private static void writeNode(DataOutputStream out, FileTree fileTree) throws IOException {
+		out.writeByte((fileTree.isDirectory() ? DIRECTORY : 0) | (fileTree.getHash() != null ? HASH : 0));
+		writeString(out, fileTree.getName());
+		writeTime(out, fileTree.getLastModified());
+		writeVarLong(out, fileTree.getSize());
+		if (fileTree.getHash() != null) {
+			writeHash(out, fileTree.getHash());
+		}
+		if (fileTree.isDirectory()) {
+			writeVarLong(out, fileTree.getChilds().size());
+			for (FileTree child : fileTree.getChilds()) {
+				writeNode(out, child);
+			}
+		}
+	}
+
+	/**
+	 * Reads node and its childs
+	 *
+	 * @param in
+	 * @param parent
+	 *            parent node or null if root node is being read
+	 * @return node
+	 * @throws IOException
+	 */
+	private static FileTree readNode(DataInputStream in, FileTree parent) throws IOException {
+		int flags = in.readUnsignedByte();
+		boolean directory = (flags & DIRECTORY) != 0;
+		String name = readString(in);
+		DateTime lastModified = readTime(in);
+		String relativePath = "";
+		if (parent != null) {
+			relativePath = parent.getRelativePath().isEmpty() ? name
+					: parent.getRelativePath() + File.separator + name;
+		}
+		FileTree fileTree = new FileTree(directory, name, null, relativePath, lastModified);
+		fileTree.setSize(readVarLong(in));
+		if ((flags & HASH) != 0) {
+			fileTree.setHash(readHash(in));
+		}
+		if (directory) {
+			int childCount = (int) readVarLong(in);
+			List<FileTree> childs = fileTree.getChilds();
+			for (int i = 0; i < childCount; i++) {
+				childs.add(readNode(in, fileTree));
+			}
+		}
+		return fileTree;
+	}
+
+	private static void readHeader(DataInputStream in) throws IOException {
+		if (in.readByte() != FORMAT) {
+			throw new IOException("Not a binary payload.");
+		}
+		byte version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported binary payload version: " + version);
+		}
+	}
+
+	/**
+	 * Time is written as epoch millis plus one so that null is 0
+	 */
+	private static void writeTime(OutputStream out, DateTime time) throws IOException {
+		writeVarLong(out, time == null ? 0L : time.getMillis() + 1);
+	}
+
+	private static DateTime readTime(InputStream in) throws IOException {
+		long millis = readVarLong(in);
+		return millis == 0L ? null : new DateTime(millis - 1);
+	}
+
+	/**
+	 * Hash and digest are hex strings, so they are written as bytes
+	 */
+	private static void writeHash(OutputStream out, String hash) throws IOException {
+		byte[] bytes = HashCode.fromString(hash).asBytes();
+		writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readHash(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[(int) readVarLong(in)];
+		in.readFully(bytes);
+		return HashCode.fromBytes(bytes).toString();
+	}
+
+	private static void writeString(OutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[(int) readVarLong(in)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes non negative number 7 bits at a time, lowest bits first
+	 */
+	private static void writeVarLong(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarLong(InputStream in) throws IOException {
+		long value = 0L;
+		for (int shift = 0; shift < Long.SIZE; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Invalid varint.");
+	}
+}
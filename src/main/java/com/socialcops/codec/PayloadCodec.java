@@ -0,0 +1,126 @@
+package com.socialcops.codec;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.socialcops.models.DirectoryDigest;
+import com.socialcops.models.DirectoryListing;
+import com.socialcops.models.FileDifferenceData;
+import com.socialcops.models.FileTreeWrapper;
+
+/**
+ * @author PratickChokhani Encodes file tree and file differences in binary or
+ *         JSON. JSON is meant for debugging. Received payload is decoded
+ *         according to its first byte, so both sides need not use the same
+ *         format.
+ *
+ *         Payload is written to and read from streams, so that it is never
+ *         held in memory as a whole.
+ *
+ *         Directory digests and listings are always binary.
+ */
+public class PayloadCodec {
+
+	private final ObjectMapper objectMapper;
+	private final BinaryCodec binaryCodec = new BinaryCodec();
+	private final boolean binary;
+
+	/**
+	 * @param objectMapper
+	 *            used for JSON payload
+	 * @param binary
+	 *            true if payload is to be encoded in binary, false for JSON
+	 */
+	public PayloadCodec(ObjectMapper objectMapper, boolean binary) {
+		this.objectMapper = objectMapper;
+		this.binary = binary;
+	}
+
+	/**
+	 * @param fileTreeWrapper
+	 * @param out
+	 *            where payload is written. It is not closed
+	 * @throws IOException
+	 */
+	public void encode(FileTreeWrapper fileTreeWrapper, OutputStream out) throws IOException {
+		if (binary) {
+			binaryCodec.encode(fileTreeWrapper, out);
+		} else {
+			writeJson(fileTreeWrapper, out);
+		}
+	}
+
+	/**
+	 * @param in
+	 *            payload, read until the end of the file tree
+	 * @return file tree wrapper
+	 * @throws IOException
+	 */
+	public FileTreeWrapper decodeFileTreeWrapper(InputStream in) throws IOException {
+		BufferedInputStream data = new BufferedInputStream(in);
+		return isBinary(data) ? binaryCodec.decodeFileTreeWrapper(data)
+				: objectMapper.readValue(data, FileTreeWrapper.class);
+	}
+
+	/**
+	 * @param fileDifferenceData
+	 * @param out
+	 *            where payload is written. It is not closed
+	 * @throws IOException
+	 */
+	public void encode(FileDifferenceData fileDifferenceData, OutputStream out) throws IOException {
+		if (binary) {
+			binaryCodec.encode(fileDifferenceData, out);
+		} else {
+			writeJson(fileDifferenceData, out);
+		}
+	}
+
+	/**
+	 * @param in
+	 *            payload, read until the end of the file difference data
+	 * @return file difference data
+	 * @throws IOException
+	 */
+	public FileDifferenceData decodeFileDifferenceData(InputStream in) throws IOException {
+		BufferedInputStream data = new BufferedInputStream(in);
+		return isBinary(data) ? binaryCodec.decodeFileDifferenceData(data)
+				: objectMapper.readValue(data, FileDifferenceData.class);
+	}
+
+	public void encodeDirectoryDigests(List<DirectoryDigest> directoryDigests, OutputStream out) throws IOException {
+		binaryCodec.encodeDirectoryDigests(directoryDigests, out);
+	}
+
+	public List<DirectoryDigest> decodeDirectoryDigests(InputStream in) throws IOException {
+		return binaryCodec.decodeDirectoryDigests(new BufferedInputStream(in));
+	}
+
+	public void encodeDirectoryListings(List<DirectoryListing> directoryListings, OutputStream out)
+			throws IOException {
+		binaryCodec.encodeDirectoryListings(directoryListings, out);
+	}
+
+	public List<DirectoryListing> decodeDirectoryListings(InputStream in) throws IOException {
+		return binaryCodec.decodeDirectoryListings(new BufferedInputStream(in));
+	}
+
+	private void writeJson(Object value, OutputStream out) throws IOException {
+		JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		objectMapper.writeValue(generator, value);
+		generator.close();
+	}
+
+	private static boolean isBinary(BufferedInputStream data) throws IOException {
+		data.mark(1);
+		int first = data.read();
+		data.reset();
+		return first == BinaryCodec.FORMAT;
+	}
+}
@@ -0,0 +1,79 @@
+package com.socialcops.delta;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+
+/**
+ * @author PratickChokhani Rebuilds a file from the receiver's copy and the
+ *         delta sent by {@link DeltaGenerator}
+ */
+public class DeltaApplier {
+	private static final Logger logger = LoggerFactory.getLogger(DeltaApplier.class);
+
+	/**
+	 * Reads the delta and writes the rebuilt file. Rebuilt file is verified
+	 * against the content hash sent with the delta.
+	 * 
+	 * @param in
+	 *            delta
+	 * @param basis
+	 *            receiver's copy of the file
+	 * @param target
+	 *            file where the rebuilt file is written
+	 * @return true if rebuilt file has the same content as sender's copy
+	 * @throws IOException
+	 */
+	public static boolean apply(DataInputStream in, Path basis, Path target) throws IOException {
+		long size = in.readLong();
+		int blockSize = in.readInt();
+		String hash = in.readUTF();
+
+		long copied = 0;
+		long literal = 0;
+		byte[] buffer = new byte[Math.max(blockSize, 1 << 16)];
+		HashingOutputStream hashingOut;
+		try (RandomAccessFile basisFile = new RandomAccessFile(basis.toFile(), "r");
+				OutputStream out = new BufferedOutputStream(Files.newOutputStream(target), 1 << 16)) {
+			hashingOut = new HashingOutputStream(Hashing.sha256(), out);
+			byte instruction;
+			while ((instruction = in.readByte()) != DeltaGenerator.END) {
+				if (instruction == DeltaGenerator.COPY) {
+					long start = (long) in.readInt() * blockSize;
+					long length = (long) in.readInt() * blockSize;
+					basisFile.seek(start);
+					for (long remaining = length; remaining > 0;) {
+						int read = (int) Math.min(buffer.length, remaining);
+						basisFile.readFully(buffer, 0, read);
+						hashingOut.write(buffer, 0, read);
+						remaining -= read;
+					}
+					copied += length;
+				} else if (instruction == DeltaGenerator.LITERAL) {
+					int length = in.readInt();
+					for (int remaining = length; remaining > 0;) {
+						int read = Math.min(buffer.length, remaining);
+						in.readFully(buffer, 0, read);
+						hashingOut.write(buffer, 0, read);
+						remaining -= read;
+					}
+					literal += length;
+				} else {
+					throw new IOException("Invalid delta instruction: " + instruction);
+				}
+			}
+		}
+		logger.info("Delta applied. Size: {}, copied: {}, literal: {}", size, copied, literal);
+		return copied + literal == size && hashingOut.hash().toString().equals(hash);
+	}
+}
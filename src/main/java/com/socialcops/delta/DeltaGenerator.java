@@ -0,0 +1,189 @@
+package com.socialcops.delta;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author PratickChokhani Creates delta of a file against the signature of the
+ *         receiver's copy. Delta is a list of instructions to either copy
+ *         blocks from the receiver's copy or to write the literal data.
+ * 
+ *         Format: file size, block size, content hash followed by the
+ *         instructions. {@link #COPY} is followed by the first block index
+ *         and number of consecutive blocks, {@link #LITERAL} by the length and
+ *         the data. {@link #END} marks the end of delta.
+ */
+public class DeltaGenerator {
+	static final byte COPY = 0;
+	static final byte LITERAL = 1;
+	static final byte END = 2;
+
+	/**
+	 * Literal data is flushed once it grows to this size
+	 */
+	private static final int MAX_LITERAL = 1 << 16;
+
+	private final FileSignature signature;
+	private final int blockSize;
+	/**
+	 * Block indexes by weak checksum
+	 */
+	private final Map<Integer, int[]> blocks = new HashMap<>();
+
+	private DataOutputStream out;
+	private int copyStart = -1;
+	private int copyCount = 0;
+
+	public DeltaGenerator(FileSignature signature) {
+		this.signature = signature;
+		this.blockSize = signature.getBlockSize();
+		for (int i = 0; i < signature.getBlockCount(); i++) {
+			int[] indexes = blocks.get(signature.getWeakChecksum(i));
+			if (indexes == null) {
+				indexes = new int[] { i };
+			} else {
+				indexes = Arrays.copyOf(indexes, indexes.length + 1);
+				indexes[indexes.length - 1] = i;
+			}
+			blocks.put(signature.getWeakChecksum(i), indexes);
+		}
+	}
+
+	/**
+	 * Writes delta of the file
+	 * 
+	 * @param file
+	 *            sender's copy of the file
+	 * @param hash
+	 *            content hash of the sender's copy
+	 * @param out
+	 * @throws IOException
+	 */
+	public void generate(Path file, String hash, DataOutputStream out) throws IOException {
+		this.out = out;
+		out.writeLong(Files.size(file));
+		out.writeInt(blockSize);
+		out.writeUTF(hash);
+
+		byte[] buffer = new byte[Math.max(blockSize * 4, 1 << 20)];
+		int length = 0;
+		int position = 0;
+		int literalStart = 0;
+		boolean endOfFile = false;
+		boolean checksumValid = false;
+		RollingChecksum rollingChecksum = new RollingChecksum(blockSize);
+
+		try (InputStream in = Files.newInputStream(file)) {
+			while (true) {
+				// Window and the next byte must be in buffer to roll
+				if (!endOfFile && position + blockSize >= length) {
+					int shift = Math.min(literalStart, position);
+					System.arraycopy(buffer, shift, buffer, 0, length - shift);
+					length -= shift;
+					position -= shift;
+					literalStart -= shift;
+					int read;
+					while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) >= 0) {
+						length += read;
+					}
+					endOfFile = length < buffer.length;
+				}
+				if (length - position < blockSize) {
+					break;
+				}
+
+				if (!checksumValid) {
+					rollingChecksum.reset(buffer, position);
+					checksumValid = true;
+				}
+				int index = findBlock(rollingChecksum.getValue(), buffer, position);
+				if (index >= 0) {
+					writeLiteral(buffer, literalStart, position - literalStart);
+					writeCopy(index);
+					position += blockSize;
+					literalStart = position;
+					checksumValid = false;
+					continue;
+				}
+
+				if (position - literalStart >= MAX_LITERAL) {
+					writeLiteral(buffer, literalStart, position - literalStart);
+					literalStart = position;
+				}
+				if (position + blockSize >= length) {
+					// End of file, rest is literal
+					break;
+				}
+				rollingChecksum.roll(buffer[position], buffer[position + blockSize]);
+				position++;
+			}
+		}
+		writeLiteral(buffer, literalStart, length - literalStart);
+		flushCopy();
+		out.writeByte(END);
+	}
+
+	/**
+	 * @param weakChecksum
+	 * @param buffer
+	 * @param position
+	 * @return index of the receiver's block with same content or -1
+	 */
+	private int findBlock(int weakChecksum, byte[] buffer, int position) {
+		int[] indexes = blocks.get(weakChecksum);
+		if (indexes == null) {
+			return -1;
+		}
+		byte[] strongHash = FileSignature.STRONG_HASH.hashBytes(buffer, position, blockSize).asBytes();
+		// Prefer the block following the previous copy to extend it
+		int next = copyStart + copyCount;
+		int found = -1;
+		for (int index : indexes) {
+			if (Arrays.equals(strongHash, signature.getStrongHash(index))) {
+				if (index == next) {
+					return index;
+				}
+				if (found < 0) {
+					found = index;
+				}
+			}
+		}
+		return found;
+	}
+
+	private void writeCopy(int index) throws IOException {
+		if (copyStart >= 0 && copyStart + copyCount == index) {
+			copyCount++;
+			return;
+		}
+		flushCopy();
+		copyStart = index;
+		copyCount = 1;
+	}
+
+	private void flushCopy() throws IOException {
+		if (copyStart >= 0) {
+			out.writeByte(COPY);
+			out.writeInt(copyStart);
+			out.writeInt(copyCount);
+			copyStart = -1;
+			copyCount = 0;
+		}
+	}
+
+	private void writeLiteral(byte[] buffer, int offset, int length) throws IOException {
+		if (length <= 0) {
+			return;
+		}
+		flushCopy();
+		out.writeByte(LITERAL);
+		out.writeInt(length);
+		out.write(buffer, offset, length);
+	}
+}
@@ -0,0 +1,144 @@
+package com.socialcops.delta;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * @author PratickChokhani Signature of the receiver's copy of a file. Contains
+ *         weak rolling checksum and strong hash of every complete block. Sender
+ *         uses it to find the blocks the receiver already has.
+ */
+public class FileSignature {
+	static final HashFunction STRONG_HASH = Hashing.murmur3_128();
+	static final int STRONG_HASH_BYTES = STRONG_HASH.bits() / Byte.SIZE;
+
+	private static final int MIN_BLOCK_SIZE = 2048;
+	private static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+	private String path;
+	private String hash;
+	private int blockSize;
+	private int[] weakChecksums;
+	private byte[][] strongHashes;
+
+	/**
+	 * Creates signature of a local file
+	 * 
+	 * @param relativePath
+	 *            path of the file relative to sync folder
+	 * @param file
+	 *            local copy of the file
+	 * @param hash
+	 *            content hash of the local copy
+	 * @param blockSize
+	 *            block size, or 0 to derive it from file size
+	 * @return signature
+	 * @throws IOException
+	 */
+	public static FileSignature create(String relativePath, Path file, String hash, int blockSize)
+			throws IOException {
+		long size = Files.size(file);
+		if (blockSize <= 0) {
+			blockSize = blockSize(size);
+		}
+		int blockCount = (int) (size / blockSize);
+		FileSignature signature = new FileSignature();
+		signature.path = relativePath;
+		signature.hash = hash;
+		signature.blockSize = blockSize;
+		signature.weakChecksums = new int[blockCount];
+		signature.strongHashes = new byte[blockCount][];
+
+		byte[] block = new byte[blockSize];
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+			for (int i = 0; i < blockCount; i++) {
+				ByteStreams.readFully(in, block);
+				signature.weakChecksums[i] = RollingChecksum.checksum(block, 0, blockSize);
+				signature.strongHashes[i] = STRONG_HASH.hashBytes(block).asBytes();
+			}
+		}
+		return signature;
+	}
+
+	/**
+	 * Block size close to square root of the file size, so that signature and
+	 * matched data are balanced
+	 * 
+	 * @param size
+	 *            file size
+	 * @return block size
+	 */
+	static int blockSize(long size) {
+		int blockSize = (int) Math.sqrt(size) & ~1023;
+		return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		out.writeUTF(path);
+		out.writeUTF(hash == null ? "" : hash);
+		out.writeInt(blockSize);
+		out.writeInt(weakChecksums.length);
+		for (int i = 0; i < weakChecksums.length; i++) {
+			out.writeInt(weakChecksums[i]);
+			out.write(strongHashes[i]);
+		}
+	}
+
+	public static FileSignature read(DataInputStream in) throws IOException {
+		FileSignature signature = new FileSignature();
+		signature.path = in.readUTF();
+		signature.hash = in.readUTF();
+		if (signature.hash.isEmpty()) {
+			signature.hash = null;
+		}
+		signature.blockSize = in.readInt();
+		int blockCount = in.readInt();
+		signature.weakChecksums = new int[blockCount];
+		signature.strongHashes = new byte[blockCount][];
+		for (int i = 0; i < blockCount; i++) {
+			signature.weakChecksums[i] = in.readInt();
+			signature.strongHashes[i] = new byte[STRONG_HASH_BYTES];
+			in.readFully(signature.strongHashes[i]);
+		}
+		return signature;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public int getBlockCount() {
+		return weakChecksums.length;
+	}
+
+	int getWeakChecksum(int index) {
+		return weakChecksums[index];
+	}
+
+	byte[] getStrongHash(int index) {
+		return strongHashes[index];
+	}
+
+	@Override
+	public String toString() {
+		return "FileSignature [path=" + path + ", hash=" + hash + ", blockSize=" + blockSize + ", blockCount="
+				+ weakChecksums.length + "]";
+	}
+}
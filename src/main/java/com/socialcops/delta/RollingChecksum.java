@@ -0,0 +1,68 @@
+package com.socialcops.delta;
+
+/**
+ * @author PratickChokhani Weak checksum of a block which can be rolled by one
+ *         byte in constant time. Same as the one used by rsync.
+ */
+public class RollingChecksum {
+
+	private final int blockSize;
+	private int a;
+	private int b;
+
+	/**
+	 * @param blockSize
+	 *            size of the window being checksummed
+	 */
+	public RollingChecksum(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Computes checksum of the window from scratch
+	 * 
+	 * @param data
+	 * @param offset
+	 *            start of the window
+	 */
+	public void reset(byte[] data, int offset) {
+		a = 0;
+		b = 0;
+		for (int i = 0; i < blockSize; i++) {
+			int value = data[offset + i] & 0xff;
+			a += value;
+			b += (blockSize - i) * value;
+		}
+		a &= 0xffff;
+		b &= 0xffff;
+	}
+
+	/**
+	 * Moves the window by one byte
+	 * 
+	 * @param out
+	 *            byte leaving the window
+	 * @param in
+	 *            byte entering the window
+	 */
+	public void roll(byte out, byte in) {
+		a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+		b = (b - blockSize * (out & 0xff) + a) & 0xffff;
+	}
+
+	public int getValue() {
+		return (b << 16) | a;
+	}
+
+	/**
+	 * @param data
+	 * @param offset
+	 * @param blockSize
+	 * @return checksum of the block
+	 */
+	public static int checksum(byte[] data, int offset, int blockSize) {
+		RollingChecksum rollingChecksum = new RollingChecksum(blockSize);
+		rollingChecksum.reset(data, offset);
+		return rollingChecksum.getValue();
+	}
+}
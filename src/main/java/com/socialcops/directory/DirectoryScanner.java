@@ -0,0 +1,120 @@
+package com.socialcops.directory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.socialcops.models.FileTree;
+
+/**
+ * @author PratickChokhani Fork join task that fills the childs of a directory
+ *         node. Attributes of every entry are read with a single call and sub
+ *         directories are scanned in parallel by separate tasks.
+ */
+class DirectoryScanner extends RecursiveAction {
+	private static final Logger logger = LoggerFactory.getLogger(DirectoryScanner.class);
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 2847211329658407093L;
+	private final FileTree directory;
+	private final Path path;
+
+	/**
+	 * @param directory
+	 *            node whose childs are to be scanned
+	 * @param path
+	 *            path of the directory
+	 */
+	DirectoryScanner(FileTree directory, Path path) {
+		this.directory = directory;
+		this.path = path;
+	}
+
+	@Override
+	protected void compute() {
+		List<FileTree> childs = directory.getChilds();
+		List<DirectoryScanner> subDirectoryScanners = new ArrayList<>();
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(path)) {
+			for (Path childPath : directoryStream) {
+				if (DirectoryUtils.isTemporaryFile(childPath)) {
+					continue;
+				}
+				FileTree child = createNode(childPath, directory);
+				childs.add(child);
+				if (child.isDirectory()) {
+					subDirectoryScanners.add(new DirectoryScanner(child, childPath));
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Cannot list directory: {}", path, e);
+		}
+		Collections.sort(childs, FileTree.NAME_COMPARATOR);
+		invokeAll(subDirectoryScanners);
+	}
+
+	/**
+	 * Creates node for the path without its childs
+	 *
+	 * @param path
+	 * @param parent
+	 *            parent node or null if path is the root of the file tree
+	 * @return node
+	 */
+	static FileTree createNode(Path path, FileTree parent) {
+		BasicFileAttributes attributes = readAttributes(path);
+		String name = path.getFileName() == null ? path.toString() : path.getFileName().toString();
+		String absolutePath;
+		String relativePath;
+		if (parent != null) {
+			absolutePath = parent.getAbsolutePath() + File.separator + name;
+			relativePath = parent.getRelativePath().isEmpty() ? name : parent.getRelativePath() + File.separator + name;
+		} else {
+			absolutePath = path.toAbsolutePath().toString();
+			relativePath = DirectoryUtils.getRelativePath(path);
+		}
+
+		if (attributes == null) {
+			// Same as java.io.File for a broken entry
+			return new FileTree(false, name, absolutePath, relativePath, new DateTime(0L));
+		}
+		FileTree fileTree = new FileTree(attributes.isDirectory(), name, absolutePath, relativePath,
+				new DateTime(attributes.lastModifiedTime().toMillis()));
+		if (!attributes.isDirectory()) {
+			fileTree.setSize(attributes.size());
+		}
+		return fileTree;
+	}
+
+	/**
+	 * Reads attributes following the links. Attributes of the link itself are
+	 * returned for a broken link.
+	 *
+	 * @param path
+	 * @return attributes or null if they cannot be read
+	 */
+	private static BasicFileAttributes readAttributes(Path path) {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException e) {
+			try {
+				return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (IOException e1) {
+				return null;
+			}
+		}
+	}
+}
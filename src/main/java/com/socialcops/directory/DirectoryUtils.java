@@ -2,16 +2,29 @@ package com.socialcops.directory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.joda.time.DateTime;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.socialcops.enums.FileOperation;
+import com.socialcops.metrics.Counter;
+import com.socialcops.metrics.Histogram;
+import com.socialcops.metrics.Metrics;
 import com.socialcops.models.FileDifference;
 import com.socialcops.models.FileTree;
 
@@ -26,6 +39,25 @@ public class DirectoryUtils {
 	 */
 	private static Path syncFolderPath = null;
 
+	/**
+	 * Suffix of the files being received. Such files are not synced
+	 */
+	public static final String TEMPORARY_FILE_SUFFIX = ".synctmp";
+
+	/**
+	 * Pool in which directories are scanned
+	 */
+	private static ForkJoinPool scanPool = ForkJoinPool.commonPool();
+
+	private static final Histogram scanDuration = Metrics.latency("sync_scan_duration_seconds",
+			"Time taken to scan a directory into a file tree");
+	private static final Histogram differenceDuration = Metrics.latency("sync_difference_duration_seconds",
+			"Time taken to calculate difference between file trees");
+	private static final Counter differences = Metrics.counter("sync_differences_total",
+			"File differences calculated between file trees");
+	private static final Counter moves = Metrics.counter("sync_moves_detected_total",
+			"Updated files found to be moved from deleted files");
+
 	/**
 	 * Calculate difference between source file tree and old file tree to figure
 	 * out what need to be updated. Any file whose modified data is greater in
@@ -42,6 +74,18 @@ public class DirectoryUtils {
 	 */
 	public static List<FileDifference> calculateDifference(FileTree sourceFileTree, FileTree oldFileTree,
 			DateTime startTime) {
+		long start = System.nanoTime();
+		List<FileDifference> fileDifferences = difference(sourceFileTree, oldFileTree, startTime);
+		differenceDuration.recordSince(start);
+		differences.add(fileDifferences.size());
+		return fileDifferences;
+	}
+
+	/**
+	 * @see #calculateDifference(FileTree, FileTree, DateTime)
+	 */
+	private static List<FileDifference> difference(FileTree sourceFileTree, FileTree oldFileTree,
+			DateTime startTime) {
 
 		List<FileDifference> fileDifferences = new ArrayList<>();
 		List<FileTree> sourceChilds = sourceFileTree.getChilds();
@@ -59,7 +103,7 @@ public class DirectoryUtils {
 			compare = sourceFileTree.getName().compareTo(oldFileTree.getName());
 			if (compare < 0) {
 				createFileDifference(FileOperation.UPDATE, sourceFileTree, fileDifferences);
-				calculateDifference(sourceFileTree, null, startTime);
+				fileDifferences.addAll(difference(sourceFileTree, null, startTime));
 				indexSource++;
 			} else if (compare > 0) {
 				createFileDifference(FileOperation.DELETE, oldFileTree, fileDifferences);
@@ -73,7 +117,7 @@ public class DirectoryUtils {
 						|| startTime.isBefore(sourceFileTree.getLastModified())) {
 					createFileDifference(FileOperation.UPDATE, sourceFileTree, fileDifferences);
 				}
-				fileDifferences.addAll(calculateDifference(sourceFileTree, oldFileTree, startTime));
+				fileDifferences.addAll(difference(sourceFileTree, oldFileTree, startTime));
 				indexOld++;
 				indexSource++;
 			}
@@ -87,13 +131,162 @@ public class DirectoryUtils {
 		while (indexSource < sourceChilds.size()) {
 			sourceFileTree = sourceChilds.get(indexSource);
 			createFileDifference(FileOperation.UPDATE, sourceFileTree, fileDifferences);
-			fileDifferences.addAll(calculateDifference(sourceFileTree, null, startTime));
+			fileDifferences.addAll(difference(sourceFileTree, null, startTime));
 			indexSource++;
 		}
 
 		return fileDifferences;
 	}
 
+	/**
+	 * Replaces the updates of the files moved from deleted paths with moves,
+	 * so that remote system renames its own copy in place of receiving the
+	 * file again. Updated file is taken as moved from a deleted file, or a
+	 * file under a deleted directory, of the same size and content hash. Hash
+	 * of the updated file is found in the hash cache by its file key, which a
+	 * rename keeps. Deleted file whose hash is not cached is taken if the
+	 * last modified time is the same, remote system comparing the hash with
+	 * its copy before renaming it. Moves come first so that they are applied
+	 * before their source directories are deleted.
+	 *
+	 * @param fileDifferences
+	 *            file differences of the source file tree
+	 * @param oldFileTree
+	 *            file tree the differences are calculated against
+	 * @param hashCache
+	 *            hash cache of the sync folder
+	 * @return file differences with the moves
+	 */
+	public static List<FileDifference> detectMoves(List<FileDifference> fileDifferences, FileTree oldFileTree,
+			HashCache hashCache) {
+		Map<Long, List<FileTree>> deletedFiles = new HashMap<>();
+		for (FileDifference fileDifference : fileDifferences) {
+			if (fileDifference.getFileOperation() == FileOperation.DELETE) {
+				addFiles(find(oldFileTree, fileDifference.getPath()), deletedFiles);
+			}
+		}
+		if (deletedFiles.isEmpty()) {
+			return fileDifferences;
+		}
+
+		List<FileDifference> movedFileDifferences = new ArrayList<>(fileDifferences.size());
+		List<FileDifference> otherFileDifferences = new ArrayList<>(fileDifferences.size());
+		for (FileDifference fileDifference : fileDifferences) {
+			List<FileTree> candidates = fileDifference.getFileOperation() == FileOperation.UPDATE
+					? deletedFiles.get(fileDifference.getSize())
+					: null;
+			FileTree source = candidates == null ? null : findSource(fileDifference, candidates, hashCache);
+			if (source == null) {
+				otherFileDifferences.add(fileDifference);
+				continue;
+			}
+			candidates.remove(source);
+			FileDifference move = new FileDifference(FileOperation.MOVE, fileDifference.getPath(),
+					fileDifference.getLastModified(), fileDifference.getSize(), fileDifference.getHash());
+			move.setSourcePath(source.getRelativePath());
+			movedFileDifferences.add(move);
+		}
+		moves.add(movedFileDifferences.size());
+		movedFileDifferences.addAll(otherFileDifferences);
+		return movedFileDifferences;
+	}
+
+	/**
+	 * Finds the deleted file the updated file is moved from and sets the hash
+	 * of the updated file if it is found
+	 *
+	 * @param fileDifference
+	 *            update of the file
+	 * @param candidates
+	 *            deleted files of the same size
+	 * @param hashCache
+	 * @return deleted file or null if the file is not moved
+	 */
+	private static FileTree findSource(FileDifference fileDifference, List<FileTree> candidates,
+			HashCache hashCache) {
+		Path path = syncFolderPath.resolve(fileDifference.getPath());
+		try {
+			String hash = hashCache.getCachedHash(path);
+			FileTree renamed = null;
+			for (FileTree candidate : candidates) {
+				String candidateHash = candidate.getHash() != null ? candidate.getHash()
+						: hashCache.getCachedHash(candidate.getRelativePath(), candidate.getSize(),
+								candidate.getLastModified().getMillis());
+				if (candidateHash != null) {
+					if (candidateHash.equals(hash)) {
+						fileDifference.setHash(hash);
+						return candidate;
+					}
+				} else if (renamed == null
+						&& candidate.getLastModified().getMillis() == fileDifference.getLastModified().getMillis()) {
+					renamed = candidate;
+				}
+			}
+			if (renamed == null) {
+				return null;
+			}
+			hash = hashCache.getHash(path);
+			if (hash == null) {
+				return null;
+			}
+			fileDifference.setHash(hash);
+			return renamed;
+		} catch (IOException e) {
+			// File changed meanwhile, so it is sent as it is
+			return null;
+		}
+	}
+
+	/**
+	 * Adds the non empty files of the file tree by their size
+	 *
+	 * @param fileTree
+	 *            file or directory, null if there is none
+	 * @param files
+	 *            files by size
+	 */
+	private static void addFiles(FileTree fileTree, Map<Long, List<FileTree>> files) {
+		if (fileTree == null) {
+			return;
+		}
+		if (fileTree.isDirectory()) {
+			for (FileTree child : fileTree.getChilds()) {
+				addFiles(child, files);
+			}
+		} else if (fileTree.getSize() > 0) {
+			files.computeIfAbsent(fileTree.getSize(), size -> new ArrayList<>()).add(fileTree);
+		}
+	}
+
+	/**
+	 * Finds node of the path in the file tree
+	 *
+	 * @param fileTree
+	 *            root of the file tree
+	 * @param relativePath
+	 *            path relative to the sync folder
+	 * @return node or null if the path is not present in the file tree
+	 */
+	private static FileTree find(FileTree fileTree, String relativePath) {
+		FileTree node = fileTree;
+		for (Path name : Paths.get(relativePath)) {
+			if (name.toString().isEmpty()) {
+				continue;
+			}
+			if (!node.isDirectory()) {
+				return null;
+			}
+			FileTree key = new FileTree();
+			key.setName(name.toString());
+			int index = Collections.binarySearch(node.getChilds(), key, FileTree.NAME_COMPARATOR);
+			if (index < 0) {
+				return null;
+			}
+			node = node.getChilds().get(index);
+		}
+		return node;
+	}
+
 	/**
 	 * Creates file difference for specified operation and file. Does not create
 	 * if file operation is update and the file is a directory. The created file
@@ -107,33 +300,130 @@ public class DirectoryUtils {
 			List<FileDifference> fileDifferences) {
 		String path = fileTree.getRelativePath();
 		if (!(fileTree.isDirectory() && fileOperation == FileOperation.UPDATE)) {
-			fileDifferences.add(new FileDifference(fileOperation, path, fileTree.getLastModified()));
+			fileDifferences.add(new FileDifference(fileOperation, path, fileTree.getLastModified(), fileTree.getSize(),
+					fileTree.getHash()));
+		}
+	}
+
+	/**
+	 * Returns digest of the directory over name, type, last modified time and
+	 * size of its childs, and over the digest of sub directories. Last
+	 * modified time of directories is not taken into account, as it differs
+	 * between systems even when they are in sync. Digests already computed
+	 * are reused and new ones are set in the nodes
+	 * 
+	 * @param directory
+	 *            directory node
+	 * @return digest
+	 */
+	public static String digest(FileTree directory) {
+		if (directory.getDigest() != null) {
+			return directory.getDigest();
+		}
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		for (FileTree child : directory.getChilds()) {
+			hasher.putInt(child.getName().length()).putString(child.getName(), StandardCharsets.UTF_8);
+			if (child.isDirectory()) {
+				hasher.putByte((byte) 1).putString(digest(child), StandardCharsets.UTF_8);
+			} else {
+				hasher.putByte((byte) 0).putLong(child.getLastModified().getMillis()).putLong(child.getSize());
+			}
 		}
+		directory.setDigest(hasher.hash().toString());
+		return directory.getDigest();
 	}
 
 	/**
-	 * Creates file tree form source file and returns it
+	 * Creates file tree form source file and returns it. Sub directories are
+	 * scanned in parallel.
 	 * 
 	 * @param sourceFile
 	 * @return
 	 */
 	public static FileTree createFileTree(File sourceFile) {
-		FileTree fileTree = new FileTree(sourceFile.isDirectory(), sourceFile.getName(), sourceFile.getAbsolutePath(),
-				syncFolderPath.relativize(Paths.get(sourceFile.getAbsolutePath())).toString(),
-				new DateTime(sourceFile.lastModified()));
-
-		if (sourceFile.isDirectory()) {
-			File[] files = sourceFile.listFiles();
-			List<FileTree> fileTreeList = fileTree.getChilds();
-			for (File file : files) {
-				fileTreeList.add(createFileTree(file));
-			}
-			Collections.sort(fileTreeList, new FileTree.SortComparator());
+		long start = System.nanoTime();
+		Path path = sourceFile.toPath();
+		FileTree fileTree = DirectoryScanner.createNode(path, null);
+		if (fileTree.isDirectory()) {
+			scanPool.invoke(new DirectoryScanner(fileTree, path));
 		}
-
+		scanDuration.recordSince(start);
 		return fileTree;
 	}
 
+	/**
+	 * @param path
+	 * @return path relative to the sync folder
+	 */
+	public static String getRelativePath(Path path) {
+		return syncFolderPath.relativize(path.toAbsolutePath()).toString();
+	}
+
+	/**
+	 * @param path
+	 * @return true if the file is being received and is not to be synced
+	 */
+	public static boolean isTemporaryFile(Path path) {
+		Path fileName = path.getFileName();
+		return fileName != null && fileName.toString().endsWith(TEMPORARY_FILE_SUFFIX);
+	}
+
+	/**
+	 * @param path
+	 * @return temporary file in the same directory where the file is written
+	 *         before it is moved in place
+	 */
+	public static Path getTemporaryFile(Path path) {
+		return path.resolveSibling("." + path.getFileName() + TEMPORARY_FILE_SUFFIX);
+	}
+
+	/**
+	 * @param path
+	 * @return temporary file in the same directory where progress of the file
+	 *         being received is kept
+	 */
+	public static Path getPartialFile(Path path) {
+		return path.resolveSibling("." + path.getFileName() + ".partial" + TEMPORARY_FILE_SUFFIX);
+	}
+
+	/**
+	 * @param path
+	 * @return temporary file in the same directory where progress of the file
+	 *         being received in ranges is kept
+	 */
+	public static Path getPartialStripesFile(Path path) {
+		return path.resolveSibling("." + path.getFileName() + ".stripes" + TEMPORARY_FILE_SUFFIX);
+	}
+
+	/**
+	 * Deletes the file, or the directory if only directories are left under
+	 * it, as they are once its files are moved
+	 *
+	 * @param path
+	 * @throws DirectoryNotEmptyException
+	 *             if there are files under the directory
+	 * @throws IOException
+	 */
+	public static void delete(Path path) throws IOException {
+		if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+			Files.deleteIfExists(path);
+			return;
+		}
+		List<Path> directories;
+		try (Stream<Path> paths = Files.walk(path)) {
+			directories = paths.collect(Collectors.toList());
+		}
+		for (Path directory : directories) {
+			if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+				throw new DirectoryNotEmptyException(path.toString());
+			}
+		}
+		Collections.reverse(directories);
+		for (Path directory : directories) {
+			Files.deleteIfExists(directory);
+		}
+	}
+
 	public static long getLastModifiedTime(Path path) throws IOException {
 		if (Files.exists(path)) {
 			return Files.getLastModifiedTime(path).toMillis();
@@ -142,7 +432,15 @@ public class DirectoryUtils {
 	}
 
 	public static void setSyncFolder(String syncFolder) {
-		syncFolderPath = Paths.get(syncFolder);
+		syncFolderPath = Paths.get(syncFolder).toAbsolutePath();
+	}
+
+	/**
+	 * @param parallelism
+	 *            number of threads used to scan the sync folder
+	 */
+	public static void setScanParallelism(int parallelism) {
+		scanPool = new ForkJoinPool(parallelism);
 	}
 
 }
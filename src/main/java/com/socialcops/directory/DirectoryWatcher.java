@@ -0,0 +1,530 @@
+package com.socialcops.directory;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.socialcops.models.FileDifference;
+import com.socialcops.models.FileTree;
+
+/**
+ * @author PratickChokhani Keeps the file tree of the sync folder up to date
+ *         from file system events instead of rescanning the folder. Every
+ *         directory below the sync folder is registered with a WatchService
+ *         and each event patches the affected node of the tree in place. The
+ *         complete folder is rescanned only when the event queue overflows or
+ *         when the folder cannot be watched.
+ *
+ *         Snapshots of the tree share the sub trees that have not changed
+ *         since the previous snapshot, so that sessions holding snapshots
+ *         taken at different times do not each hold a copy of the whole tree.
+ */
+public class DirectoryWatcher implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+	private final File syncFolder;
+	private final Path syncFolderPath;
+	private final Map<WatchKey, Path> watchKeys = new HashMap<>();
+	private final FileTreeIndex fileTreeIndex;
+	private WatchService watchService;
+	private FileTree fileTree;
+	private volatile boolean watching = false;
+	/**
+	 * Incremented whenever file tree is changed
+	 */
+	private long modificationCount = 0L;
+	private long checkpointModificationCount = -1L;
+	/**
+	 * Last snapshot taken, null if there is none to share sub trees with
+	 */
+	private FileTree lastSnapshot = null;
+	private long snapshotModificationCount = -1L;
+	/**
+	 * Paths relative to the sync folder whose nodes have changed since the
+	 * last snapshot, along with their parents
+	 */
+	private final Set<String> changedPaths = new HashSet<>();
+	/**
+	 * Paths relative to the sync folder whose nodes have been replaced since
+	 * the last snapshot
+	 */
+	private final Set<String> replacedPaths = new HashSet<>();
+	/**
+	 * Called after events other than those of temporary files are applied,
+	 * or null
+	 */
+	private volatile Runnable changeListener = null;
+
+	/**
+	 * @param syncFolder
+	 *            folder to be watched
+	 * @param fileTreeIndex
+	 *            index from where the file tree is loaded on start and
+	 *            checkpointed
+	 */
+	public DirectoryWatcher(File syncFolder, FileTreeIndex fileTreeIndex) {
+		this.syncFolder = syncFolder;
+		this.syncFolderPath = Paths.get(syncFolder.getAbsolutePath());
+		this.fileTreeIndex = fileTreeIndex;
+	}
+
+	/**
+	 * Registers the sync folder recursively, loads the file tree and starts
+	 * processing the events. File tree is created from scratch only if the
+	 * index cannot be used. If the folder cannot be watched, file tree is
+	 * rescanned whenever it is requested.
+	 *
+	 * @return true if the folder is being watched
+	 */
+	public synchronized boolean start() {
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			registerAll(syncFolderPath);
+		} catch (IOException e) {
+			logger.error("Cannot watch sync folder. Falling back to full rescans.", e);
+			close();
+			return false;
+		}
+		// Loaded after registering so that no change is missed
+		fileTree = fileTreeIndex.load();
+		if (fileTree == null) {
+			fileTree = DirectoryUtils.createFileTree(syncFolder);
+		}
+		watching = true;
+
+		Thread thread = new Thread(this, "directory-watcher");
+		thread.setDaemon(true);
+		thread.start();
+		logger.info("Watching {} directories.", watchKeys.size());
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run() Waits for the file system events and
+	 * applies them to the file tree
+	 */
+	@Override
+	public void run() {
+		while (watching) {
+			WatchKey watchKey;
+			try {
+				watchKey = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				break;
+			}
+
+			boolean changed = false;
+			synchronized (this) {
+				Path directory = watchKeys.get(watchKey);
+				for (WatchEvent<?> event : watchKey.pollEvents()) {
+					try {
+						if (event.kind() == OVERFLOW || directory == null) {
+							rescan();
+							changed = true;
+						} else {
+							Path path = directory.resolve((Path) event.context());
+							if (DirectoryUtils.isTemporaryFile(path)) {
+								continue;
+							}
+							changed = true;
+							if (event.kind() == ENTRY_MODIFY) {
+								modify(path);
+							} else {
+								refresh(path);
+							}
+						}
+					} catch (Exception e) {
+						logger.error("Cannot apply event {} in {}. Rescanning.", event.kind(), directory, e);
+						rescan();
+					}
+				}
+				if (!watchKey.reset()) {
+					watchKeys.remove(watchKey);
+				}
+				if (directory != null) {
+					invalidateDigests(directory);
+				}
+				modificationCount++;
+			}
+			Runnable listener = changeListener;
+			if (changed && listener != null) {
+				listener.run();
+			}
+		}
+		logger.info("Directory watcher stopped.");
+	}
+
+	/**
+	 * Calculates difference between the current file tree and old file tree
+	 *
+	 * @param oldFileTree
+	 * @param startTime
+	 *            last update time
+	 * @return File differences
+	 * @see DirectoryUtils#calculateDifference(FileTree, FileTree, DateTime)
+	 */
+	public synchronized List<FileDifference> calculateDifference(FileTree oldFileTree, DateTime startTime) {
+		if (!watching) {
+			fileTree = DirectoryUtils.createFileTree(syncFolder);
+		}
+		return DirectoryUtils.calculateDifference(fileTree, oldFileTree, startTime);
+	}
+
+	/**
+	 * Returns copy of the current file tree which is not modified by the
+	 * watcher. Sub trees that have not changed since the last snapshot are
+	 * shared with it, so the snapshot is not to be modified. Directories
+	 * carry their digest
+	 *
+	 * @return snapshot of the file tree
+	 */
+	public synchronized FileTree snapshot() {
+		if (!watching) {
+			fileTree = DirectoryUtils.createFileTree(syncFolder);
+			DirectoryUtils.digest(fileTree);
+			return new FileTree(fileTree);
+		}
+		if (lastSnapshot != null && modificationCount == snapshotModificationCount) {
+			return lastSnapshot;
+		}
+		DirectoryUtils.digest(fileTree);
+		lastSnapshot = lastSnapshot == null ? new FileTree(fileTree) : share(fileTree, lastSnapshot);
+		snapshotModificationCount = modificationCount;
+		changedPaths.clear();
+		replacedPaths.clear();
+		return lastSnapshot;
+	}
+
+	/**
+	 * Returns copy of the directory with its digest and its childs, without
+	 * their own childs. Sub directories carry their digest
+	 *
+	 * @param relativePath
+	 *            path of the directory relative to the sync folder
+	 * @return directory or null if it is not present in the file tree
+	 */
+	public synchronized FileTree list(String relativePath) {
+		if (!watching) {
+			fileTree = DirectoryUtils.createFileTree(syncFolder);
+		}
+		FileTree node = find(syncFolderPath.resolve(relativePath));
+		if (node == null || !node.isDirectory()) {
+			return null;
+		}
+		FileTree directory = copyNode(node);
+		for (FileTree child : node.getChilds()) {
+			directory.getChilds().add(copyNode(child));
+		}
+		return directory;
+	}
+
+	/**
+	 * Sets the listener called once changes are applied to the file tree, so
+	 * that they are part of the file differences calculated afterwards
+	 *
+	 * @param changeListener
+	 */
+	public void setChangeListener(Runnable changeListener) {
+		this.changeListener = changeListener;
+	}
+
+	/**
+	 * Saves the file tree to the index if it has changed after the last
+	 * checkpoint
+	 */
+	public void checkpoint() {
+		FileTree checkpointFileTree;
+		long checkpointCount;
+		synchronized (this) {
+			if (!watching || modificationCount == checkpointModificationCount) {
+				return;
+			}
+			checkpointFileTree = new FileTree(fileTree);
+			checkpointCount = modificationCount;
+		}
+
+		try {
+			fileTreeIndex.save(checkpointFileTree);
+			checkpointModificationCount = checkpointCount;
+		} catch (Exception e) {
+			logger.error("Cannot checkpoint file tree.", e);
+		}
+	}
+
+	public boolean isWatching() {
+		return watching;
+	}
+
+	/**
+	 * Stops watching the sync folder
+	 */
+	public synchronized void close() {
+		watching = false;
+		watchKeys.clear();
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Registers directory and all its sub directories with the watch service
+	 *
+	 * @param start
+	 * @throws IOException
+	 */
+	private void registerAll(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				WatchKey watchKey = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				watchKeys.put(watchKey, dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				// Deleted before it could be registered. Its event is pending
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Registers the sync folder again and creates file tree from scratch
+	 */
+	private void rescan() {
+		logger.info("Rescanning sync folder.");
+		try {
+			registerAll(syncFolderPath);
+		} catch (IOException e) {
+			logger.error("Cannot register sync folder. Falling back to full rescans.", e);
+			close();
+		}
+		fileTree = DirectoryUtils.createFileTree(syncFolder);
+		lastSnapshot = null;
+	}
+
+	/**
+	 * Updates last modified time of the path. Directories are not rescanned as
+	 * their entries are reported by separate events.
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	private void modify(Path path) throws IOException {
+		FileTree node = find(path);
+		if (node == null || !Files.exists(path) || node.isDirectory() != Files.isDirectory(path)) {
+			refresh(path);
+			return;
+		}
+		node.setLastModified(new DateTime(Files.getLastModifiedTime(path).toMillis()));
+		if (!node.isDirectory()) {
+			node.setSize(Files.size(path));
+		}
+		markChanged(path, false);
+	}
+
+	/**
+	 * Replaces the node of the path with the current state of the file system.
+	 * Node is removed if the path does not exist anymore.
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	private void refresh(Path path) throws IOException {
+		if (path.equals(syncFolderPath)) {
+			rescan();
+			return;
+		}
+		Path parentPath = path.getParent();
+		FileTree parent = find(parentPath);
+		if (parent == null) {
+			// Parent was created before it could be registered
+			if (Files.isDirectory(parentPath)) {
+				refresh(parentPath);
+			}
+			return;
+		}
+
+		markChanged(path, true);
+		List<FileTree> childs = parent.getChilds();
+		int index = indexOf(childs, path.getFileName().toString());
+		if (!Files.exists(path)) {
+			if (index >= 0) {
+				childs.remove(index);
+			}
+		} else {
+			if (Files.isDirectory(path)) {
+				registerAll(path);
+			}
+			FileTree node = DirectoryUtils.createFileTree(path.toFile());
+			if (index >= 0) {
+				childs.set(index, node);
+			} else {
+				childs.add(-index - 1, node);
+			}
+		}
+
+		if (Files.exists(parentPath)) {
+			parent.setLastModified(new DateTime(Files.getLastModifiedTime(parentPath).toMillis()));
+		}
+	}
+
+	/**
+	 * Records the path and its parents as changed since the last snapshot
+	 *
+	 * @param path
+	 *            absolute path
+	 * @param replaced
+	 *            true if the node of the path is added, removed or replaced
+	 */
+	private void markChanged(Path path, boolean replaced) {
+		Path relativePath = syncFolderPath.relativize(path);
+		if (replaced) {
+			replacedPaths.add(relativePath.toString());
+		}
+		for (Path changedPath = relativePath; changedPath != null; changedPath = changedPath.getParent()) {
+			changedPaths.add(changedPath.toString());
+		}
+		changedPaths.add("");
+	}
+
+	/**
+	 * Copies the directory sharing the sub trees of the previous snapshot
+	 * that have not changed since
+	 *
+	 * @param directory
+	 *            directory of the file tree
+	 * @param previous
+	 *            same directory in the previous snapshot
+	 * @return copy of the directory
+	 */
+	private FileTree share(FileTree directory, FileTree previous) {
+		FileTree copy = copyNode(directory);
+		for (FileTree child : directory.getChilds()) {
+			String relativePath = child.getRelativePath();
+			FileTree previousChild = null;
+			if (!replacedPaths.contains(relativePath)) {
+				int index = indexOf(previous.getChilds(), child.getName());
+				previousChild = index >= 0 ? previous.getChilds().get(index) : null;
+			}
+			if (previousChild == null || previousChild.isDirectory() != child.isDirectory()) {
+				copy.getChilds().add(new FileTree(child));
+			} else if (!changedPaths.contains(relativePath)) {
+				copy.getChilds().add(previousChild);
+			} else if (child.isDirectory()) {
+				copy.getChilds().add(share(child, previousChild));
+			} else {
+				copy.getChilds().add(copyNode(child));
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Clears the digest of the directory and of its parents up to the sync
+	 * folder as their childs have changed
+	 *
+	 * @param directory
+	 *            absolute path of the directory
+	 */
+	private void invalidateDigests(Path directory) {
+		FileTree node = fileTree;
+		node.setDigest(null);
+		for (Path name : syncFolderPath.relativize(directory)) {
+			if (name.toString().isEmpty()) {
+				continue;
+			}
+			int index = node.isDirectory() ? indexOf(node.getChilds(), name.toString()) : -1;
+			if (index < 0) {
+				return;
+			}
+			node = node.getChilds().get(index);
+			node.setDigest(null);
+		}
+	}
+
+	/**
+	 * @param node
+	 * @return copy of the node without childs. Digest of a directory is
+	 *         computed if needed
+	 */
+	private static FileTree copyNode(FileTree node) {
+		FileTree copy = new FileTree(node.isDirectory(), node.getName(), node.getAbsolutePath(),
+				node.getRelativePath(), node.getLastModified());
+		copy.setSize(node.getSize());
+		copy.setHash(node.getHash());
+		if (node.isDirectory()) {
+			copy.setDigest(DirectoryUtils.digest(node));
+		}
+		return copy;
+	}
+
+	/**
+	 * Finds node of the path in the file tree
+	 *
+	 * @param path
+	 *            absolute path
+	 * @return node or null if the path is not present in the file tree
+	 */
+	private FileTree find(Path path) {
+		FileTree node = fileTree;
+		for (Path name : syncFolderPath.relativize(path)) {
+			if (name.toString().isEmpty()) {
+				continue;
+			}
+			if (!node.isDirectory()) {
+				return null;
+			}
+			int index = indexOf(node.getChilds(), name.toString());
+			if (index < 0) {
+				return null;
+			}
+			node = node.getChilds().get(index);
+		}
+		return node;
+	}
+
+	/**
+	 * Binary search on the sorted childs
+	 *
+	 * @param childs
+	 * @param name
+	 * @return index of the child or (-(insertion point) - 1)
+	 */
+	private static int indexOf(List<FileTree> childs, String name) {
+		FileTree key = new FileTree();
+		key.setName(name);
+		return Collections.binarySearch(childs, key, FileTree.NAME_COMPARATOR);
+	}
+}
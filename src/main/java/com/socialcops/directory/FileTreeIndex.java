@@ -0,0 +1,270 @@
+package com.socialcops.directory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.socialcops.models.FileTree;
+
+/**
+ * @author PratickChokhani Stores the file tree of the sync folder on disk so
+ *         that it does not have to be created from scratch on every start.
+ *
+ *         Index contains a header (magic, version and sync folder path)
+ *         followed by the nodes in pre-order. Each node is stored as type,
+ *         last modified millis, size, optional hash, name and for directories
+ *         the number of childs. Paths are rebuilt from the names while reading.
+ *
+ *         Index is read through a memory mapped file and validated against
+ *         the modified time of the directories. Only the directories whose
+ *         entries have changed since the last checkpoint are listed again.
+ *         Content written in place to an existing file does not change the
+ *         directory, so such a change is picked up only by the directory
+ *         watcher while the system is running.
+ */
+public class FileTreeIndex {
+	private static final Logger logger = LoggerFactory.getLogger(FileTreeIndex.class);
+
+	private static final int MAGIC = 0x53594e43;
+	private static final int VERSION = 1;
+	private static final byte DIRECTORY = 1;
+
+	private final Path indexPath;
+	private final Path syncFolderPath;
+
+	/**
+	 * @param indexPath
+	 *            file where the index is stored
+	 * @param syncFolder
+	 *            folder whose file tree is stored
+	 */
+	public FileTreeIndex(String indexPath, File syncFolder) {
+		this.indexPath = Paths.get(indexPath).toAbsolutePath();
+		this.syncFolderPath = Paths.get(syncFolder.getAbsolutePath());
+	}
+
+	/**
+	 * Reads the stored file tree and updates it with the changes made after the
+	 * last checkpoint
+	 *
+	 * @return file tree or null if index is not present or not valid
+	 */
+	public FileTree load() {
+		if (!Files.isRegularFile(indexPath)) {
+			logger.info("File tree index not found: {}", indexPath);
+			return null;
+		}
+
+		FileTree fileTree;
+		try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				logger.info("Unsupported file tree index: {}", indexPath);
+				return null;
+			}
+			if (!syncFolderPath.toString().equals(readString(buffer))) {
+				logger.info("File tree index belongs to a different sync folder: {}", indexPath);
+				return null;
+			}
+			fileTree = readNode(buffer, null);
+		} catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+			logger.error("Cannot read file tree index. Ignoring it.", e);
+			return null;
+		}
+
+		try {
+			if (!validate(fileTree, syncFolderPath)) {
+				return null;
+			}
+		} catch (IOException e) {
+			logger.error("Cannot validate file tree index. Ignoring it.", e);
+			return null;
+		}
+		logger.info("File tree loaded from index: {}", indexPath);
+		return fileTree;
+	}
+
+	/**
+	 * Writes the file tree to the index. Index is written to a temporary file
+	 * and then moved in place so that a crash does not leave a partial index
+	 *
+	 * @param fileTree
+	 * @throws IOException
+	 */
+	public void save(FileTree fileTree) throws IOException {
+		Path tempPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tempPath), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, syncFolderPath.toString());
+			writeNode(out, fileTree);
+		}
+		Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logger.info("File tree index saved: {}", indexPath);
+	}
+
+	private static void writeNode(DataOutputStream out, FileTree fileTree) throws IOException {
+		out.writeByte(fileTree.isDirectory() ? DIRECTORY : 0);
+		out.writeLong(fileTree.getLastModified().getMillis());
+		out.writeLong(fileTree.getSize());
+		if (fileTree.getHash() != null) {
+			byte[] hash = fileTree.getHash().getBytes(StandardCharsets.UTF_8);
+			out.writeShort(hash.length);
+			out.write(hash);
+		} else {
+			out.writeShort(0);
+		}
+		writeString(out, fileTree.getName());
+		if (fileTree.isDirectory()) {
+			out.writeInt(fileTree.getChilds().size());
+			for (FileTree child : fileTree.getChilds()) {
+				writeNode(out, child);
+			}
+		}
+	}
+
+	/**
+	 * Reads node and its childs from the index
+	 *
+	 * @param buffer
+	 * @param parent
+	 *            parent node or null if root node is being read
+	 * @return node
+	 */
+	private FileTree readNode(MappedByteBuffer buffer, FileTree parent) {
+		boolean directory = buffer.get() == DIRECTORY;
+		long lastModified = buffer.getLong();
+		long size = buffer.getLong();
+		String hash = null;
+		int hashLength = buffer.getShort();
+		if (hashLength > 0) {
+			byte[] hashBytes = new byte[hashLength];
+			buffer.get(hashBytes);
+			hash = new String(hashBytes, StandardCharsets.UTF_8);
+		}
+		String name = readString(buffer);
+
+		String absolutePath = syncFolderPath.toString();
+		String relativePath = "";
+		if (parent != null) {
+			absolutePath = parent.getAbsolutePath() + File.separator + name;
+			relativePath = parent.getRelativePath().isEmpty() ? name
+					: parent.getRelativePath() + File.separator + name;
+		}
+		FileTree fileTree = new FileTree(directory, name, absolutePath, relativePath, new DateTime(lastModified));
+		fileTree.setSize(size);
+		fileTree.setHash(hash);
+		if (directory) {
+			int childCount = buffer.getInt();
+			List<FileTree> childs = fileTree.getChilds();
+			for (int i = 0; i < childCount; i++) {
+				childs.add(readNode(buffer, fileTree));
+			}
+		}
+		return fileTree;
+	}
+
+	/**
+	 * Updates the directory node with the current state of the file system.
+	 * Entries of a directory are listed again only if its modified time has
+	 * changed.
+	 *
+	 * @param fileTree
+	 *            directory node
+	 * @param path
+	 *            path of the directory
+	 * @return false if the directory does not exist anymore
+	 * @throws IOException
+	 */
+	private boolean validate(FileTree fileTree, Path path) throws IOException {
+		if (!Files.isDirectory(path)) {
+			return false;
+		}
+		long lastModified = Files.getLastModifiedTime(path).toMillis();
+		if (lastModified == fileTree.getLastModified().getMillis()) {
+			for (FileTree child : fileTree.getChilds()) {
+				if (child.isDirectory() && !validate(child, path.resolve(child.getName()))) {
+					return rescan(fileTree, path);
+				}
+			}
+			return true;
+		}
+		return rescan(fileTree, path);
+	}
+
+	/**
+	 * Lists the directory again. Stored sub directories are validated instead
+	 * of being created from scratch.
+	 *
+	 * @param fileTree
+	 *            directory node
+	 * @param path
+	 *            path of the directory
+	 * @return false if the directory does not exist anymore
+	 * @throws IOException
+	 */
+	private boolean rescan(FileTree fileTree, Path path) throws IOException {
+		if (!Files.isDirectory(path)) {
+			return false;
+		}
+		Map<String, FileTree> storedChilds = new HashMap<>();
+		for (FileTree child : fileTree.getChilds()) {
+			if (child.isDirectory()) {
+				storedChilds.put(child.getName(), child);
+			}
+		}
+
+		List<FileTree> childs = new ArrayList<>();
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(path)) {
+			for (Path childPath : directoryStream) {
+				if (DirectoryUtils.isTemporaryFile(childPath)) {
+					continue;
+				}
+				FileTree storedChild = storedChilds.get(childPath.getFileName().toString());
+				if (storedChild != null && validate(storedChild, childPath)) {
+					childs.add(storedChild);
+				} else {
+					childs.add(DirectoryUtils.createFileTree(childPath.toFile()));
+				}
+			}
+		}
+		Collections.sort(childs, FileTree.NAME_COMPARATOR);
+		fileTree.setChilds(childs);
+		fileTree.setLastModified(new DateTime(Files.getLastModifiedTime(path).toMillis()));
+		return true;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(MappedByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,228 @@
+package com.socialcops.directory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.socialcops.enums.FsyncMode;
+import com.socialcops.metrics.Histogram;
+import com.socialcops.metrics.Metrics;
+
+/**
+ * @author PratickChokhani Moves received files from their temporary file in
+ *         place of the local copy so that a crash leaves either the old or the
+ *         new content. Temporary file is synced before it is renamed and its
+ *         directory after it, so that the rename survives the crash.
+ *
+ *         In batch mode, files are queued and committed together by a
+ *         background thread: all of them are synced, renamed and then each
+ *         directory is synced once. Files received within the batch delay of
+ *         the first one share the wait for the disk.
+ */
+public class GroupCommitter implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(GroupCommitter.class);
+	private static final long CLOSE_TIMEOUT_MILLIS = 10000L;
+	private static final Histogram batchLatency = Metrics.latency("sync_commit_batch_duration_seconds",
+			"Time taken to sync a batch of received files to disk and move them in place");
+	private static final Histogram batchSize = Metrics.histogram("sync_commit_batch_files",
+			"Number of files committed together in a batch", 1, 4096, 1);
+
+	private final FsyncMode fsyncMode;
+	private final long batchDelayMillis;
+	private final List<Commit> queue = new ArrayList<>();
+	/**
+	 * Files queued or being committed
+	 */
+	private final Set<Path> pending = new HashSet<>();
+	private boolean closed = false;
+
+	/**
+	 * @param fsyncMode
+	 * @param batchDelayMillis
+	 *            time for which more files are awaited after the first one
+	 *            before a batch is committed
+	 */
+	public GroupCommitter(FsyncMode fsyncMode, long batchDelayMillis) {
+		this.fsyncMode = fsyncMode;
+		this.batchDelayMillis = batchDelayMillis;
+	}
+
+	/**
+	 * Starts the thread committing batches
+	 */
+	public void start() {
+		if (fsyncMode != FsyncMode.BATCH) {
+			return;
+		}
+		Thread thread = new Thread(this, "group-commit");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Moves the temporary file in place of the file. In batch mode the file
+	 * is queued and moved later
+	 * 
+	 * @param temporaryPath
+	 *            file in the same directory holding the new content
+	 * @param path
+	 *            file to be replaced
+	 * @throws IOException
+	 */
+	public void commit(Path temporaryPath, Path path) throws IOException {
+		switch (fsyncMode) {
+		case NONE:
+			move(temporaryPath, path);
+			break;
+		case ALWAYS:
+			force(temporaryPath);
+			move(temporaryPath, path);
+			forceDirectory(path.getParent());
+			break;
+		default:
+			synchronized (this) {
+				queue.add(new Commit(temporaryPath, path));
+				pending.add(path);
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @param path
+	 * @return true if the file is waiting to be moved in place
+	 */
+	public synchronized boolean isPending(Path path) {
+		return pending.contains(path);
+	}
+
+	@Override
+	public void run() {
+		List<Commit> batch;
+		while ((batch = nextBatch()) != null) {
+			commitBatch(batch);
+			synchronized (this) {
+				for (Commit commit : batch) {
+					pending.remove(commit.path);
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the first file and then for the batch delay
+	 * 
+	 * @return files to be committed or null once closed and nothing is queued
+	 */
+	private synchronized List<Commit> nextBatch() {
+		try {
+			while (queue.isEmpty() && !closed) {
+				wait();
+			}
+			long deadline = System.currentTimeMillis() + batchDelayMillis;
+			long timeout;
+			while (!closed && (timeout = deadline - System.currentTimeMillis()) > 0) {
+				wait(timeout);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (queue.isEmpty()) {
+			return null;
+		}
+		List<Commit> batch = new ArrayList<>(queue);
+		queue.clear();
+		return batch;
+	}
+
+	private void commitBatch(List<Commit> batch) {
+		long startNanos = System.nanoTime();
+		List<Commit> synced = new ArrayList<>(batch.size());
+		for (Commit commit : batch) {
+			try {
+				force(commit.temporaryPath);
+				synced.add(commit);
+			} catch (IOException e) {
+				logger.error("Cannot sync file: " + commit.temporaryPath, e);
+			}
+		}
+		Set<Path> directories = new LinkedHashSet<>();
+		for (Commit commit : synced) {
+			try {
+				move(commit.temporaryPath, commit.path);
+				directories.add(commit.path.getParent());
+			} catch (IOException e) {
+				logger.error("Cannot move file in place: " + commit.path, e);
+			}
+		}
+		for (Path directory : directories) {
+			forceDirectory(directory);
+		}
+		batchLatency.recordSince(startNanos);
+		batchSize.record(synced.size());
+		logger.info("Committed {} files in {} directories", synced.size(), directories.size());
+	}
+
+	private static void move(Path temporaryPath, Path path) throws IOException {
+		Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void force(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Syncs the directory entries. Not supported on every platform, in which
+	 * case rename is as durable as the file system makes it
+	 */
+	private static void forceDirectory(Path directory) {
+		try {
+			force(directory);
+		} catch (IOException e) {
+			logger.debug("Cannot sync directory: {}", directory);
+		}
+	}
+
+	/**
+	 * Commits the queued files and stops the thread, waiting a while for the
+	 * queued files to be committed
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+		long timeout;
+		try {
+			while (fsyncMode == FsyncMode.BATCH && !pending.isEmpty()
+					&& (timeout = deadline - System.currentTimeMillis()) > 0) {
+				wait(timeout);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class Commit {
+		private final Path temporaryPath;
+		private final Path path;
+
+		private Commit(Path temporaryPath, Path path) {
+			this.temporaryPath = temporaryPath;
+			this.path = path;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package com.socialcops.directory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import com.socialcops.models.FileDifference;
+import com.socialcops.models.FileTree;
+
+/**
+ * @author PratickChokhani Caches content hash of the files so that a file is
+ *         hashed again only when it is replaced (file key i.e. inode), resized
+ *         or modified. Hashes are computed only when they are asked for and
+ *         the cache is saved on disk periodically.
+ */
+public class HashCache {
+	private static final Logger logger = LoggerFactory.getLogger(HashCache.class);
+
+	private static final int MAGIC = 0x53594e48;
+	private static final int VERSION = 1;
+
+	private final Path cachePath;
+	private final Path syncFolderPath;
+	/**
+	 * Cached hashes by path relative to the sync folder
+	 */
+	private final Map<String, CachedHash> hashes = new ConcurrentHashMap<>();
+	/**
+	 * Path last cached for each file key, so that a moved file is found
+	 */
+	private final Map<String, String> pathsByFileKey = new ConcurrentHashMap<>();
+	private volatile boolean modified = false;
+
+	/**
+	 * @param cachePath
+	 *            file where the cache is stored
+	 * @param syncFolder
+	 */
+	public HashCache(String cachePath, File syncFolder) {
+		this.cachePath = Paths.get(cachePath).toAbsolutePath();
+		this.syncFolderPath = Paths.get(syncFolder.getAbsolutePath());
+	}
+
+	/**
+	 * Returns content hash of the file. File is hashed only if the cached
+	 * hash is not valid anymore
+	 *
+	 * @param path
+	 *            absolute path of the file
+	 * @return hash or null if the file does not exist or is a directory
+	 * @throws IOException
+	 */
+	public String getHash(Path path) throws IOException {
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		String relativePath = syncFolderPath.relativize(path).toString();
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		CachedHash cachedHash = hashes.get(relativePath);
+		if (cachedHash != null && cachedHash.matches(attributes)) {
+			return cachedHash.hash;
+		}
+
+		logger.info("Hashing file: {}", relativePath);
+		String hash = MoreFiles.asByteSource(path).hash(Hashing.sha256()).toString();
+		// File changed while it was hashed, so hash is not cached
+		if (new CachedHash(attributes, null).matches(Files.readAttributes(path, BasicFileAttributes.class))) {
+			put(relativePath, new CachedHash(attributes, hash));
+		}
+		return hash;
+	}
+
+	/**
+	 * Returns hash cached for the file under its path or, if the file has been
+	 * moved, under the path it had. Moved file is found by its file key i.e.
+	 * inode, its hash being valid only if the size and last modified time are
+	 * still the same. File is not read.
+	 *
+	 * @param path
+	 *            absolute path of the file
+	 * @return hash or null if it is not cached
+	 * @throws IOException
+	 */
+	public String getCachedHash(Path path) throws IOException {
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		String relativePath = syncFolderPath.relativize(path).toString();
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		CachedHash cachedHash = hashes.get(relativePath);
+		if (cachedHash != null && cachedHash.matches(attributes)) {
+			return cachedHash.hash;
+		}
+		if (attributes.fileKey() == null) {
+			return null;
+		}
+		String previousPath = pathsByFileKey.get(String.valueOf(attributes.fileKey()));
+		cachedHash = previousPath == null ? null : hashes.get(previousPath);
+		if (cachedHash == null || !cachedHash.matches(attributes)) {
+			return null;
+		}
+		put(relativePath, cachedHash);
+		return cachedHash.hash;
+	}
+
+	/**
+	 * Returns hash only if it is already cached for the same size and last
+	 * modified time. File is not read.
+	 *
+	 * @param relativePath
+	 *            path relative to the sync folder
+	 * @param size
+	 * @param lastModified
+	 * @return hash or null
+	 */
+	public String getCachedHash(String relativePath, long size, long lastModified) {
+		CachedHash cachedHash = hashes.get(relativePath);
+		if (cachedHash != null && cachedHash.size == size && cachedHash.lastModified == lastModified) {
+			return cachedHash.hash;
+		}
+		return null;
+	}
+
+	/**
+	 * Sets cached hashes to the files of the file tree
+	 *
+	 * @param fileTree
+	 */
+	public void annotate(FileTree fileTree) {
+		if (fileTree.isDirectory()) {
+			for (FileTree child : fileTree.getChilds()) {
+				annotate(child);
+			}
+		} else if (fileTree.getHash() == null) {
+			fileTree.setHash(getCachedHash(fileTree.getRelativePath(), fileTree.getSize(),
+					fileTree.getLastModified().getMillis()));
+		}
+	}
+
+	/**
+	 * Sets cached hashes to the file differences
+	 *
+	 * @param fileDifference
+	 */
+	public void annotate(FileDifference fileDifference) {
+		if (fileDifference.getHash() == null && fileDifference.getLastModified() != null) {
+			fileDifference.setHash(getCachedHash(fileDifference.getPath(), fileDifference.getSize(),
+					fileDifference.getLastModified().getMillis()));
+		}
+	}
+
+	/**
+	 * Reads the cache stored on disk
+	 */
+	public void load() {
+		if (!Files.isRegularFile(cachePath)) {
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(cachePath), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				logger.info("Unsupported hash cache: {}", cachePath);
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String relativePath = in.readUTF();
+				CachedHash cachedHash = new CachedHash(in.readUTF(), in.readLong(), in.readLong(), in.readUTF());
+				hashes.put(relativePath, cachedHash);
+				pathsByFileKey.put(cachedHash.fileKey, relativePath);
+			}
+			logger.info("Hash cache loaded. Entries: {}", count);
+		} catch (EOFException e) {
+			logger.error("Hash cache is truncated. Ignoring rest of it.", e);
+		} catch (IOException e) {
+			logger.error("Cannot read hash cache.", e);
+		}
+	}
+
+	/**
+	 * Saves the cache on disk if it has changed after the last checkpoint
+	 */
+	public synchronized void checkpoint() {
+		if (!modified) {
+			return;
+		}
+		modified = false;
+		Path tempPath = cachePath.resolveSibling(cachePath.getFileName() + ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(tempPath), 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				// Snapshot since the entries can change while being written
+				Map<String, CachedHash> entries = new HashMap<>(hashes);
+				out.writeInt(entries.size());
+				for (Map.Entry<String, CachedHash> entry : entries.entrySet()) {
+					CachedHash cachedHash = entry.getValue();
+					out.writeUTF(entry.getKey());
+					out.writeUTF(cachedHash.fileKey);
+					out.writeLong(cachedHash.size);
+					out.writeLong(cachedHash.lastModified);
+					out.writeUTF(cachedHash.hash);
+				}
+			}
+			Files.move(tempPath, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			logger.info("Hash cache saved: {}", cachePath);
+		} catch (IOException e) {
+			modified = true;
+			logger.error("Cannot checkpoint hash cache.", e);
+		}
+	}
+
+	private void put(String relativePath, CachedHash cachedHash) {
+		hashes.put(relativePath, cachedHash);
+		pathsByFileKey.put(cachedHash.fileKey, relativePath);
+		modified = true;
+	}
+
+	/**
+	 * Hash of a file along with the attributes for which it is valid
+	 */
+	private static class CachedHash {
+		private final String fileKey;
+		private final long size;
+		private final long lastModified;
+		private final String hash;
+
+		private CachedHash(String fileKey, long size, long lastModified, String hash) {
+			this.fileKey = fileKey;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+
+		private CachedHash(BasicFileAttributes attributes, String hash) {
+			this(String.valueOf(attributes.fileKey()), attributes.size(), attributes.lastModifiedTime().toMillis(),
+					hash);
+		}
+
+		private boolean matches(BasicFileAttributes attributes) {
+			return fileKey.equals(String.valueOf(attributes.fileKey())) && size == attributes.size()
+					&& lastModified == attributes.lastModifiedTime().toMillis();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.socialcops.directory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.socialcops.models.FileDifference;
+
+/**
+ * @author PratickChokhani File or delta being received over a stream. Received
+ *         parts are written to a spool file until the stream ends. Progress of
+ *         a resumable file is kept in a sidecar along with the spool file.
+ */
+class IncomingFile {
+	private final long requestId;
+	private final FileDifference fileDifference;
+	private final Path spoolPath;
+	private final Path partialPath;
+	private final FileChannel channel;
+	private final PartialFile partialFile;
+
+	/**
+	 * @param requestId
+	 * @param fileDifference
+	 *            requested file or null if it was not requested. Data of such
+	 *            file is discarded
+	 * @param spoolPath
+	 *            file where received data is written. Not used if file was
+	 *            not requested
+	 * @param partialPath
+	 *            sidecar where progress is kept or null if the file is not
+	 *            resumable
+	 * @param chunkSize
+	 *            size of the chunks whose checksums are kept in the sidecar
+	 * @param offset
+	 *            offset from where the file is being received. Spool file is
+	 *            truncated to it
+	 * @throws IOException
+	 */
+	IncomingFile(long requestId, FileDifference fileDifference, Path spoolPath, Path partialPath, int chunkSize,
+			long offset) throws IOException {
+		this.requestId = requestId;
+		this.fileDifference = fileDifference;
+		this.spoolPath = spoolPath;
+		this.partialPath = fileDifference == null ? null : partialPath;
+		if (fileDifference == null) {
+			this.channel = null;
+			this.partialFile = null;
+			return;
+		}
+		this.channel = FileChannel.open(spoolPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.truncate(offset);
+		channel.position(offset);
+		this.partialFile = partialPath == null ? null
+				: PartialFile.start(channel, partialPath, fileDifference, chunkSize, offset);
+	}
+
+	/**
+	 * @param requestId
+	 * @param fileDifference
+	 *            requested file or null if it was not requested
+	 * @param spoolPath
+	 *            file where received data is written
+	 * @throws IOException
+	 */
+	IncomingFile(long requestId, FileDifference fileDifference, Path spoolPath) throws IOException {
+		this(requestId, fileDifference, spoolPath, null, 0, 0L);
+	}
+
+	/**
+	 * Closes the spool file. Progress of a resumable file is kept
+	 * 
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		if (partialFile != null) {
+			partialFile.close();
+		}
+		if (channel != null) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Closes the spool file once it is received completely and deletes its
+	 * progress
+	 * 
+	 * @throws IOException
+	 */
+	void finish() throws IOException {
+		close();
+		if (partialPath != null) {
+			Files.deleteIfExists(partialPath);
+		}
+	}
+
+	/**
+	 * Closes and deletes the spool file
+	 */
+	void discard() {
+		try {
+			close();
+			if (channel != null) {
+				Files.deleteIfExists(spoolPath);
+			}
+			if (partialPath != null) {
+				Files.deleteIfExists(partialPath);
+			}
+		} catch (IOException e) {
+			// Spool file is left behind and ignored as a temporary file
+		}
+	}
+
+	/**
+	 * Closes the spool file if the transfer can be resumed, otherwise
+	 * discards it
+	 */
+	void suspend() {
+		if (partialFile == null) {
+			discard();
+			return;
+		}
+		try {
+			close();
+		} catch (IOException e) {
+			// Chunks not recorded are received again on resume
+		}
+	}
+
+	/**
+	 * @return channel where received data is written or null if data is to be
+	 *         discarded
+	 */
+	WritableByteChannel getChannel() {
+		return partialFile == null ? channel : partialFile;
+	}
+
+	long getRequestId() {
+		return requestId;
+	}
+
+	FileDifference getFileDifference() {
+		return fileDifference;
+	}
+
+	Path getSpoolPath() {
+		return spoolPath;
+	}
+}
@@ -0,0 +1,191 @@
+package com.socialcops.directory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.socialcops.models.FileDifference;
+
+/**
+ * @author PratickChokhani Progress of a file being received, kept in a
+ *         sidecar next to its spool file so that the transfer can be resumed
+ *         after the connection is lost or the program is restarted.
+ *
+ *         Sidecar starts with the last modified time and size of the remote
+ *         file and the chunk size, followed by the CRC32 of each chunk written
+ *         completely to the spool file. Chunks are verified against the spool
+ *         file before resuming, so that only the data that made it to disk is
+ *         kept.
+ */
+class PartialFile implements WritableByteChannel {
+	private static final Logger logger = LoggerFactory.getLogger(PartialFile.class);
+	private static final int HEADER_BYTES = Long.BYTES + Long.BYTES + Integer.BYTES;
+
+	private final FileChannel spool;
+	private final DataOutputStream sidecar;
+	private final int chunkSize;
+	private final CRC32 crc = new CRC32();
+	/**
+	 * Bytes of the current chunk written so far
+	 */
+	private int chunkFill = 0;
+
+	private PartialFile(FileChannel spool, DataOutputStream sidecar, int chunkSize) {
+		this.spool = spool;
+		this.sidecar = sidecar;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Starts recording chunks written to the spool file
+	 * 
+	 * @param spool
+	 *            spool file positioned at the offset
+	 * @param sidecarPath
+	 * @param fileDifference
+	 *            file being received
+	 * @param chunkSize
+	 *            size of the chunks of a new transfer
+	 * @param offset
+	 *            0 for a new transfer, otherwise offset returned by
+	 *            {@link #resumeOffset(Path, Path, FileDifference)}
+	 * @return channel writing to the spool file
+	 * @throws IOException
+	 */
+	static PartialFile start(FileChannel spool, Path sidecarPath, FileDifference fileDifference, int chunkSize,
+			long offset) throws IOException {
+		if (offset > 0) {
+			try (DataInputStream in = new DataInputStream(Files.newInputStream(sidecarPath))) {
+				in.readLong();
+				in.readLong();
+				chunkSize = in.readInt();
+			}
+			return new PartialFile(spool, new DataOutputStream(new FileOutputStream(sidecarPath.toFile(), true)),
+					chunkSize);
+		}
+		DataOutputStream sidecar = new DataOutputStream(new FileOutputStream(sidecarPath.toFile()));
+		sidecar.writeLong(fileDifference.getLastModified().getMillis());
+		sidecar.writeLong(fileDifference.getSize());
+		sidecar.writeInt(chunkSize);
+		sidecar.flush();
+		return new PartialFile(spool, sidecar, chunkSize);
+	}
+
+	/**
+	 * Verifies the chunks recorded for the same version of the file against
+	 * the spool file. Records after the first chunk that does not match are
+	 * dropped. Progress of another version is deleted
+	 * 
+	 * @param spoolPath
+	 * @param sidecarPath
+	 * @param fileDifference
+	 *            file to be received
+	 * @return offset from where the file is to be received, 0 if it is to be
+	 *         received whole
+	 */
+	static long resumeOffset(Path spoolPath, Path sidecarPath, FileDifference fileDifference) {
+		if (!Files.exists(sidecarPath)) {
+			return 0L;
+		}
+		long verifiedChunks = 0;
+		int chunkSize = 0;
+		boolean sameVersion;
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(sidecarPath));
+				InputStream spool = Files.newInputStream(spoolPath)) {
+			sameVersion = in.readLong() == fileDifference.getLastModified().getMillis()
+					&& in.readLong() == fileDifference.getSize();
+			chunkSize = sameVersion ? in.readInt() : 0;
+			byte[] chunk = new byte[chunkSize];
+			CRC32 chunkCrc = new CRC32();
+			while (sameVersion) {
+				int expected;
+				try {
+					expected = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (IOUtils.read(spool, chunk) < chunkSize) {
+					break;
+				}
+				chunkCrc.reset();
+				chunkCrc.update(chunk, 0, chunkSize);
+				if ((int) chunkCrc.getValue() != expected) {
+					break;
+				}
+				verifiedChunks++;
+			}
+		} catch (IOException e) {
+			logger.error("Cannot read progress of: " + spoolPath, e);
+			return 0L;
+		}
+		if (!sameVersion) {
+			logger.info("Discarding progress of another version: {}", spoolPath);
+			try {
+				Files.deleteIfExists(sidecarPath);
+			} catch (IOException e) {
+				logger.error("Cannot delete progress of: " + spoolPath, e);
+			}
+			return 0L;
+		}
+		try (FileChannel channel = FileChannel.open(sidecarPath, StandardOpenOption.WRITE)) {
+			channel.truncate(HEADER_BYTES + verifiedChunks * Integer.BYTES);
+		} catch (IOException e) {
+			logger.error("Cannot update progress of: " + spoolPath, e);
+			return 0L;
+		}
+		return verifiedChunks * chunkSize;
+	}
+
+	/**
+	 * Writes data to the spool file, recording the checksum of each chunk
+	 * once it is complete
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int written = 0;
+		while (src.hasRemaining()) {
+			ByteBuffer part = src.duplicate();
+			part.limit(part.position() + Math.min(part.remaining(), chunkSize - chunkFill));
+			int size = spool.write(part);
+			ByteBuffer data = src.duplicate();
+			data.limit(data.position() + size);
+			crc.update(data);
+			src.position(src.position() + size);
+			chunkFill += size;
+			written += size;
+			if (chunkFill == chunkSize) {
+				sidecar.writeInt((int) crc.getValue());
+				crc.reset();
+				chunkFill = 0;
+			}
+		}
+		return written;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return spool.isOpen();
+	}
+
+	/**
+	 * Closes the sidecar. Spool file is closed by its owner
+	 */
+	@Override
+	public void close() throws IOException {
+		sidecar.close();
+	}
+}
@@ -0,0 +1,235 @@
+package com.socialcops.directory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.socialcops.models.FileDifference;
+import com.socialcops.sockets.StripeProgress;
+
+/**
+ * @author PratickChokhani Progress of a file being received in ranges, kept
+ *         in a sidecar next to its spool file so that only the missing ranges
+ *         are requested after the connection is lost or the program is
+ *         restarted.
+ *
+ *         Sidecar starts with the last modified time and size of the remote
+ *         file and the chunk size, followed by the offset where a range
+ *         starts and the CRC32 of each chunk of the range written completely
+ *         to the spool file. Ranges are written in parallel, so records of
+ *         different ranges are interleaved, while chunks of a range are
+ *         recorded in order. Chunks are verified against the spool file
+ *         before resuming, so that only the data that made it to disk is
+ *         kept.
+ */
+class PartialStripes implements StripeProgress {
+	private static final Logger logger = LoggerFactory.getLogger(PartialStripes.class);
+	private static final int RECORD_BYTES = Long.BYTES + Integer.BYTES;
+
+	private final DataOutputStream sidecar;
+	private final int chunkSize;
+	/**
+	 * Chunk being written of each range, by offset where the range starts
+	 */
+	private final Map<Long, Chunk> chunks = new HashMap<>();
+
+	private PartialStripes(DataOutputStream sidecar, int chunkSize) {
+		this.sidecar = sidecar;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Starts recording chunks of the ranges written to the spool file
+	 * 
+	 * @param sidecarPath
+	 * @param fileDifference
+	 *            file being received
+	 * @param chunkSize
+	 *            size of the chunks of a new transfer
+	 * @param resumed
+	 *            false for a new transfer, true if the missing ranges returned
+	 *            by {@link #missingRanges(Path, Path, FileDifference)} are
+	 *            requested
+	 * @return progress of the file
+	 * @throws IOException
+	 */
+	static PartialStripes start(Path sidecarPath, FileDifference fileDifference, int chunkSize, boolean resumed)
+			throws IOException {
+		if (resumed) {
+			try (DataInputStream in = new DataInputStream(Files.newInputStream(sidecarPath))) {
+				in.readLong();
+				in.readLong();
+				chunkSize = in.readInt();
+			}
+			return new PartialStripes(new DataOutputStream(new FileOutputStream(sidecarPath.toFile(), true)),
+					chunkSize);
+		}
+		DataOutputStream sidecar = new DataOutputStream(new FileOutputStream(sidecarPath.toFile()));
+		writeHeader(sidecar, fileDifference, chunkSize);
+		return new PartialStripes(sidecar, chunkSize);
+	}
+
+	/**
+	 * Verifies the chunks recorded for the same version of the file against
+	 * the spool file. Records of a range after its first chunk that does not
+	 * match are dropped. Progress of another version is deleted
+	 * 
+	 * @param spoolPath
+	 * @param sidecarPath
+	 * @param fileDifference
+	 *            file to be received
+	 * @return offset and length of each range still to be received, empty if
+	 *         the file is to be received whole
+	 */
+	static List<long[]> missingRanges(Path spoolPath, Path sidecarPath, FileDifference fileDifference) {
+		if (!Files.exists(sidecarPath) || !Files.exists(spoolPath)) {
+			return Collections.emptyList();
+		}
+		int chunkSize;
+		List<long[]> verifiedRecords = new ArrayList<>();
+		// Bytes verified from the start of each range, or -1 once a chunk
+		// of the range does not match
+		Map<Long, Long> verified = new TreeMap<>();
+		boolean sameVersion;
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(sidecarPath));
+				FileChannel spool = FileChannel.open(spoolPath, StandardOpenOption.READ)) {
+			sameVersion = in.readLong() == fileDifference.getLastModified().getMillis()
+					&& in.readLong() == fileDifference.getSize();
+			chunkSize = in.readInt();
+			ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+			CRC32 chunkCrc = new CRC32();
+			while (sameVersion) {
+				long rangeStart;
+				int expected;
+				try {
+					rangeStart = in.readLong();
+					expected = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				long rangeVerified = verified.getOrDefault(rangeStart, 0L);
+				if (rangeVerified < 0) {
+					continue;
+				}
+				chunk.clear();
+				long position = rangeStart + rangeVerified;
+				int read;
+				do {
+					read = spool.read(chunk, position + chunk.position());
+				} while (read > 0 && chunk.hasRemaining());
+				chunkCrc.reset();
+				chunkCrc.update(chunk.array(), 0, chunk.position());
+				if (chunk.hasRemaining() || (int) chunkCrc.getValue() != expected) {
+					verified.put(rangeStart, -1L - rangeVerified);
+					continue;
+				}
+				verified.put(rangeStart, rangeVerified + chunkSize);
+				verifiedRecords.add(new long[] { rangeStart, expected });
+			}
+		} catch (IOException e) {
+			logger.error("Cannot read progress of: " + spoolPath, e);
+			return Collections.emptyList();
+		}
+		try {
+			if (!sameVersion || verifiedRecords.isEmpty()) {
+				if (!sameVersion) {
+					logger.info("Discarding progress of another version: {}", spoolPath);
+				}
+				Files.deleteIfExists(sidecarPath);
+				return Collections.emptyList();
+			}
+			try (DataOutputStream sidecar = new DataOutputStream(new FileOutputStream(sidecarPath.toFile()))) {
+				writeHeader(sidecar, fileDifference, chunkSize);
+				for (long[] record : verifiedRecords) {
+					sidecar.writeLong(record[0]);
+					sidecar.writeInt((int) record[1]);
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Cannot update progress of: " + spoolPath, e);
+			return Collections.emptyList();
+		}
+
+		List<long[]> missingRanges = new ArrayList<>();
+		long offset = 0L;
+		for (Map.Entry<Long, Long> range : verified.entrySet()) {
+			long rangeStart = range.getKey();
+			// Bytes of a range whose chunk did not match are those verified
+			// before it
+			long rangeVerified = range.getValue() < 0 ? -1L - range.getValue() : range.getValue();
+			if (rangeStart > offset) {
+				missingRanges.add(new long[] { offset, rangeStart - offset });
+			}
+			offset = Math.max(offset, rangeStart + rangeVerified);
+		}
+		if (offset < fileDifference.getSize()) {
+			missingRanges.add(new long[] { offset, fileDifference.getSize() - offset });
+		}
+		return missingRanges;
+	}
+
+	private static void writeHeader(DataOutputStream sidecar, FileDifference fileDifference, int chunkSize)
+			throws IOException {
+		sidecar.writeLong(fileDifference.getLastModified().getMillis());
+		sidecar.writeLong(fileDifference.getSize());
+		sidecar.writeInt(chunkSize);
+		sidecar.flush();
+	}
+
+	/**
+	 * Records the checksum of each chunk of the range once it is complete
+	 */
+	@Override
+	public synchronized void written(long rangeStart, ByteBuffer data) throws IOException {
+		Chunk chunk = chunks.computeIfAbsent(rangeStart, start -> new Chunk());
+		while (data.hasRemaining()) {
+			ByteBuffer part = data.duplicate();
+			int size = Math.min(part.remaining(), chunkSize - chunk.fill);
+			part.limit(part.position() + size);
+			chunk.crc.update(part);
+			data.position(data.position() + size);
+			chunk.fill += size;
+			if (chunk.fill == chunkSize) {
+				// Record is written at once so that it is never interleaved
+				// with a record of another range
+				sidecar.write(ByteBuffer.allocate(RECORD_BYTES).putLong(rangeStart)
+						.putInt((int) chunk.crc.getValue()).array());
+				chunk.crc.reset();
+				chunk.fill = 0;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		sidecar.close();
+	}
+
+	/**
+	 * Chunk of a range being written
+	 */
+	private static class Chunk {
+		private final CRC32 crc = new CRC32();
+		/**
+		 * Bytes of the chunk written so far
+		 */
+		private int fill = 0;
+	}
+}
@@ -1,33 +1,68 @@
 package com.socialcops.directory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
 import java.text.MessageFormat;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.commons.io.IOUtils;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Longs;
+import com.socialcops.codec.PayloadCodec;
+import com.socialcops.delta.DeltaApplier;
+import com.socialcops.delta.DeltaGenerator;
+import com.socialcops.delta.FileSignature;
 import com.socialcops.enums.DataIdentifier;
 import com.socialcops.enums.FileOperation;
+import com.socialcops.metrics.Counter;
+import com.socialcops.metrics.Histogram;
+import com.socialcops.metrics.Metrics;
+import com.socialcops.models.DirectoryDigest;
+import com.socialcops.models.DirectoryListing;
 import com.socialcops.models.FileDifference;
 import com.socialcops.models.FileDifferenceData;
 import com.socialcops.models.FileTree;
 import com.socialcops.models.FileTreeWrapper;
 import com.socialcops.models.SocketStreamData;
+import com.socialcops.properties.SyncProperty;
+import com.socialcops.sockets.Handshake;
+import com.socialcops.sockets.MessageInputStream;
+import com.socialcops.sockets.MessageOutputStream;
 import com.socialcops.sockets.SocketManager;
 
 /**
@@ -37,6 +72,39 @@ import com.socialcops.sockets.SocketManager;
  */
 public class Synchronizer {
 	private static final Logger logger = LoggerFactory.getLogger(Synchronizer.class);
+	/**
+	 * Separates path and hash in file request
+	 */
+	private static final String HASH_SEPARATOR = "\0";
+
+	private static final String REQUESTS = "sync_requests_total";
+	private static final String REQUESTS_HELP = "Requests sent to the remote system by type";
+	private static final Counter fileRequests = Metrics.counter(REQUESTS, REQUESTS_HELP, "type", "file");
+	private static final Counter deltaRequests = Metrics.counter(REQUESTS, REQUESTS_HELP, "type", "delta");
+	private static final Counter stripedRequests = Metrics.counter(REQUESTS, REQUESTS_HELP, "type", "stripes");
+	private static final Counter resumeRequests = Metrics.counter(REQUESTS, REQUESTS_HELP, "type", "resume");
+	private static final Counter bundleRequests = Metrics.counter(REQUESTS, REQUESTS_HELP, "type", "bundle");
+	private static final String RESULTS = "sync_request_results_total";
+	private static final String RESULTS_HELP = "Requested files by the result of the request";
+	private static final Counter receivedFiles = Metrics.counter(RESULTS, RESULTS_HELP, "result", "received");
+	private static final Counter sameFiles = Metrics.counter(RESULTS, RESULTS_HELP, "result", "same");
+	private static final Counter movedFiles = Metrics.counter(RESULTS, RESULTS_HELP, "result", "moved");
+	private static final Counter notFoundFiles = Metrics.counter(RESULTS, RESULTS_HELP, "result", "not_found");
+	private static final String LATENCY = "sync_request_latency_seconds";
+	private static final String LATENCY_HELP = "Time from sending a request until its reply is processed";
+	private static final Histogram fileLatency = Metrics.latency(LATENCY, LATENCY_HELP, "type", "file");
+	private static final Histogram bundleLatency = Metrics.latency(LATENCY, LATENCY_HELP, "type", "bundle");
+	/**
+	 * Status of an entry of a bundle
+	 */
+	private static final byte BUNDLE_FILE = 0;
+	private static final byte BUNDLE_MISSING = 1;
+	private static final byte BUNDLE_SAME = 2;
+	/**
+	 * Local files up to this size are hashed on the thread reading the
+	 * socket, larger ones on the file worker
+	 */
+	private static final long INLINE_HASH_MAX_SIZE = 1024 * 1024;
 
 	private final File syncFolder;
 	private final Path syncFolderPath;
@@ -46,21 +114,107 @@ public class Synchronizer {
 	private boolean master;
 	private SocketManager socketManager;
 	private ObjectMapper objectMapper;
+	/**
+	 * Codecs of the file tree and file differences sent, one is chosen as
+	 * agreed with the remote system. Either decodes the received payload
+	 */
+	private final PayloadCodec binaryCodec;
+	private final PayloadCodec jsonCodec;
 	private DateTime lastUpdateTime = new DateTime(0L);
-	private final Queue<FileDifference> fileDifferenceToProcess = new ArrayDeque<>(100);
-	private final AtomicBoolean requestBeingProcessed = new AtomicBoolean(false);
-	private FileDifference curProcessingFileDifference = null;
+	private final TransferQueue fileDifferenceToProcess;
+	/**
+	 * Files requested from remote system and not yet received, by request ID
+	 */
+	private final Map<Long, FileDifference> pendingRequests = new LinkedHashMap<>();
+	/**
+	 * Bundles of small files requested from remote system and not yet
+	 * received, by request ID
+	 */
+	private final Map<Long, List<FileDifference>> pendingBundles = new LinkedHashMap<>();
+	private long lastRequestId = 0L;
+	/**
+	 * Time when each pending request was sent, by request ID
+	 */
+	private final Map<Long, Long> requestStartTimes = new HashMap<>();
+	/**
+	 * Files and deltas being received, by stream ID
+	 */
+	private final Map<Integer, IncomingFile> incomingFiles = new HashMap<>();
+	private final AtomicBoolean differenceBeingRequested = new AtomicBoolean(false);
 	private final AtomicBoolean initialSyncBeingWorked = new AtomicBoolean(false);
+	/**
+	 * True if remote system has announced changes that are not requested yet
+	 */
+	private volatile boolean changesAnnounced = false;
+	private final DirectoryWatcher directoryWatcher;
+	private final HashCache hashCache;
+	private final GroupCommitter groupCommitter;
+	/**
+	 * Paths requested and not yet received, shared by the sessions of the hub
+	 * so that a file is requested from one client at a time
+	 */
+	private final Set<String> requestedPaths;
+	/**
+	 * Workers serving requests of the remote system or null if they are
+	 * served on the thread reading the socket
+	 */
+	private final ExecutorService requestWorkers;
+	/**
+	 * Hashes large local files and builds their signatures off the thread
+	 * reading the socket. Its thread ends once it is idle
+	 */
+	private final ExecutorService fileWorker = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<>(), runnable -> {
+				Thread thread = new Thread(runnable, "file-worker");
+				thread.setDaemon(true);
+				return thread;
+			});
+	/**
+	 * Paths whose local copy is being hashed on the file worker
+	 */
+	private final Set<String> hashingPaths = new HashSet<>();
+	/**
+	 * Paths whose local copy has been hashed on the file worker since their
+	 * difference was deferred
+	 */
+	private final Set<String> hashedPaths = new HashSet<>();
+	private final SyncProperty syncProperty;
+	/**
+	 * Reconciliation of the file tree in progress or null
+	 */
+	private TreeReconciliation treeReconciliation = null;
 
 	public Synchronizer(File syncFolder, FileTree systemFileTree, boolean master, DateTime curDataTime,
-			SocketManager socketManager, ObjectMapper objectMapper) {
+			SocketManager socketManager, ObjectMapper objectMapper, DirectoryWatcher directoryWatcher,
+			HashCache hashCache, GroupCommitter groupCommitter, Set<String> requestedPaths,
+			ExecutorService requestWorkers, SyncProperty syncProperty) {
 		this.syncFolder = syncFolder;
 		this.systemFileTree = systemFileTree;
 		this.master = master;
 		this.curDataTime = curDataTime;
 		this.socketManager = socketManager;
 		this.objectMapper = objectMapper;
+		this.binaryCodec = new PayloadCodec(objectMapper, true);
+		this.jsonCodec = new PayloadCodec(objectMapper, false);
 		this.syncFolderPath = Paths.get(syncFolder.getAbsolutePath());
+		this.directoryWatcher = directoryWatcher;
+		this.hashCache = hashCache;
+		this.groupCommitter = groupCommitter;
+		this.requestedPaths = requestedPaths;
+		this.requestWorkers = requestWorkers;
+		this.syncProperty = syncProperty;
+		this.fileDifferenceToProcess = new TransferQueue(syncProperty.getTransferOrder(),
+				syncProperty.getTransferPriorityPaths());
+		Metrics.gauge("sync_file_differences_queued", "File differences waiting to be requested",
+				fileDifferenceToProcess::size, socketManager.getMetricLabels());
+		Metrics.gauge("sync_file_difference_bytes_queued", "Total size of the files waiting to be requested",
+				fileDifferenceToProcess::getPendingBytes, socketManager.getMetricLabels());
+		Metrics.gauge("sync_pending_requests", "File requests waiting for their reply", pendingRequests::size,
+				socketManager.getMetricLabels());
+		Metrics.gauge("sync_pending_bundles", "Bundle requests waiting for their reply", pendingBundles::size,
+				socketManager.getMetricLabels());
+		Metrics.gauge("sync_incoming_files", "Files and deltas being received", incomingFiles::size,
+				socketManager.getMetricLabels());
 	}
 
 	/**
@@ -69,53 +223,228 @@ public class Synchronizer {
 	 * @throws IOException
 	 */
 	public synchronized void processInput() throws IOException {
-		logger.info("Getting data identifier.");
-		SocketStreamData socketStreamData = socketManager.getDataIdentifier();
-		logger.info("Identifier received: {}", socketStreamData);
+		logger.debug("Getting data identifier.");
+		processFrame(socketManager.getDataIdentifier());
+	}
+
+	/**
+	 * Processes the frame whose header has been received. Control messages are
+	 * read from socket while being decoded
+	 * 
+	 * @param socketStreamData
+	 *            header of the frame
+	 * @throws IOException
+	 */
+	private synchronized void processFrame(SocketStreamData socketStreamData) throws IOException {
+		logger.debug("Identifier received: {}", socketStreamData);
 
-		DataIdentifier dataIdentifier = decoder(socketStreamData.getDataIdentifier());
-		logger.info("Decoded Identifier received: {}", dataIdentifier);
+		DataIdentifier dataIdentifier = socketStreamData.getDataIdentifier();
 		if (dataIdentifier == DataIdentifier.INVALID) {
 			logger.error("Invalid data received. {}", socketStreamData);
+			socketManager.readToFile(null, socketStreamData.getDataSize());
 			return;
 		}
-		long size = socketStreamData.getDataSize();
-		byte[] bytes = null;
-		if (dataIdentifier != DataIdentifier.FIR) {
-			bytes = socketManager.getByteFromSocket(size);
-			logger.info("data bytes received. byte size: {}", bytes.length);
-		}
-		switch (dataIdentifier) {
-		case RTC: // Requests File tree
-			sendFileTree();
-			break;
-		case FIT: // File tree is received
-			processRemoteFileTree(bytes);
-			break;
-		case RTD: // Requests the list of files that have been changed since
-					// last update
-			sendFileTreeDifference(bytes);
-			break;
-		case FID: // List of files that have been changed since last update
-			processFileDifference(bytes);
-			break;
-		case RFI: // Request a copy of file
-			sendRequestedFile(bytes);
-			break;
-		case FIR: // File is being received in the socket
-			processedReceiveFile(size);
-			break;
-		case FNF: // Requested file is not found
-			requestBeingProcessed.getAndSet(false);
-			processFileDifference();
-			break;
-		default:
-			break;
+		if (isFileStream(dataIdentifier)) {
+			receiveFile(dataIdentifier, socketStreamData);
+			return;
+		}
+		try (MessageInputStream in = socketManager.getMessageStream(socketStreamData, this::processBulkFrame)) {
+			switch (dataIdentifier) {
+			case RTC: // Requests File tree
+				sendFileTree();
+				break;
+			case FIT: // File tree is received
+				processRemoteFileTree(in);
+				break;
+			case RTD: // Requests the list of files that have been changed since
+						// last update
+				sendFileTreeDifference(in);
+				break;
+			case FID: // List of files that have been changed since last update
+				processFileDifference(in);
+				break;
+			case RFI: // Request a copy of file
+				serve(IOUtils.toByteArray(in), data -> sendRequestedFile(data, false));
+				break;
+			case RRF: // Request rest of a file
+				serve(IOUtils.toByteArray(in), this::sendRemainingFile);
+				break;
+			case RFS: // Request a copy of file in ranges
+				serve(IOUtils.toByteArray(in), data -> sendRequestedFile(data, true));
+				break;
+			case RRS: // Request missing ranges of a file
+				serve(IOUtils.toByteArray(in), this::sendMissingStripes);
+				break;
+			case FST: // Size of the file whose ranges are sent
+				processStripedFileSize(IOUtils.toByteArray(in));
+				break;
+			case FNF: // Requested file is not found
+				processFileNotFound(IOUtils.toByteArray(in));
+				break;
+			case FSM: // Requested file has the same content as the local copy
+				processSameFile(IOUtils.toByteArray(in));
+				break;
+			case RDL: // Request delta of a file
+				serve(IOUtils.toByteArray(in), this::sendRequestedDelta);
+				break;
+			case RDG: // Request listing of directories whose digest differs
+				sendDirectoryListings(in);
+				break;
+			case DIG: // Listing of requested directories
+				processDirectoryListings(in);
+				break;
+			case RBN: // Request many small files at once
+				sendRequestedBundle(IOUtils.toByteArray(in));
+				break;
+			case BND: // Requested small files back to back
+				processReceivedBundle(in);
+				break;
+			case CHG: // Sync folder of remote system has changed
+				changesAnnounced = true;
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Serves the request on a worker, if any, so that the socket is read
+	 * while files are being hashed, diffed and queued. Session is closed if
+	 * the request cannot be served, as the requester would wait for it
+	 * forever
+	 * 
+	 * @param data
+	 *            request
+	 * @param requestHandler
+	 *            serves the request
+	 * @throws IOException
+	 */
+	private void serve(byte[] data, RequestHandler requestHandler) throws IOException {
+		if (requestWorkers == null) {
+			requestHandler.serve(data);
+			return;
+		}
+		requestWorkers.execute(() -> {
+			try {
+				requestHandler.serve(data);
+			} catch (IOException e) {
+				logger.error("Cannot serve request. Closing connection.", e);
+				socketManager.disconnect();
+			}
+		});
+	}
+
+	/**
+	 * Processes a frame received while a control message is being read. Only
+	 * frames of files and deltas are sent in between
+	 * 
+	 * @param socketStreamData
+	 *            header of the frame
+	 * @throws IOException
+	 */
+	private synchronized void processBulkFrame(SocketStreamData socketStreamData) throws IOException {
+		DataIdentifier dataIdentifier = socketStreamData.getDataIdentifier();
+		if (!isFileStream(dataIdentifier)) {
+			logger.error("Control message received before the end of another. {}", socketStreamData);
+			throw new IOException();
 		}
+		receiveFile(dataIdentifier, socketStreamData);
+	}
+
+	/**
+	 * @param dataIdentifier
+	 * @return true if data is sent as a bulk stream of a file, rest of a file
+	 *         or delta
+	 */
+	private static boolean isFileStream(DataIdentifier dataIdentifier) {
+		return dataIdentifier == DataIdentifier.FIR || dataIdentifier == DataIdentifier.FRM
+				|| dataIdentifier == DataIdentifier.FDL;
 	}
 
 	/**
-	 * Request the file tree of the sync folder from the client
+	 * Writes the received part of a file or delta from socket to its spool
+	 * file. First part starts with the request ID, followed by the offset for
+	 * the rest of a file. File is processed once the last part is received.
+	 * Progress of a large file is kept so that it can be resumed if the
+	 * transfer is interrupted
+	 * 
+	 * @param dataIdentifier
+	 *            FIR, FRM or FDL
+	 * @param socketStreamData
+	 *            header of the received part
+	 * @throws IOException
+	 */
+	private synchronized void receiveFile(DataIdentifier dataIdentifier, SocketStreamData socketStreamData)
+			throws IOException {
+		int streamId = socketStreamData.getStreamId();
+		IncomingFile incomingFile = incomingFiles.get(streamId);
+		try {
+			long size = socketStreamData.getDataSize();
+			if (incomingFile == null) {
+				long requestId = Longs.fromByteArray(socketManager.getByteFromSocket(Long.BYTES));
+				size -= Long.BYTES;
+				long offset = 0L;
+				if (dataIdentifier == DataIdentifier.FRM) {
+					offset = Longs.fromByteArray(socketManager.getByteFromSocket(Long.BYTES));
+					size -= Long.BYTES;
+				}
+				// File requested in ranges is sent whole if there is no data
+				// connection on the remote system or its version has changed
+				boolean striped = socketManager.cancelStripes(requestId);
+				FileDifference fileDifference = pendingRequests.get(requestId);
+				Path spoolPath = null;
+				Path partialPath = null;
+				if (fileDifference == null) {
+					logger.error("Received data was not requested. Request ID: {}", requestId);
+				} else if (dataIdentifier != DataIdentifier.FDL) {
+					Path path = syncFolderPath.resolve(fileDifference.getPath());
+					if (!Files.exists(path.getParent())) {
+						Files.createDirectories(path.getParent());
+					}
+					spoolPath = DirectoryUtils.getTemporaryFile(path);
+					if (striped) {
+						Files.deleteIfExists(DirectoryUtils.getPartialStripesFile(path));
+					}
+					if (isResumable(fileDifference)) {
+						partialPath = DirectoryUtils.getPartialFile(path);
+					}
+				} else {
+					spoolPath = Files.createTempFile("delta", DirectoryUtils.TEMPORARY_FILE_SUFFIX);
+				}
+				incomingFile = new IncomingFile(requestId, fileDifference, spoolPath, partialPath,
+						syncProperty.getResumeChunkSize(), offset);
+				incomingFiles.put(streamId, incomingFile);
+			}
+			socketManager.readToFile(incomingFile.getChannel(), size);
+			if (!socketStreamData.isLast()) {
+				return;
+			}
+
+			incomingFiles.remove(streamId);
+			incomingFile.finish();
+			if (incomingFile.getFileDifference() == null) {
+				return;
+			}
+			if (dataIdentifier != DataIdentifier.FDL) {
+				processedReceiveFile(incomingFile);
+			} else {
+				processReceivedDelta(incomingFile);
+			}
+		} catch (Exception e) {
+			if (incomingFile != null) {
+				incomingFiles.remove(streamId);
+				incomingFile.suspend();
+			}
+			logger.error("Unexpected error. Exitting.", e);
+			throw new IOException();
+		}
+	}
+
+	/**
+	 * Starts reconciliation of the file tree with the client by sending the
+	 * digest of the sync folder. Only the directories whose digest differs are
+	 * exchanged afterwards
 	 * 
 	 * @return true if success
 	 * @throws IOException
@@ -127,8 +456,11 @@ public class Synchronizer {
 		}
 
 		try {
-			logger.info("Requesting file tree.");
-			socketManager.sendByteToSocket(DataIdentifier.RTC, new byte[2]);
+			logger.info("Requesting directory listing.");
+			curDataTime = new DateTime();
+			systemFileTree = directoryWatcher.snapshot();
+			treeReconciliation = new TreeReconciliation(systemFileTree);
+			sendDirectoryDigests(treeReconciliation.start());
 			return true;
 		} catch (Exception e) {
 			logger.error("Unexpected error. Exitting.", e);
@@ -144,20 +476,13 @@ public class Synchronizer {
 	 * @throws IOException
 	 */
 	private synchronized void sendFileTree() throws IOException {
-		byte[] bytes;
-		try {
-			logger.info("Serializing file tree.");
-			FileTreeWrapper fileTreeWrapper = new FileTreeWrapper(systemFileTree, curDataTime);
-			logger.info("FileTree Wrapper: {}, ObjectMapper: {}", fileTreeWrapper, objectMapper);
-			bytes = objectMapper.writeValueAsBytes(fileTreeWrapper);
-		} catch (JsonProcessingException e) {
-			logger.error("Unexpected error. Exitting.", e);
-			throw new IOException();
-		}
-
-		try {
+		logger.info("Serializing file tree.");
+		hashCache.annotate(systemFileTree);
+		FileTreeWrapper fileTreeWrapper = new FileTreeWrapper(systemFileTree, curDataTime);
+		logger.info("FileTree Wrapper: {}, ObjectMapper: {}", fileTreeWrapper, objectMapper);
+		try (MessageOutputStream out = socketManager.openMessage(DataIdentifier.FIT)) {
 			logger.info("Sending file tree.");
-			socketManager.sendByteToSocket(DataIdentifier.FIT, bytes);
+			payloadCodec().encode(fileTreeWrapper, out);
 		} catch (IOException e) {
 			logger.error("Socket error. Cannot send data. Exitting.", e);
 			throw new IOException();
@@ -170,24 +495,24 @@ public class Synchronizer {
 	 * side. Also, update the differences that needs to be done in master side.
 	 * It queues the differences to be processed one by one
 	 * 
-	 * @param data
-	 *            file tree in bytes
+	 * @param in
+	 *            file tree being received
 	 * @throws IOException
 	 */
-	private synchronized void processRemoteFileTree(byte[] data) throws IOException {
+	private synchronized void processRemoteFileTree(InputStream in) throws IOException {
 		FileTreeWrapper remoteFileTreeWrapper;
 		try {
 			logger.info("Deserializing file tree wrapper.");
-			remoteFileTreeWrapper = objectMapper.readValue(data, FileTreeWrapper.class);
+			remoteFileTreeWrapper = payloadCodec().decodeFileTreeWrapper(in);
 		} catch (Exception e) {
 			initialSyncBeingWorked.set(false);
-			logger.error(MessageFormat.format("Cannot parse data time.", data), e);
+			logger.error("Cannot parse file tree.", e);
 			throw new IOException();
 		}
 
 		try {
 			curDataTime = new DateTime();
-			systemFileTree = DirectoryUtils.createFileTree(syncFolder);
+			systemFileTree = directoryWatcher.snapshot();
 
 			logger.info("Calculating file tree difference for the current system.");
 			List<FileDifference> fileDifferences = DirectoryUtils
@@ -208,6 +533,7 @@ public class Synchronizer {
 			List<FileDifference> remoteFileDifference = new ArrayList<>(fileDifferences.size());
 			for (FileDifference fileDifference : fileDifferences) {
 				if (fileDifference.getFileOperation() != FileOperation.DELETE) {
+					hashCache.annotate(fileDifference);
 					remoteFileDifference.add(fileDifference);
 				}
 			}
@@ -225,6 +551,93 @@ public class Synchronizer {
 		}
 	}
 
+	/**
+	 * Sends listing of the requested directories whose digest differs from
+	 * the requester's copy
+	 * 
+	 * @param in
+	 *            requested directories being received
+	 * @throws IOException
+	 */
+	private synchronized void sendDirectoryListings(InputStream in) throws IOException {
+		try {
+			List<DirectoryDigest> directoryDigests = payloadCodec().decodeDirectoryDigests(in);
+			List<DirectoryListing> directoryListings = new ArrayList<>(directoryDigests.size());
+			for (DirectoryDigest directoryDigest : directoryDigests) {
+				FileTree directory = directoryWatcher.list(directoryDigest.getPath());
+				if (directory == null) {
+					directoryListings.add(new DirectoryListing(directoryDigest.getPath(), false, null));
+				} else if (directory.getDigest().equals(directoryDigest.getDigest())) {
+					directoryListings.add(new DirectoryListing(directoryDigest.getPath(), true, null));
+				} else {
+					hashCache.annotate(directory);
+					directoryListings
+							.add(new DirectoryListing(directoryDigest.getPath(), false, directory.getChilds()));
+				}
+			}
+			logger.info("Sending listing of {} directories.", directoryListings.size());
+			try (MessageOutputStream out = socketManager.openMessage(DataIdentifier.DIG)) {
+				payloadCodec().encodeDirectoryListings(directoryListings, out);
+			}
+		} catch (Exception e) {
+			logger.error("Unexpected error. Exitting.", e);
+			throw new IOException();
+		}
+	}
+
+	/**
+	 * Compares the received directory listings with the local directories.
+	 * Directories which still differ are requested, otherwise the differences
+	 * are queued for processing and sent to the client
+	 * 
+	 * @param in
+	 *            directory listings being received
+	 * @throws IOException
+	 */
+	private synchronized void processDirectoryListings(InputStream in) throws IOException {
+		if (treeReconciliation == null) {
+			logger.error("Directory listing received without reconciliation in progress.");
+			return;
+		}
+		try {
+			List<DirectoryDigest> nextRequests = treeReconciliation.compare(payloadCodec().decodeDirectoryListings(in));
+			if (!nextRequests.isEmpty()) {
+				sendDirectoryDigests(nextRequests);
+				return;
+			}
+
+			logger.info("File tree reconciled in {} rounds.", treeReconciliation.getRounds());
+			fileDifferenceToProcess.addAll(treeReconciliation.getLocalFileDifferences());
+			List<FileDifference> remoteFileDifference = treeReconciliation.getRemoteFileDifferences();
+			for (FileDifference fileDifference : remoteFileDifference) {
+				hashCache.annotate(fileDifference);
+			}
+			treeReconciliation = null;
+			sendFileDifferenceData(new FileDifferenceData(remoteFileDifference, lastUpdateTime, curDataTime));
+
+			processFileDifference();
+
+			initialSyncComplete = true;
+		} catch (Exception e) {
+			logger.error("Unexpected error. Exitting.", e);
+			treeReconciliation = null;
+			initialSyncBeingWorked.set(false);
+			throw new IOException();
+		}
+	}
+
+	/**
+	 * @param directoryDigests
+	 *            directories whose listing is requested
+	 * @throws IOException
+	 */
+	private void sendDirectoryDigests(List<DirectoryDigest> directoryDigests) throws IOException {
+		logger.info("Requesting listing of {} directories.", directoryDigests.size());
+		try (MessageOutputStream out = socketManager.openMessage(DataIdentifier.RDG)) {
+			payloadCodec().encodeDirectoryDigests(directoryDigests, out);
+		}
+	}
+
 	/**
 	 * Requests file difference from remote system to update the current folder
 	 * and maintain the data in sync
@@ -234,17 +647,19 @@ public class Synchronizer {
 	 */
 	public synchronized boolean requestFileDifference() throws IOException {
 
-		if (!requestBeingProcessed.compareAndSet(false, true)) {
+		if (!differenceBeingRequested.compareAndSet(false, true)) {
 			return false;
 		}
 		try {
 			logger.info("Requesting file difference.");
-			byte[] bytes = objectMapper.writeValueAsBytes(lastUpdateTime);
-			socketManager.sendByteToSocket(DataIdentifier.RTD, bytes);
+			changesAnnounced = false;
+			try (MessageOutputStream out = socketManager.openMessage(DataIdentifier.RTD)) {
+				objectMapper.writeValue(out, lastUpdateTime);
+			}
 			return true;
 		} catch (Exception e) {
 			logger.error("Unexpected error. Exitting.", e);
-			requestBeingProcessed.set(false);
+			differenceBeingRequested.set(false);
 			throw new IOException();
 		}
 	}
@@ -252,19 +667,19 @@ public class Synchronizer {
 	/**
 	 * Sends file difference to remote system for maintaining sync
 	 * 
-	 * @param data
-	 *            time when last sync was done
+	 * @param in
+	 *            time when last sync was done, being received
 	 * @throws IOException
 	 */
-	private synchronized void sendFileTreeDifference(byte[] data) throws IOException {
+	private synchronized void sendFileTreeDifference(InputStream in) throws IOException {
 
 		DateTime remoteLastUpdateTime;
 		try {
 
-			remoteLastUpdateTime = objectMapper.readValue(data, DateTime.class);
+			remoteLastUpdateTime = objectMapper.readValue(in, DateTime.class);
 
 		} catch (Exception e) {
-			logger.error(MessageFormat.format("Cannot parse data time. Exitting", data), e);
+			logger.error("Cannot parse data time. Exitting", e);
 			throw new IOException();
 
 		}
@@ -275,16 +690,16 @@ public class Synchronizer {
 	 * Processes received file difference and update the files that have changed
 	 * in remote system
 	 * 
-	 * @param data
-	 *            file difference in bytes
+	 * @param in
+	 *            file difference being received
 	 * @throws IOException
 	 */
-	private synchronized void processFileDifference(byte[] data) throws IOException {
+	private synchronized void processFileDifference(InputStream in) throws IOException {
 		FileDifferenceData fileDifferenceData;
 		try {
-			fileDifferenceData = objectMapper.readValue(data, FileDifferenceData.class);
+			fileDifferenceData = payloadCodec().decodeFileDifferenceData(in);
 		} catch (Exception e) {
-			logger.error(MessageFormat.format("Cannot parse file difference data. Exitting", data), e);
+			logger.error("Cannot parse file difference data. Exitting", e);
 			throw new IOException();
 		}
 
@@ -297,7 +712,13 @@ public class Synchronizer {
 					if (remoteCurrentDataTime.isAfter(DirectoryUtils.getLastModifiedTime(path))) {
 
 						if (fileDifference.getFileOperation() == FileOperation.DELETE) {
-							Files.deleteIfExists(path);
+							DirectoryUtils.delete(path);
+						} else if (fileDifference.getFileOperation() == FileOperation.MOVE) {
+							if (!moveFile(fileDifference, path)) {
+								fileDifferenceToProcess.add(new FileDifference(FileOperation.UPDATE,
+										fileDifference.getPath(), fileDifference.getLastModified(),
+										fileDifference.getSize(), fileDifference.getHash()));
+							}
 						} else {
 							fileDifferenceToProcess.add(fileDifference);
 						}
@@ -307,36 +728,77 @@ public class Synchronizer {
 				}
 			}
 
-			requestBeingProcessed.set(false);
+			differenceBeingRequested.set(false);
 			processFileDifference();
 			initialSyncComplete = true;
 		} catch (Exception e) {
-			requestBeingProcessed.set(false);
+			differenceBeingRequested.set(false);
 			logger.error("Unexpected Error. Exitting.", e);
 			throw new IOException();
 		}
 	}
 
+	/**
+	 * Renames the local copy of the source of the move to its path. Copy is
+	 * renamed only if its content is the same as that of the moved file
+	 *
+	 * @param fileDifference
+	 *            move of the file
+	 * @param path
+	 *            absolute path the file is moved to
+	 * @return true if the file is moved, false if it is to be requested
+	 * @throws IOException
+	 */
+	private boolean moveFile(FileDifference fileDifference, Path path) throws IOException {
+		Path sourcePath = syncFolderPath.resolve(fileDifference.getSourcePath());
+		if (!Files.isRegularFile(sourcePath) || Files.size(sourcePath) != fileDifference.getSize()
+				|| Files.isDirectory(path) || isPending(fileDifference.getPath())
+				|| isPending(fileDifference.getSourcePath())
+				|| !hashCache.getHash(sourcePath).equals(fileDifference.getHash())) {
+			return false;
+		}
+		Files.createDirectories(path.getParent());
+		Files.move(sourcePath, path, StandardCopyOption.REPLACE_EXISTING);
+		Files.setLastModifiedTime(path, FileTime.fromMillis(fileDifference.getLastModified().getMillis()));
+		movedFiles.inc();
+		logger.info("File moved: {} -> {}", fileDifference.getSourcePath(), fileDifference.getPath());
+		return true;
+	}
+
 	/**
 	 * Sends requested file
 	 * 
 	 * @param data
-	 *            path of the file in bytes
+	 *            request ID followed by path of the file in bytes
+	 * @param striped
+	 *            true if the file is to be sent in ranges over the data
+	 *            connections
 	 * @throws IOException
 	 */
-	private synchronized void sendRequestedFile(byte[] data) throws IOException {
+	private void sendRequestedFile(byte[] data, boolean striped) throws IOException {
 
 		try {
-			String pathStr = new String(data);
-			Path path = syncFolderPath.resolve(pathStr);
+			byte[] requestId = Arrays.copyOf(data, Long.BYTES);
+			// Path is followed by the hash of requester's copy if it has one
+			String[] request = new String(data, Long.BYTES, data.length - Long.BYTES).split(HASH_SEPARATOR, 2);
+			Path path = syncFolderPath.resolve(request[0]);
 			if (!Files.exists(path)) {
 				logger.info("File not found.");
-				socketManager.sendByteToSocket(DataIdentifier.FNF, new byte[1]);
+				socketManager.sendByteToSocket(DataIdentifier.FNF, requestId);
+				return;
+			}
+			if (request.length > 1 && request[1].equals(hashCache.getHash(path))) {
+				logger.info("Requested file has same content.");
+				socketManager.sendByteToSocket(DataIdentifier.FSM, requestId);
+				return;
+			}
+			if (striped && socketManager.getDataConnectionCount() > 0) {
+				sendStripes(Longs.fromByteArray(requestId), path);
 				return;
 			}
 			File file = new File(path.toString());
 			logger.info("Sending requested file");
-			socketManager.sendFile(file.length(), new FileInputStream(file));
+			socketManager.sendFile(requestId, file.length(), FileChannel.open(path, StandardOpenOption.READ));
 		} catch (Exception e) {
 			logger.error("Unexpected error. Exitting.", e);
 			throw new IOException();
@@ -344,98 +806,862 @@ public class Synchronizer {
 	}
 
 	/**
-	 * Save file that was requested
+	 * Sends rest of the requested file if it is still the version whose
+	 * earlier part the requester has, otherwise sends the whole file
 	 * 
-	 * @param size
-	 *            size of the file in bytes
+	 * @param data
+	 *            request ID, offset, last modified time and size of the
+	 *            requested version followed by path of the file in bytes
 	 * @throws IOException
 	 */
-	private synchronized void processedReceiveFile(long size) throws IOException {
+	private void sendRemainingFile(byte[] data) throws IOException {
 		try {
-			String pathStr = new String(curProcessingFileDifference.getPath());
-			Path path = syncFolderPath.resolve(pathStr);
-			if (Files.exists(path)) {
-				Files.delete(path);
+			ByteBuffer request = ByteBuffer.wrap(data);
+			long requestId = request.getLong();
+			long offset = request.getLong();
+			long lastModified = request.getLong();
+			long size = request.getLong();
+			Path path = syncFolderPath.resolve(new String(data, request.position(), request.remaining()));
+			if (!Files.exists(path)) {
+				logger.info("File not found.");
+				socketManager.sendByteToSocket(DataIdentifier.FNF, Longs.toByteArray(requestId));
+				return;
+			}
+			// Channel is closed by the socket manager once it is queued
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			boolean queued = false;
+			try {
+				if (DirectoryUtils.getLastModifiedTime(path) != lastModified || channel.size() != size
+						|| offset < 0 || offset > size) {
+					logger.info("Requested version has changed. Sending whole file");
+					long channelSize = channel.size();
+					queued = true;
+					socketManager.sendFile(Longs.toByteArray(requestId), channelSize, channel);
+					return;
+				}
+				logger.info("Sending rest of requested file from offset {}", offset);
+				channel.position(offset);
+				queued = true;
+				socketManager.sendStream(DataIdentifier.FRM,
+						Bytes.concat(Longs.toByteArray(requestId), Longs.toByteArray(offset)), size - offset,
+						channel);
+			} finally {
+				if (!queued) {
+					IOUtils.closeQuietly(channel);
+				}
 			}
+		} catch (Exception e) {
+			logger.error("Unexpected error. Exitting.", e);
+			throw new IOException();
+		}
+	}
 
-			if (!Files.exists(path.getParent())) {
-				Files.createDirectories(path.getParent());
+	/**
+	 * Requests rest of the file whose earlier part was received before the
+	 * transfer was interrupted
+	 * 
+	 * @param requestId
+	 * @param fileDifference
+	 *            file to be requested
+	 * @param offset
+	 *            size of the part already received
+	 * @throws IOException
+	 */
+	private void requestRemainingFile(long requestId, FileDifference fileDifference, long offset)
+			throws IOException {
+		logger.info("Resuming {} from offset {}", fileDifference.getPath(), offset);
+		ByteBuffer request = ByteBuffer.allocate(4 * Long.BYTES);
+		request.putLong(requestId).putLong(offset).putLong(fileDifference.getLastModified().getMillis())
+				.putLong(fileDifference.getSize());
+		socketManager.sendByteToSocket(DataIdentifier.RRF,
+				Bytes.concat(request.array(), fileDifference.getPath().getBytes()));
+		resumeRequests.inc();
+	}
+
+	/**
+	 * @param fileDifference
+	 * @return true if progress of the file is kept while it is received
+	 */
+	private boolean isResumable(FileDifference fileDifference) {
+		return syncProperty.getResumeChunkSize() > 0 && fileDifference.getSize() >= syncProperty.getResumeChunkSize();
+	}
+
+	/**
+	 * @param fileDifference
+	 * @return true if progress of the file is kept while it is received in
+	 *         ranges
+	 */
+	private boolean isRangeResumable(FileDifference fileDifference) {
+		return isResumable(fileDifference) && socketManager.getSettings().has(Handshake.RANGE_RESUME);
+	}
+
+	/**
+	 * Sends size of the file followed by its ranges, one on each data
+	 * connection, so that they are sent in parallel
+	 * 
+	 * @param requestId
+	 * @param path
+	 *            file to be sent
+	 * @throws IOException
+	 */
+	private void sendStripes(long requestId, Path path) throws IOException {
+		long size = Files.size(path);
+		int connections = socketManager.getDataConnectionCount();
+		long rangeSize = (size + connections - 1) / connections;
+		logger.info("Sending requested file in {} ranges of {} bytes", connections, rangeSize);
+		socketManager.sendByteToSocket(DataIdentifier.FST,
+				Bytes.concat(Longs.toByteArray(requestId), Longs.toByteArray(size)));
+		for (int i = 0; i < connections && i * rangeSize < size; i++) {
+			long offset = i * rangeSize;
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			channel.position(offset);
+			socketManager.sendStripe(i, requestId, offset, Math.min(rangeSize, size - offset), channel);
+		}
+	}
+
+	/**
+	 * Requests the file in ranges over the data connections. Ranges are
+	 * written straight to the spool file at their offset as they arrive
+	 * 
+	 * @param requestId
+	 * @param fileDifference
+	 *            file to be requested
+	 * @param hash
+	 *            content hash of the local copy or null if there is none
+	 * @throws IOException
+	 */
+	private void requestStripes(long requestId, FileDifference fileDifference, String hash) throws IOException {
+		Path path = syncFolderPath.resolve(fileDifference.getPath());
+		if (!Files.exists(path.getParent())) {
+			Files.createDirectories(path.getParent());
+		}
+		Path stripesPath = DirectoryUtils.getPartialStripesFile(path);
+		Files.deleteIfExists(DirectoryUtils.getPartialFile(path));
+		Files.deleteIfExists(stripesPath);
+		FileChannel spool = FileChannel.open(DirectoryUtils.getTemporaryFile(path), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		socketManager.expectStripes(requestId, spool,
+				isRangeResumable(fileDifference) ? PartialStripes.start(stripesPath, fileDifference,
+						syncProperty.getResumeChunkSize(), false) : null,
+				-1L);
+		String request = hash == null ? fileDifference.getPath() : fileDifference.getPath() + HASH_SEPARATOR + hash;
+		socketManager.sendByteToSocket(DataIdentifier.RFS, toRequest(requestId, request));
+		stripedRequests.inc();
+	}
+
+	/**
+	 * Requests the ranges of the file that were not received before the
+	 * transfer was interrupted
+	 * 
+	 * @param requestId
+	 * @param fileDifference
+	 *            file to be requested
+	 * @param missingRanges
+	 *            offset and length of each range to be received
+	 * @throws IOException
+	 */
+	private void requestMissingStripes(long requestId, FileDifference fileDifference, List<long[]> missingRanges)
+			throws IOException {
+		Path path = syncFolderPath.resolve(fileDifference.getPath());
+		long missing = 0L;
+		ByteBuffer request = ByteBuffer.allocate(3 * Long.BYTES + Integer.BYTES + missingRanges.size() * 2 * Long.BYTES);
+		request.putLong(requestId).putLong(fileDifference.getLastModified().getMillis())
+				.putLong(fileDifference.getSize()).putInt(missingRanges.size());
+		for (long[] range : missingRanges) {
+			request.putLong(range[0]).putLong(range[1]);
+			missing += range[1];
+		}
+		logger.info("Resuming {} in {} ranges, {} bytes missing", fileDifference.getPath(), missingRanges.size(),
+				missing);
+		socketManager.expectStripes(requestId,
+				FileChannel.open(DirectoryUtils.getTemporaryFile(path), StandardOpenOption.WRITE),
+				PartialStripes.start(DirectoryUtils.getPartialStripesFile(path), fileDifference,
+						syncProperty.getResumeChunkSize(), true),
+				missing);
+		socketManager.sendByteToSocket(DataIdentifier.RRS,
+				Bytes.concat(request.array(), fileDifference.getPath().getBytes()));
+		resumeRequests.inc();
+	}
+
+	/**
+	 * Sends the requested ranges of the file if it is still the version whose
+	 * other ranges the requester has, otherwise sends the whole file
+	 * 
+	 * @param data
+	 *            request ID, last modified time and size of the requested
+	 *            version, number of ranges and offset and length of each
+	 *            followed by path of the file in bytes
+	 * @throws IOException
+	 */
+	private void sendMissingStripes(byte[] data) throws IOException {
+		try {
+			ByteBuffer request = ByteBuffer.wrap(data);
+			long requestId = request.getLong();
+			long lastModified = request.getLong();
+			long size = request.getLong();
+			int count = request.getInt();
+			if (count < 0 || count > request.remaining() / (2 * Long.BYTES)) {
+				throw new IOException("Invalid number of requested ranges: " + count);
+			}
+			long[][] ranges = new long[count][];
+			boolean valid = true;
+			for (int i = 0; i < ranges.length; i++) {
+				ranges[i] = new long[] { request.getLong(), request.getLong() };
+				valid &= ranges[i][0] >= 0 && ranges[i][0] <= size && ranges[i][1] > 0
+						&& ranges[i][1] <= size - ranges[i][0];
+			}
+			Path path = syncFolderPath.resolve(new String(data, request.position(), request.remaining()));
+			if (!Files.exists(path)) {
+				logger.info("File not found.");
+				socketManager.sendByteToSocket(DataIdentifier.FNF, Longs.toByteArray(requestId));
+				return;
+			}
+			// Channel is closed by the socket manager once it is queued
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			boolean queued = false;
+			try {
+				if (DirectoryUtils.getLastModifiedTime(path) != lastModified || channel.size() != size || !valid
+						|| socketManager.getDataConnectionCount() == 0) {
+					logger.info("Requested version has changed. Sending whole file");
+					long channelSize = channel.size();
+					queued = true;
+					socketManager.sendFile(Longs.toByteArray(requestId), channelSize, channel);
+					return;
+				}
+			} finally {
+				if (!queued) {
+					IOUtils.closeQuietly(channel);
+				}
+			}
+			logger.info("Sending {} missing ranges of requested file", ranges.length);
+			socketManager.sendByteToSocket(DataIdentifier.FST,
+					Bytes.concat(Longs.toByteArray(requestId), Longs.toByteArray(size)));
+			for (int i = 0; i < ranges.length; i++) {
+				FileChannel rangeChannel = FileChannel.open(path, StandardOpenOption.READ);
+				rangeChannel.position(ranges[i][0]);
+				socketManager.sendStripe(i, requestId, ranges[i][0], ranges[i][1], rangeChannel);
 			}
-			socketManager.readFile(Files.newOutputStream(path), size);
-			Files.setLastModifiedTime(path,
-					FileTime.fromMillis(curProcessingFileDifference.getLastModified().getMillis()));
-			requestBeingProcessed.getAndSet(false);
-			processFileDifference();
 		} catch (Exception e) {
-			requestBeingProcessed.getAndSet(false);
 			logger.error("Unexpected error. Exitting.", e);
 			throw new IOException();
 		}
 	}
 
 	/**
-	 * Fetch a file difference from queue and if the same local is out dated,
-	 * than that file is requested from remote system.
+	 * Sets size of the file being received in ranges
 	 * 
-	 * @return true if success
+	 * @param data
+	 *            request ID followed by size of the file in bytes
+	 */
+	private synchronized void processStripedFileSize(byte[] data) {
+		long requestId = Longs.fromByteArray(Arrays.copyOf(data, Long.BYTES));
+		long size = Longs.fromByteArray(Arrays.copyOfRange(data, Long.BYTES, Long.BYTES + Long.BYTES));
+		logger.info("Receiving file in ranges. Request ID: {}, size: {}", requestId, size);
+		socketManager.setStripedSize(requestId, size);
+	}
+
+	/**
+	 * Save file whose ranges have all been received
+	 * 
+	 * @param requestId
 	 * @throws IOException
 	 */
-	public synchronized boolean processFileDifference() throws IOException {
+	public synchronized void processReceivedStripes(long requestId) throws IOException {
+		FileDifference fileDifference = completeRequest(requestId);
+		if (fileDifference == null) {
+			return;
+		}
+		try {
+			Path path = syncFolderPath.resolve(fileDifference.getPath());
+			moveInPlace(DirectoryUtils.getTemporaryFile(path), fileDifference);
+			Files.deleteIfExists(DirectoryUtils.getPartialStripesFile(path));
+			receivedFiles.inc();
+		} catch (Exception e) {
+			logger.error("Unexpected error. Exitting.", e);
+			throw new IOException();
+		}
+		processFileDifference();
+	}
 
-		if (!requestBeingProcessed.compareAndSet(false, true)) {
-			logger.info("Request being processed.");
-			return false;
+	/**
+	 * Stops receiving ranges of the request, if any, and deletes its spool
+	 * file and progress
+	 * 
+	 * @param requestId
+	 * @param fileDifference
+	 *            requested file
+	 * @throws IOException
+	 */
+	private void cancelStripes(long requestId, FileDifference fileDifference) throws IOException {
+		if (socketManager.cancelStripes(requestId) && fileDifference != null) {
+			Path path = syncFolderPath.resolve(fileDifference.getPath());
+			Files.deleteIfExists(DirectoryUtils.getTemporaryFile(path));
+			Files.deleteIfExists(DirectoryUtils.getPartialStripesFile(path));
 		}
-		logger.info("Processing file difference.");
-		if (fileDifferenceToProcess.isEmpty()) {
-			logger.info("No file to be processed.");
-			requestBeingProcessed.set(false);
-			return false;
+	}
+
+	/**
+	 * Save file that was requested. File is moved in place of the local copy
+	 * only after it is received completely
+	 * 
+	 * @param incomingFile
+	 *            received file
+	 * @throws IOException
+	 */
+	private synchronized void processedReceiveFile(IncomingFile incomingFile) throws IOException {
+		FileDifference fileDifference = completeRequest(incomingFile.getRequestId());
+		moveInPlace(incomingFile.getSpoolPath(), fileDifference);
+		receivedFiles.inc();
+		processFileDifference();
+	}
+
+	/**
+	 * Sets last modified time of the received file and commits it in place of
+	 * the local copy
+	 * 
+	 * @param temporaryPath
+	 *            where the file has been received
+	 * @param fileDifference
+	 *            requested file
+	 * @throws IOException
+	 */
+	private void moveInPlace(Path temporaryPath, FileDifference fileDifference) throws IOException {
+		Path path = syncFolderPath.resolve(fileDifference.getPath());
+		Files.setLastModifiedTime(temporaryPath, FileTime.fromMillis(fileDifference.getLastModified().getMillis()));
+		groupCommitter.commit(temporaryPath, path);
+	}
+
+	/**
+	 * Requests small files together. Each file is named along with the hash
+	 * of the local copy, if any, so that it is not sent if it has the same
+	 * content
+	 * 
+	 * @param bundle
+	 *            files to be requested
+	 * @param hashes
+	 *            hashes of the local copies, null for a missing copy
+	 * @throws IOException
+	 */
+	private void requestBundle(List<FileDifference> bundle, List<String> hashes) throws IOException {
+		long requestId = ++lastRequestId;
+		logger.info("Requesting bundle of {} files. Request ID: {}", bundle.size(), requestId);
+		pendingBundles.put(requestId, bundle);
+		requestStartTimes.put(requestId, System.nanoTime());
+		bundleRequests.inc();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeLong(requestId);
+			out.writeInt(bundle.size());
+			for (int i = 0; i < bundle.size(); i++) {
+				out.writeUTF(bundle.get(i).getPath());
+				out.writeUTF(hashes.get(i) == null ? "" : hashes.get(i));
+			}
 		}
+		socketManager.sendByteToSocket(DataIdentifier.RBN, bytes.toByteArray());
+	}
 
-		FileDifference fileDifference;
-		Path path;
-		do {
-			fileDifference = fileDifferenceToProcess.poll();
-			path = syncFolderPath.resolve(fileDifference.getPath());
-		} while (fileDifferenceToProcess.size() > 0
-				&& fileDifference.getLastModified().isBefore(DirectoryUtils.getLastModifiedTime(path)));
+	/**
+	 * Sends the requested files back to back in the order they were requested.
+	 * Each entry is its status followed, for a file, by its size and content.
+	 * Files larger than the bundle limit are reported missing rather than
+	 * read into memory
+	 * 
+	 * @param data
+	 *            request ID, number of files and path and hash of each file
+	 * @throws IOException
+	 */
+	private synchronized void sendRequestedBundle(byte[] data) throws IOException {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+				DataOutputStream out = new DataOutputStream(socketManager.openMessage(DataIdentifier.BND))) {
+			out.writeLong(in.readLong());
+			int count = in.readInt();
+			logger.info("Sending bundle of {} files.", count);
+			for (int i = 0; i < count; i++) {
+				Path path = syncFolderPath.resolve(in.readUTF());
+				String hash = in.readUTF();
+				if (!Files.isRegularFile(path) || Files.size(path) > syncProperty.getBundleMaxFileSize()) {
+					// File that has grown since it was announced is sent as a
+					// difference of its own once its change is detected
+					out.writeByte(BUNDLE_MISSING);
+				} else if (!hash.isEmpty() && hash.equals(hashCache.getHash(path))) {
+					out.writeByte(BUNDLE_SAME);
+				} else {
+					// Read whole so that the size sent matches the content even
+					// if the file is being written
+					byte[] content = Files.readAllBytes(path);
+					out.writeByte(BUNDLE_FILE);
+					out.writeLong(content.length);
+					out.write(content);
+				}
+			}
+		} catch (Exception e) {
+			logger.error("Unexpected error. Exitting.", e);
+			throw new IOException();
+		}
+	}
 
-		logger.info("File last modified: {}, Path: {}", DirectoryUtils.getLastModifiedTime(path),
-				fileDifference.getPath());
-		if (fileDifference.getLastModified().isAfter(DirectoryUtils.getLastModifiedTime(path))
-				&& !Files.isDirectory(path)) {
-			logger.info("Processing file difference: {}", fileDifference);
-			curProcessingFileDifference = fileDifference;
-			socketManager.sendByteToSocket(DataIdentifier.RFI, fileDifference.getPath().getBytes());
-		} else {
-			requestBeingProcessed.set(false);
+	/**
+	 * Unpacks the received bundle in one pass. Each file is written next to
+	 * its local copy and moved in place as soon as it is received
+	 * 
+	 * @param in
+	 *            bundle being received
+	 * @throws IOException
+	 */
+	private synchronized void processReceivedBundle(InputStream in) throws IOException {
+		Path temporaryPath = null;
+		try {
+			DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+			long requestId = data.readLong();
+			List<FileDifference> bundle = completeBundle(requestId);
+			if (bundle == null) {
+				logger.error("Received bundle was not requested. Request ID: {}", requestId);
+				return;
+			}
+			int received = 0;
+			for (FileDifference fileDifference : bundle) {
+				byte status = data.readByte();
+				if (status == BUNDLE_MISSING) {
+					logger.info("Requested file not found: {}", fileDifference);
+					notFoundFiles.inc();
+				} else if (status == BUNDLE_SAME) {
+					updateLastModifiedTime(fileDifference);
+					sameFiles.inc();
+				} else {
+					long size = data.readLong();
+					Path path = syncFolderPath.resolve(fileDifference.getPath());
+					if (!Files.exists(path.getParent())) {
+						Files.createDirectories(path.getParent());
+					}
+					temporaryPath = DirectoryUtils.getTemporaryFile(path);
+					try (OutputStream out = Files.newOutputStream(temporaryPath)) {
+						if (IOUtils.copyLarge(data, out, 0L, size) != size) {
+							throw new EOFException("Bundle ended before the file: " + fileDifference.getPath());
+						}
+					}
+					moveInPlace(temporaryPath, fileDifference);
+					temporaryPath = null;
+					received++;
+					receivedFiles.inc();
+				}
+			}
+			logger.info("Bundle received. Request ID: {}, files: {}, received: {}", requestId, bundle.size(),
+					received);
 			processFileDifference();
+		} catch (Exception e) {
+			if (temporaryPath != null) {
+				Files.deleteIfExists(temporaryPath);
+			}
+			logger.error("Unexpected error. Exitting.", e);
+			throw new IOException();
 		}
+	}
 
-		return true;
+	/**
+	 * Requested file is not present in remote system anymore
+	 * 
+	 * @param data
+	 *            request ID in bytes
+	 * @throws IOException
+	 */
+	private synchronized void processFileNotFound(byte[] data) throws IOException {
+		long requestId = Longs.fromByteArray(data);
+		FileDifference fileDifference = completeRequest(requestId);
+		cancelStripes(requestId, fileDifference);
+		logger.info("Requested file not found: {}", fileDifference);
+		notFoundFiles.inc();
+		processFileDifference();
 	}
 
 	/**
-	 * Sends file difference data to remote system containing list of files and
-	 * time when the list was updated
+	 * Requests only the changed blocks of the file by sending signature of the
+	 * local copy. Signature is built on the file worker, as the whole local
+	 * copy is read, and is sent unless the connection has been lost
+	 * meanwhile. File is requested whole if its signature cannot be built
 	 * 
-	 * @param fileDifferenceData
+	 * @param requestId
+	 * @param fileDifference
+	 *            file to be requested
+	 * @param path
+	 *            local copy of the file
+	 * @param hash
+	 *            content hash of the local copy
+	 */
+	private void requestDelta(long requestId, FileDifference fileDifference, Path path, String hash) {
+		fileWorker.execute(() -> {
+			FileSignature signature = null;
+			try {
+				signature = FileSignature.create(fileDifference.getPath(), path, hash,
+						syncProperty.getDeltaBlockSize());
+			} catch (Exception e) {
+				logger.error("Cannot create signature of: " + path, e);
+			}
+			try {
+				sendDeltaRequest(requestId, fileDifference, hash, signature);
+			} catch (IOException e) {
+				logger.error("Cannot request delta. Closing connection.", e);
+				socketManager.disconnect();
+			}
+		});
+	}
+
+	/**
+	 * @param requestId
+	 * @param fileDifference
+	 *            file to be requested
+	 * @param hash
+	 *            content hash of the local copy
+	 * @param signature
+	 *            signature of the local copy or null if the file is to be
+	 *            requested whole
 	 * @throws IOException
 	 */
-	private synchronized void sendFileDifferenceData(FileDifferenceData fileDifferenceData) throws IOException {
-		byte[] bytes;
+	private synchronized void sendDeltaRequest(long requestId, FileDifference fileDifference, String hash,
+			FileSignature signature) throws IOException {
+		if (pendingRequests.get(requestId) != fileDifference) {
+			return;
+		}
+		if (signature == null) {
+			socketManager.sendByteToSocket(DataIdentifier.RFI,
+					toRequest(requestId, fileDifference.getPath() + HASH_SEPARATOR + hash));
+			fileRequests.inc();
+			return;
+		}
+		logger.info("Requesting delta: {}", signature);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeLong(requestId);
+			signature.write(out);
+		}
+		socketManager.sendByteToSocket(DataIdentifier.RDL, bytes.toByteArray());
+		deltaRequests.inc();
+	}
+
+	/**
+	 * Sends delta of the requested file against the signature of requester's
+	 * copy
+	 * 
+	 * @param data
+	 *            signature of requester's copy in bytes
+	 * @throws IOException
+	 */
+	private void sendRequestedDelta(byte[] data) throws IOException {
+		Path deltaPath = null;
 		try {
-			bytes = objectMapper.writeValueAsBytes(fileDifferenceData);
-		} catch (JsonProcessingException e) {
-			initialSyncBeingWorked.getAndSet(false);
+			byte[] requestId = Arrays.copyOf(data, Long.BYTES);
+			FileSignature signature = FileSignature.read(
+					new DataInputStream(new ByteArrayInputStream(data, Long.BYTES, data.length - Long.BYTES)));
+			Path path = syncFolderPath.resolve(signature.getPath());
+			if (!Files.isRegularFile(path)) {
+				logger.info("File not found.");
+				socketManager.sendByteToSocket(DataIdentifier.FNF, requestId);
+				return;
+			}
+			String hash = hashCache.getHash(path);
+			if (hash.equals(signature.getHash())) {
+				logger.info("Requested file has same content.");
+				socketManager.sendByteToSocket(DataIdentifier.FSM, requestId);
+				return;
+			}
+
+			// Delta size is known only after it is created
+			deltaPath = Files.createTempFile("delta", DirectoryUtils.TEMPORARY_FILE_SUFFIX);
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(deltaPath), 1 << 16))) {
+				new DeltaGenerator(signature).generate(path, hash, out);
+			}
+			logger.info("Sending delta of requested file. Delta size: {}, file size: {}", Files.size(deltaPath),
+					Files.size(path));
+			// Delta is deleted once it is sent
+			socketManager.sendStream(DataIdentifier.FDL, requestId, Files.size(deltaPath),
+					FileChannel.open(deltaPath, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE));
+		} catch (Exception e) {
+			if (deltaPath != null) {
+				Files.deleteIfExists(deltaPath);
+			}
 			logger.error("Unexpected error. Exitting.", e);
 			throw new IOException();
 		}
+	}
 
+	/**
+	 * Rebuilds the requested file from the local copy and received delta.
+	 * Whole file is requested if rebuilt file does not match the remote copy
+	 * 
+	 * @param incomingFile
+	 *            received delta
+	 * @throws IOException
+	 */
+	private synchronized void processReceivedDelta(IncomingFile incomingFile) throws IOException {
+		long requestId = incomingFile.getRequestId();
+		FileDifference fileDifference = incomingFile.getFileDifference();
+		Path path = syncFolderPath.resolve(fileDifference.getPath());
+		Path tempPath = DirectoryUtils.getTemporaryFile(path);
 		try {
+			boolean applied;
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(Files.newInputStream(incomingFile.getSpoolPath()), 1 << 16))) {
+				applied = DeltaApplier.apply(in, path, tempPath);
+			}
+
+			if (!applied) {
+				logger.error("Rebuilt file does not match. Requesting complete file: {}", path);
+				Files.deleteIfExists(tempPath);
+				socketManager.sendByteToSocket(DataIdentifier.RFI, toRequest(requestId, fileDifference.getPath()));
+				return;
+			}
+			completeRequest(requestId);
+			moveInPlace(tempPath, fileDifference);
+			receivedFiles.inc();
+			processFileDifference();
+		} catch (Exception e) {
+			Files.deleteIfExists(tempPath);
+			logger.error("Unexpected error. Exitting.", e);
+			throw new IOException();
+		} finally {
+			Files.deleteIfExists(incomingFile.getSpoolPath());
+		}
+	}
+
+	/**
+	 * Local copy of the requested file has the same content as the remote
+	 * copy. Only last modified time is updated instead of receiving the file
+	 * 
+	 * @param data
+	 *            request ID in bytes
+	 * @throws IOException
+	 */
+	private synchronized void processSameFile(byte[] data) throws IOException {
+		long requestId = Longs.fromByteArray(data);
+		FileDifference fileDifference = completeRequest(requestId);
+		cancelStripes(requestId, fileDifference);
+		if (fileDifference != null) {
+			updateLastModifiedTime(fileDifference);
+			sameFiles.inc();
+		}
+		processFileDifference();
+	}
+
+	/**
+	 * Updates last modified time of the local copy to the remote one
+	 * 
+	 * @param fileDifference
+	 * @throws IOException
+	 */
+	private void updateLastModifiedTime(FileDifference fileDifference) throws IOException {
+		Path path = syncFolderPath.resolve(fileDifference.getPath());
+		logger.info("Content is same. Updating last modified time: {}", path);
+		Files.setLastModifiedTime(path, FileTime.fromMillis(fileDifference.getLastModified().getMillis()));
+	}
+
+	/**
+	 * Fetches file differences from queue and requests the files whose local
+	 * copy is out dated from remote system. Requests are sent until the
+	 * configured number of requests are pending, so that next file is already
+	 * on its way while one is being received. Small files are requested
+	 * together in bundles, each bundle taking a single place in the window.
+	 * Large files are requested in ranges over the data connections, if any.
+	 * A file whose older difference is still being received is deferred to a
+	 * later call, so that its newer difference is requested once the older
+	 * one is in place. So is a file whose large local copy is not hashed yet,
+	 * until it is hashed on the file worker.
+	 * 
+	 * @return true if any request is pending or a local copy is being hashed
+	 * @throws IOException
+	 */
+	public synchronized boolean processFileDifference() throws IOException {
+
+		logger.info("Processing file difference. Pending requests: {}, bundles: {}, queued: {}",
+				pendingRequests.size(), pendingBundles.size(), fileDifferenceToProcess.size());
+		fileDifferenceToProcess.requeueDeferred();
+		List<FileDifference> bundle = new ArrayList<>();
+		List<String> bundleHashes = new ArrayList<>();
+		Handshake settings = socketManager.getSettings();
+		while (pendingRequests.size() + pendingBundles.size() < settings.getRequestWindowSize()
+				&& !fileDifferenceToProcess.isEmpty()) {
+			FileDifference fileDifference = fileDifferenceToProcess.poll();
+			Path path = syncFolderPath.resolve(fileDifference.getPath());
+			if (!fileDifference.getLastModified().isAfter(DirectoryUtils.getLastModifiedTime(path))
+					|| Files.isDirectory(path)) {
+				continue;
+			}
+			// Older difference of the file is still being received
+			if (isPending(fileDifference.getPath())) {
+				fileDifferenceToProcess.defer(fileDifference);
+				continue;
+			}
+
+			logger.info("Processing file difference: {}", fileDifference);
+			String hash = null;
+			// Hashes are not compared unless both sides hash the same way
+			if (Files.isRegularFile(path) && settings.has(Handshake.CONTENT_HASH)) {
+				boolean hashed = hashedPaths.remove(fileDifference.getPath());
+				hash = hashCache.getCachedHash(path);
+				if (hash == null && Files.size(path) <= INLINE_HASH_MAX_SIZE) {
+					hash = hashCache.getHash(path);
+				} else if (hash == null && !hashed) {
+					hashLater(fileDifference, path);
+					continue;
+				}
+				// File whose hash is still not cached once hashed has changed
+				// meanwhile, so it is requested without hash
+				if (hash != null && hash.equals(fileDifference.getHash())) {
+					updateLastModifiedTime(fileDifference);
+					continue;
+				}
+			}
+			// Another session may have requested it meanwhile
+			if (!requestedPaths.add(fileDifference.getPath())) {
+				fileDifferenceToProcess.defer(fileDifference);
+				continue;
+			}
+
+			if (syncProperty.getBundleMaxFileSize() > 0
+					&& fileDifference.getSize() <= syncProperty.getBundleMaxFileSize()) {
+				bundle.add(fileDifference);
+				bundleHashes.add(hash);
+				if (bundle.size() == syncProperty.getBundleMaxEntries()) {
+					requestBundle(bundle, bundleHashes);
+					bundle = new ArrayList<>();
+					bundleHashes = new ArrayList<>();
+				}
+				continue;
+			}
+
+			long requestId = ++lastRequestId;
+			pendingRequests.put(requestId, fileDifference);
+			requestStartTimes.put(requestId, System.nanoTime());
+			long offset = isResumable(fileDifference)
+					? PartialFile.resumeOffset(DirectoryUtils.getTemporaryFile(path),
+							DirectoryUtils.getPartialFile(path), fileDifference)
+					: 0L;
+			List<long[]> missingRanges = offset == 0 && isRangeResumable(fileDifference)
+					? PartialStripes.missingRanges(DirectoryUtils.getTemporaryFile(path),
+							DirectoryUtils.getPartialStripesFile(path), fileDifference)
+					: Collections.<long[]> emptyList();
+			if (offset > 0) {
+				requestRemainingFile(requestId, fileDifference, offset);
+			} else if (!missingRanges.isEmpty()) {
+				requestMissingStripes(requestId, fileDifference, missingRanges);
+			} else if (hash != null && settings.has(Handshake.DELTA)
+					&& Files.size(path) >= syncProperty.getDeltaMinSize()) {
+				requestDelta(requestId, fileDifference, path, hash);
+			} else if (socketManager.getDataConnectionCount() > 0
+					&& fileDifference.getSize() >= syncProperty.getStripeMinSize()) {
+				requestStripes(requestId, fileDifference, hash);
+			} else if (hash != null) {
+				socketManager.sendByteToSocket(DataIdentifier.RFI,
+						toRequest(requestId, fileDifference.getPath() + HASH_SEPARATOR + hash));
+				fileRequests.inc();
+			} else {
+				socketManager.sendByteToSocket(DataIdentifier.RFI, toRequest(requestId, fileDifference.getPath()));
+				fileRequests.inc();
+			}
+		}
+		if (!bundle.isEmpty()) {
+			requestBundle(bundle, bundleHashes);
+		}
+
+		return !pendingRequests.isEmpty() || !pendingBundles.isEmpty() || !hashingPaths.isEmpty();
+	}
+
+	/**
+	 * Hashes local copy of the file on the file worker, so that the socket is
+	 * read meanwhile. Difference of the file is deferred until it is hashed
+	 * 
+	 * @param fileDifference
+	 * @param path
+	 *            local copy of the file
+	 */
+	private void hashLater(FileDifference fileDifference, Path path) {
+		if (!hashingPaths.add(fileDifference.getPath())) {
+			fileDifferenceToProcess.defer(fileDifference);
+			return;
+		}
+		logger.info("Hashing local copy before requesting: {}", fileDifference.getPath());
+		fileWorker.execute(() -> {
+			try {
+				hashCache.getHash(path);
+			} catch (Exception e) {
+				logger.error("Cannot hash file: " + path, e);
+			} finally {
+				synchronized (this) {
+					hashingPaths.remove(fileDifference.getPath());
+					hashedPaths.add(fileDifference.getPath());
+					fileDifferenceToProcess.defer(fileDifference);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Removes the request whose reply is processed, recording its latency
+	 * 
+	 * @param requestId
+	 * @return requested file or null if it was not pending
+	 */
+	private FileDifference completeRequest(long requestId) {
+		recordLatency(requestId, fileLatency);
+		FileDifference fileDifference = pendingRequests.remove(requestId);
+		if (fileDifference != null) {
+			requestedPaths.remove(fileDifference.getPath());
+		}
+		return fileDifference;
+	}
+
+	/**
+	 * Removes the bundle whose reply is processed, recording its latency
+	 * 
+	 * @param requestId
+	 * @return requested files or null if it was not pending
+	 */
+	private List<FileDifference> completeBundle(long requestId) {
+		recordLatency(requestId, bundleLatency);
+		List<FileDifference> bundle = pendingBundles.remove(requestId);
+		if (bundle != null) {
+			for (FileDifference fileDifference : bundle) {
+				requestedPaths.remove(fileDifference.getPath());
+			}
+		}
+		return bundle;
+	}
+
+	private void recordLatency(long requestId, Histogram latency) {
+		Long startTime = requestStartTimes.remove(requestId);
+		if (startTime != null) {
+			latency.recordSince(startTime);
+		}
+	}
+
+	/**
+	 * @param path
+	 * @return true if the file has already been requested or is being
+	 *         committed
+	 */
+	private boolean isPending(String path) {
+		return groupCommitter.isPending(syncFolderPath.resolve(path)) || requestedPaths.contains(path);
+	}
+
+	/**
+	 * @param requestId
+	 * @param request
+	 * @return request ID followed by the request in bytes
+	 */
+	private static byte[] toRequest(long requestId, String request) {
+		return Bytes.concat(Longs.toByteArray(requestId), request.getBytes());
+	}
+
+	/**
+	 * Sends file difference data to remote system containing list of files and
+	 * time when the list was updated
+	 * 
+	 * @param fileDifferenceData
+	 * @throws IOException
+	 */
+	private synchronized void sendFileDifferenceData(FileDifferenceData fileDifferenceData) throws IOException {
+		try (MessageOutputStream out = socketManager.openMessage(DataIdentifier.FID)) {
 			logger.info("Sending file difference post file tree processing.");
-			socketManager.sendByteToSocket(DataIdentifier.FID, bytes);
+			payloadCodec().encode(fileDifferenceData, out);
 			initialSyncBeingWorked.getAndSet(false);
 		} catch (IOException e) {
 			initialSyncBeingWorked.getAndSet(false);
@@ -452,14 +1678,19 @@ public class Synchronizer {
 	 */
 	private synchronized void sendFileTreeDifference(DateTime remoteLastUpdateTime) throws IOException {
 		DateTime currentTime = DateTime.now();
-		FileTree currentTree = DirectoryUtils.createFileTree(syncFolder);
-		List<FileDifference> fileDifferences = DirectoryUtils.calculateDifference(currentTree, systemFileTree,
+		List<FileDifference> fileDifferences = directoryWatcher.calculateDifference(systemFileTree,
 				remoteLastUpdateTime);
+		if (socketManager.getSettings().has(Handshake.MOVE)) {
+			fileDifferences = DirectoryUtils.detectMoves(fileDifferences, systemFileTree, hashCache);
+		}
+		for (FileDifference fileDifference : fileDifferences) {
+			hashCache.annotate(fileDifference);
+		}
 		FileDifferenceData fileDifferenceData = new FileDifferenceData(fileDifferences, lastUpdateTime, currentTime);
 
-		try {
+		try (MessageOutputStream out = socketManager.openMessage(DataIdentifier.FID)) {
 			logger.info("Sending requested file difference.");
-			socketManager.sendByteToSocket(DataIdentifier.FID, objectMapper.writeValueAsBytes(fileDifferenceData));
+			payloadCodec().encode(fileDifferenceData, out);
 		} catch (IOException e) {
 			logger.error("Socket error. Cannot send data. Exitting.", e);
 			throw new IOException();
@@ -467,28 +1698,62 @@ public class Synchronizer {
 	}
 
 	/**
-	 * Decodes bytes to DataIdentifier and identifies what the next data will be
-	 * 
-	 * @param bytes
-	 *            data identifier bytes
-	 * @return
+	 * @return codec of the payload format agreed with the remote system
 	 */
-	public DataIdentifier decoder(byte[] bytes) {
+	private PayloadCodec payloadCodec() {
+		return socketManager.getSettings().has(Handshake.BINARY_PAYLOAD) ? binaryCodec : jsonCodec;
+	}
 
-		for (DataIdentifier dataIdentifier : DataIdentifier.values()) {
-			if (Arrays.equals(bytes, dataIdentifier.getNameInByte())) {
-				return dataIdentifier;
+	/**
+	 * Forgets the requests and transfers in progress once the connection is
+	 * lost. Files being received keep their progress, so that they are
+	 * resumed when requested again after the initial sync is redone
+	 */
+	public synchronized void reset() {
+		for (IncomingFile incomingFile : incomingFiles.values()) {
+			incomingFile.suspend();
+		}
+		incomingFiles.clear();
+		for (FileDifference fileDifference : pendingRequests.values()) {
+			requestedPaths.remove(fileDifference.getPath());
+		}
+		for (List<FileDifference> bundle : pendingBundles.values()) {
+			for (FileDifference fileDifference : bundle) {
+				requestedPaths.remove(fileDifference.getPath());
 			}
 		}
-		return DataIdentifier.INVALID;
+		pendingRequests.clear();
+		pendingBundles.clear();
+		requestStartTimes.clear();
+		fileDifferenceToProcess.clear();
+		treeReconciliation = null;
+		initialSyncComplete = false;
+		initialSyncBeingWorked.set(false);
+		differenceBeingRequested.set(false);
+		changesAnnounced = false;
 	}
 
 	public boolean isInitialSyncComplete() {
 		return initialSyncComplete;
 	}
 
+	/**
+	 * @return true if remote system has announced changes since the file
+	 *         difference was last requested
+	 */
+	public boolean isChangesAnnounced() {
+		return changesAnnounced;
+	}
+
 	public void setInitialSyncComplete(boolean initialSyncComplete) {
 		this.initialSyncComplete = initialSyncComplete;
 	}
 
+	/**
+	 * Serves a request of the remote system
+	 */
+	private interface RequestHandler {
+		void serve(byte[] data) throws IOException;
+	}
+
 }
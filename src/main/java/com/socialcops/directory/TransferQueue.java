@@ -0,0 +1,191 @@
+package com.socialcops.directory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.socialcops.enums.TransferOrder;
+import com.socialcops.models.FileDifference;
+
+/**
+ * @author PratickChokhani Files waiting to be requested from the remote
+ *         system, indexed by path. A file queued again while it is waiting
+ *         keeps its place and only the newest of its differences is kept, so
+ *         that a file is requested once however many differences name it.
+ *
+ *         Files are taken by priority class, the class being the first of the
+ *         priority paths the file is under, and files under none of them come
+ *         last. Within a class they are taken in the transfer order, ties
+ *         being taken in the order they were queued.
+ *
+ *         A file that cannot be requested yet, as an older difference of it
+ *         is still being received, is deferred and queued again later, so
+ *         that its newer difference is not lost.
+ */
+public class TransferQueue {
+
+	private final List<String> priorityPaths;
+	private final Map<String, Entry> entries = new HashMap<>();
+	private final TreeSet<Entry> queue;
+	/**
+	 * Newest differences of the files deferred until they can be requested
+	 */
+	private final Map<String, FileDifference> deferred = new HashMap<>();
+	private long lastSequence = 0L;
+	private long pendingBytes = 0L;
+
+	/**
+	 * @param transferOrder
+	 *            order of the files within a priority class
+	 * @param priorityPaths
+	 *            directories or files relative to the sync folder, the
+	 *            earlier ones taken first
+	 */
+	public TransferQueue(TransferOrder transferOrder, List<String> priorityPaths) {
+		this.priorityPaths = priorityPaths;
+		this.queue = new TreeSet<>(Comparator.<Entry> comparingInt(entry -> entry.priorityClass)
+				.thenComparing(entry -> entry.fileDifference, transferOrder.getComparator())
+				.thenComparingLong(entry -> entry.sequence));
+	}
+
+	/**
+	 * Queues the file unless a newer difference of it is already queued
+	 *
+	 * @param fileDifference
+	 */
+	public synchronized void add(FileDifference fileDifference) {
+		Entry entry = entries.get(fileDifference.getPath());
+		long sequence;
+		if (entry == null) {
+			sequence = ++lastSequence;
+		} else if (fileDifference.getLastModified().isAfter(entry.fileDifference.getLastModified())) {
+			remove(entry);
+			sequence = entry.sequence;
+		} else {
+			return;
+		}
+		entry = new Entry(fileDifference, priorityClass(fileDifference.getPath()), sequence);
+		entries.put(fileDifference.getPath(), entry);
+		queue.add(entry);
+		pendingBytes += fileDifference.getSize();
+	}
+
+	public synchronized void addAll(Collection<FileDifference> fileDifferences) {
+		for (FileDifference fileDifference : fileDifferences) {
+			add(fileDifference);
+		}
+	}
+
+	/**
+	 * @return next file to be requested or null if there is none
+	 */
+	public synchronized FileDifference poll() {
+		Entry entry = queue.pollFirst();
+		if (entry == null) {
+			return null;
+		}
+		entries.remove(entry.fileDifference.getPath());
+		pendingBytes -= entry.fileDifference.getSize();
+		return entry.fileDifference;
+	}
+
+	/**
+	 * Keeps the file aside until the deferred files are queued again, unless a
+	 * newer difference of it is already deferred
+	 *
+	 * @param fileDifference
+	 */
+	public synchronized void defer(FileDifference fileDifference) {
+		FileDifference deferredDifference = deferred.get(fileDifference.getPath());
+		if (deferredDifference == null
+				|| fileDifference.getLastModified().isAfter(deferredDifference.getLastModified())) {
+			deferred.put(fileDifference.getPath(), fileDifference);
+		}
+	}
+
+	/**
+	 * Queues the deferred files again
+	 */
+	public synchronized void requeueDeferred() {
+		if (deferred.isEmpty()) {
+			return;
+		}
+		List<FileDifference> fileDifferences = new ArrayList<>(deferred.values());
+		deferred.clear();
+		addAll(fileDifferences);
+	}
+
+	/**
+	 * @return true if no file can be taken, deferred files not being counted
+	 */
+	public synchronized boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * @return number of files queued, deferred ones included
+	 */
+	public synchronized int size() {
+		return queue.size() + deferred.size();
+	}
+
+	/**
+	 * @return total size of the files queued, deferred ones included
+	 */
+	public synchronized long getPendingBytes() {
+		long deferredBytes = 0L;
+		for (FileDifference fileDifference : deferred.values()) {
+			deferredBytes += fileDifference.getSize();
+		}
+		return pendingBytes + deferredBytes;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		queue.clear();
+		deferred.clear();
+		pendingBytes = 0L;
+	}
+
+	private void remove(Entry entry) {
+		queue.remove(entry);
+		entries.remove(entry.fileDifference.getPath());
+		pendingBytes -= entry.fileDifference.getSize();
+	}
+
+	/**
+	 * @param path
+	 *            relative path of the file
+	 * @return index of the first priority path the file is under, number of
+	 *         priority paths if it is under none
+	 */
+	private int priorityClass(String path) {
+		for (int i = 0; i < priorityPaths.size(); i++) {
+			String priorityPath = priorityPaths.get(i);
+			if (path.equals(priorityPath) || path.startsWith(priorityPath + File.separator)) {
+				return i;
+			}
+		}
+		return priorityPaths.size();
+	}
+
+	private static class Entry {
+		private final FileDifference fileDifference;
+		private final int priorityClass;
+		/**
+		 * Order in which the file was first queued
+		 */
+		private final long sequence;
+
+		private Entry(FileDifference fileDifference, int priorityClass, long sequence) {
+			this.fileDifference = fileDifference;
+			this.priorityClass = priorityClass;
+			this.sequence = sequence;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package com.socialcops.directory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+import com.socialcops.enums.FileOperation;
+import com.socialcops.models.DirectoryDigest;
+import com.socialcops.models.DirectoryListing;
+import com.socialcops.models.FileDifference;
+import com.socialcops.models.FileTree;
+
+/**
+ * @author PratickChokhani Compares the local file tree with the remote one
+ *         level by level using directory digests, so that unchanged subtrees
+ *         are neither sent nor compared.
+ *
+ *         Digest of the sync folder is sent first. Remote system lists a
+ *         requested directory only if its digest differs. Sub directories
+ *         with the same digest on both sides are skipped, the others are
+ *         requested in the next round. Directories present only locally are
+ *         added to the remote differences as a whole.
+ */
+class TreeReconciliation {
+	private final FileTree localFileTree;
+	/**
+	 * Local copy of the directories requested in the current round, by path.
+	 * Null if the directory is not present locally
+	 */
+	private final Map<String, FileTree> requestedDirectories = new HashMap<>();
+	/**
+	 * Files to be requested from remote system
+	 */
+	private final List<FileDifference> localFileDifferences = new ArrayList<>();
+	/**
+	 * Files to be requested by remote system
+	 */
+	private final List<FileDifference> remoteFileDifferences = new ArrayList<>();
+	private int rounds = 0;
+
+	/**
+	 * @param localFileTree
+	 *            snapshot of the local file tree with digests
+	 */
+	TreeReconciliation(FileTree localFileTree) {
+		this.localFileTree = localFileTree;
+	}
+
+	/**
+	 * @return request for the sync folder along with its digest
+	 */
+	List<DirectoryDigest> start() {
+		requestedDirectories.put(localFileTree.getRelativePath(), localFileTree);
+		return Collections.singletonList(
+				new DirectoryDigest(localFileTree.getRelativePath(), DirectoryUtils.digest(localFileTree)));
+	}
+
+	/**
+	 * Compares the received listings with the local directories and collects
+	 * the differences
+	 *
+	 * @param directoryListings
+	 *            listings of the requested directories
+	 * @return directories to be requested in the next round. Empty if
+	 *         reconciliation is complete
+	 */
+	List<DirectoryDigest> compare(List<DirectoryListing> directoryListings) {
+		rounds++;
+		Map<String, FileTree> localDirectories = new HashMap<>(requestedDirectories);
+		requestedDirectories.clear();
+		List<DirectoryDigest> nextRequests = new ArrayList<>();
+		for (DirectoryListing directoryListing : directoryListings) {
+			FileTree localDirectory = localDirectories.remove(directoryListing.getPath());
+			if (directoryListing.isSame()) {
+				continue;
+			}
+			List<FileTree> remoteChilds = directoryListing.getChilds();
+			if (remoteChilds == null) {
+				remoteChilds = new ArrayList<>(0);
+			}
+			compare(localDirectory, remoteChilds, nextRequests);
+		}
+		return nextRequests;
+	}
+
+	/**
+	 * Merges the sorted childs of local and remote copy of a directory
+	 *
+	 * @param localDirectory
+	 *            local copy or null if not present locally
+	 * @param remoteChilds
+	 * @param nextRequests
+	 *            where sub directories to be requested are added
+	 */
+	private void compare(FileTree localDirectory, List<FileTree> remoteChilds, List<DirectoryDigest> nextRequests) {
+		List<FileTree> localChilds = localDirectory != null && localDirectory.isDirectory()
+				? localDirectory.getChilds() : new ArrayList<>(0);
+		int indexLocal = 0, indexRemote = 0;
+		while (indexLocal < localChilds.size() || indexRemote < remoteChilds.size()) {
+			FileTree local = indexLocal < localChilds.size() ? localChilds.get(indexLocal) : null;
+			FileTree remote = indexRemote < remoteChilds.size() ? remoteChilds.get(indexRemote) : null;
+			int compare = local == null ? 1 : remote == null ? -1 : local.getName().compareTo(remote.getName());
+			if (compare < 0) {
+				remote = null;
+				indexLocal++;
+			} else if (compare > 0) {
+				local = null;
+				indexRemote++;
+			} else {
+				indexLocal++;
+				indexRemote++;
+			}
+			compareEntry(local, remote, nextRequests);
+		}
+	}
+
+	/**
+	 * @param local
+	 *            local entry or null
+	 * @param remote
+	 *            remote entry with the same name or null
+	 * @param nextRequests
+	 */
+	private void compareEntry(FileTree local, FileTree remote, List<DirectoryDigest> nextRequests) {
+		if (remote != null && remote.isDirectory()) {
+			FileTree localDirectory = local != null && local.isDirectory() ? local : null;
+			if (localDirectory == null || !DirectoryUtils.digest(localDirectory).equals(remote.getDigest())) {
+				requestedDirectories.put(remote.getRelativePath(), localDirectory);
+				nextRequests.add(new DirectoryDigest(remote.getRelativePath(), null));
+			}
+		} else if (remote != null && (local == null || local.isDirectory()
+				|| remote.getLastModified().isAfter(local.getLastModified()))) {
+			localFileDifferences.add(toFileDifference(remote));
+		}
+
+		if (local != null && local.isDirectory()) {
+			if (remote == null || !remote.isDirectory()) {
+				remoteFileDifferences.addAll(DirectoryUtils.calculateDifference(local, null, new DateTime(0L)));
+			}
+		} else if (local != null && (remote == null || remote.isDirectory()
+				|| local.getLastModified().isAfter(remote.getLastModified()))) {
+			remoteFileDifferences.add(toFileDifference(local));
+		}
+	}
+
+	private static FileDifference toFileDifference(FileTree fileTree) {
+		return new FileDifference(FileOperation.UPDATE, fileTree.getRelativePath(), fileTree.getLastModified(),
+				fileTree.getSize(), fileTree.getHash());
+	}
+
+	List<FileDifference> getLocalFileDifferences() {
+		return localFileDifferences;
+	}
+
+	List<FileDifference> getRemoteFileDifferences() {
+		return remoteFileDifferences;
+	}
+
+	int getRounds() {
+		return rounds;
+	}
+}
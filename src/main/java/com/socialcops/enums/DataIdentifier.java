@@ -1,50 +1,130 @@
 package com.socialcops.enums;
 
+import java.util.Arrays;
+
 /**
- * @author PratickChokhani Used to identify the data being sent over network
+ * @author PratickChokhani Used to identify the data being sent over network.
+ *         Each frame carries the opcode of its identifier. Opcodes are never
+ *         reused, so a new identifier gets the next free one.
  */
 public enum DataIdentifier {
 	/**
 	 * Request complete file tree
 	 */
-	RTC("RTC"),
+	RTC(1),
 	/**
 	 * Request file tree difference
 	 */
-	RTD("RTD"),
+	RTD(2),
 	/**
 	 * Request specific file
 	 */
-	RFI("RFI"),
+	RFI(3),
 	/**
 	 * Return specified file
 	 */
-	FIR("FIR"),
+	FIR(4),
 	/**
 	 * Return File not found
 	 */
-	FNF("FNF"),
+	FNF(5),
 	/**
 	 * Return File Difference
 	 */
-	FID("FID"),
+	FID(6),
 	/**
 	 * Return File Tree
 	 */
-	FIT("FIT"),
+	FIT(7),
+	/**
+	 * Return requested file has the same content as the requester's copy
+	 */
+	FSM(8),
+	/**
+	 * Request delta of a file against the signature of local copy
+	 */
+	RDL(9),
+	/**
+	 * Return delta of the requested file
+	 */
+	FDL(10),
+	/**
+	 * Request listing of directories whose digest differs
+	 */
+	RDG(11),
+	/**
+	 * Return listing of requested directories
+	 */
+	DIG(12),
+	/**
+	 * Request many small files at once
+	 */
+	RBN(13),
+	/**
+	 * Return requested files back to back
+	 */
+	BND(14),
+	/**
+	 * Request specific file in ranges over the data connections
+	 */
+	RFS(15),
+	/**
+	 * Return size of the file whose ranges are sent
+	 */
+	FST(16),
+	/**
+	 * Return range of the requested file on a data connection
+	 */
+	FRG(17),
+	/**
+	 * Request rest of a file whose earlier part has been received
+	 */
+	RRF(18),
+	/**
+	 * Return rest of the requested file from the requested offset
+	 */
+	FRM(19),
+	/**
+	 * Announce that the sync folder has changed
+	 */
+	CHG(20),
+	/**
+	 * Request missing ranges of a file whose other ranges have been received
+	 */
+	RRS(21),
 	/**
 	 * Invalid input
 	 */
-	INVALID("INVALID");
+	INVALID(0);
+
+	private static final DataIdentifier[] BY_OPCODE = new DataIdentifier[256];
+
+	static {
+		Arrays.fill(BY_OPCODE, INVALID);
+		for (DataIdentifier dataIdentifier : values()) {
+			if (dataIdentifier != INVALID) {
+				BY_OPCODE[dataIdentifier.opcode & 0xFF] = dataIdentifier;
+			}
+		}
+	}
 
-	private byte[] nameInByte;
+	private final byte opcode;
 
-	private DataIdentifier(String name) {
-		this.nameInByte = name.getBytes();
+	private DataIdentifier(int opcode) {
+		this.opcode = (byte) opcode;
 	}
 
-	public byte[] getNameInByte() {
-		return nameInByte;
+	public byte getOpcode() {
+		return opcode;
+	}
+
+	/**
+	 * @param opcode
+	 *            received in the frame header
+	 * @return identifier of the opcode, INVALID if it is unknown
+	 */
+	public static DataIdentifier fromOpcode(byte opcode) {
+		return BY_OPCODE[opcode & 0xFF];
 	}
 
 }
@@ -2,5 +2,10 @@ package com.socialcops.enums;
 
 public enum FileOperation {
 
-	UPDATE, DELETE
+	UPDATE, DELETE,
+	/**
+	 * File is moved from its source path, so the receiver renames its own
+	 * copy in place of requesting the file
+	 */
+	MOVE
 }
@@ -0,0 +1,21 @@
+package com.socialcops.enums;
+
+/**
+ * @author PratickChokhani How received files are made durable once they are
+ *         moved in place
+ */
+public enum FsyncMode {
+	/**
+	 * Files are moved in place without waiting for the disk
+	 */
+	NONE,
+	/**
+	 * Files are synced and moved in place in batches, so that many files share
+	 * the wait for the disk
+	 */
+	BATCH,
+	/**
+	 * Each file is synced and moved in place before the next one is processed
+	 */
+	ALWAYS
+}
@@ -0,0 +1,39 @@
+package com.socialcops.enums;
+
+import java.util.Comparator;
+
+import com.socialcops.models.FileDifference;
+
+/**
+ * @author PratickChokhani Order in which the files to be received are
+ *         requested, within the same priority class
+ */
+public enum TransferOrder {
+	/**
+	 * In the order the differences are received
+	 */
+	FIFO((first, second) -> 0),
+	/**
+	 * Smallest files first, so that a large file does not hold back many
+	 * small ones
+	 */
+	SMALLEST(Comparator.comparingLong(FileDifference::getSize)),
+	/**
+	 * Most recently modified files first
+	 */
+	NEWEST(Comparator.comparing(FileDifference::getLastModified).reversed());
+
+	private final Comparator<FileDifference> comparator;
+
+	private TransferOrder(Comparator<FileDifference> comparator) {
+		this.comparator = comparator;
+	}
+
+	/**
+	 * @return comparator ordering the files, 0 for the files whose order is
+	 *         left to their arrival
+	 */
+	public Comparator<FileDifference> getComparator() {
+		return comparator;
+	}
+}
@@ -6,6 +6,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.text.MessageFormat;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
@@ -14,9 +20,17 @@ import org.slf4j.LoggerFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.joda.JodaModule;
 import com.socialcops.directory.DirectoryUtils;
+import com.socialcops.directory.DirectoryWatcher;
+import com.socialcops.directory.FileTreeIndex;
+import com.socialcops.directory.GroupCommitter;
+import com.socialcops.directory.HashCache;
 import com.socialcops.directory.Synchronizer;
+import com.socialcops.metrics.MetricsServer;
 import com.socialcops.models.FileTree;
 import com.socialcops.properties.SyncProperty;
+import com.socialcops.shaping.TrafficShaper;
+import com.socialcops.sockets.Hub;
+import com.socialcops.sockets.SessionFactory;
 import com.socialcops.sockets.SocketListener;
 import com.socialcops.sockets.SocketManager;
 import com.socialcops.sockets.SocketScheduler;
@@ -63,16 +77,49 @@ public class Main {
 		logger.info("Config Properties: {}", syncProperty);
 
 		DirectoryUtils.setSyncFolder(syncProperty.getSyncFolder());
+		DirectoryUtils.setScanParallelism(syncProperty.getScanParallelism());
+
+		// Serves metrics to be scraped by Prometheus
+		if (syncProperty.getMetricsPort() > 0) {
+			try {
+				new MetricsServer(syncProperty.getMetricsPort()).start();
+			} catch (IOException e) {
+				logger.error("Cannot serve metrics on port: " + syncProperty.getMetricsPort(), e);
+			}
+		}
 
-		// Initialize Socket manager
-		SocketManager socketManager = new SocketManager(syncProperty.getServerPort(), syncProperty.getServerIp(),
-				syncProperty.isMaster());
+		SocketManager socketManager = null;
+		Hub hub = null;
+		// Budgets are shared by all the connections as they share the link
+		TrafficShaper trafficShaper = new TrafficShaper(syncProperty.getControlRateSchedule(),
+				syncProperty.getBulkRateSchedule());
 		boolean success;
-		// Initiate connections
-		if (syncProperty.isMaster()) {
-			success = socketManager.initiateMaster();
+		if (syncProperty.isHub()) {
+			// Clients are accepted once the file tree is created
+			hub = new Hub(syncProperty.getServerPort(), syncProperty.getHubMaxClients(), syncProperty.isZeroCopy(),
+					syncProperty.isCompression(), syncProperty.getTransferBufferSize(), syncProperty.isBinaryPayload(),
+					syncProperty.getRequestWindowSize(), trafficShaper);
+			success = hub.bind();
 		} else {
-			success = socketManager.initiateClient();
+			// Initialize Socket manager
+			socketManager = new SocketManager(syncProperty.getServerPort(), syncProperty.getServerIp(),
+					syncProperty.isMaster(), syncProperty.isZeroCopy(), syncProperty.isCompression(),
+					syncProperty.getTransferBufferSize(), syncProperty.getDataConnections(),
+					syncProperty.isBinaryPayload(), syncProperty.getRequestWindowSize(), trafficShaper);
+			// Initiate connections
+			if (syncProperty.isMaster()) {
+				success = socketManager.initiateMaster();
+			} else {
+				success = socketManager.initiateClient();
+			}
+		}
+		if (success && syncProperty.isRelay()) {
+			// Own clients of the slave are accepted once the file tree is
+			// created
+			hub = new Hub(syncProperty.getRelayPort(), syncProperty.getHubMaxClients(), syncProperty.isZeroCopy(),
+					syncProperty.isCompression(), syncProperty.getTransferBufferSize(), syncProperty.isBinaryPayload(),
+					syncProperty.getRequestWindowSize(), trafficShaper);
+			success = hub.bind();
 		}
 
 		// Exits if connection cannot be established
@@ -83,21 +130,83 @@ public class Main {
 
 		DateTime curDataTime = DateTime.now();
 		// Creates file tree of the sync fodler
-		FileTree fileTree = DirectoryUtils.createFileTree(syncFolder);
+		// Keeps the file tree up to date without rescanning the sync folder
+		FileTreeIndex fileTreeIndex = new FileTreeIndex(syncProperty.getFileTreeIndex(), syncFolder);
+		DirectoryWatcher directoryWatcher = new DirectoryWatcher(syncFolder, fileTreeIndex);
+		directoryWatcher.start();
+		FileTree fileTree = directoryWatcher.snapshot();
 		logger.info("File tree created.");
+
+		HashCache hashCache = new HashCache(syncProperty.getHashCache(), syncFolder);
+		hashCache.load();
+
+		// Saves the file tree periodically so that next start does not rescan
+		// the sync folder
+		ScheduledExecutorService checkpointService = Executors.newSingleThreadScheduledExecutor();
+		checkpointService.scheduleWithFixedDelay(directoryWatcher::checkpoint, 0L,
+				syncProperty.getFileTreeCheckpointDelay(), TimeUnit.MILLISECONDS);
+		checkpointService.scheduleWithFixedDelay(hashCache::checkpoint, syncProperty.getFileTreeCheckpointDelay(),
+				syncProperty.getFileTreeCheckpointDelay(), TimeUnit.MILLISECONDS);
+
+		// Makes received files durable, committing the files received together
+		// at once
+		GroupCommitter groupCommitter = new GroupCommitter(syncProperty.getFsyncMode(),
+				syncProperty.getFsyncBatchDelay());
+		groupCommitter.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(groupCommitter::close));
+
+		Set<String> requestedPaths = ConcurrentHashMap.newKeySet();
+		if (hub != null) {
+			SessionFactory sessionFactory = createSessionFactory(syncFolder, directoryWatcher, hashCache,
+					groupCommitter, requestedPaths, syncProperty);
+			// Clients request file difference as soon as the sync folder
+			// changes, so files received from the master are relayed at once
+			directoryWatcher.setChangeListener(hub::announceChanges);
+			if (syncProperty.isHub()) {
+				hub.run(sessionFactory);
+				return;
+			}
+			Hub relay = hub;
+			Thread relayThread = new Thread(() -> relay.run(sessionFactory), "relay");
+			relayThread.setDaemon(true);
+			relayThread.start();
+		}
+
 		Synchronizer synchronizer = new Synchronizer(syncFolder, fileTree, syncProperty.isMaster(), curDataTime,
-				socketManager, objectMapper);
+				socketManager, objectMapper, directoryWatcher, hashCache, groupCommitter, requestedPaths, null,
+				syncProperty);
 
 		SocketListener socketListener = new SocketListener(socketManager, synchronizer);
 
 		SocketScheduler socketScheduler = new SocketScheduler(syncProperty.getScheduleDelayInMillis(),
-				syncProperty.getDataDeliveryDelay(), socketManager, synchronizer, syncProperty.isMaster(),
-				socketListener);
+				syncProperty.getDataDeliveryDelay(), syncProperty.getReconnectDelay(), socketManager, synchronizer,
+				syncProperty.isMaster(), socketListener);
 		// start the scheduler
 		socketScheduler.run();
 
 	}
 
+	/**
+	 * Each client of the hub gets its own session sharing the file tree, hash
+	 * cache and committer. Requests of all the clients are served by a fixed
+	 * number of workers
+	 * 
+	 * @return factory of the sessions
+	 */
+	private SessionFactory createSessionFactory(File syncFolder, DirectoryWatcher directoryWatcher,
+			HashCache hashCache, GroupCommitter groupCommitter, Set<String> requestedPaths,
+			SyncProperty syncProperty) {
+		ExecutorService requestWorkers = Executors.newFixedThreadPool(syncProperty.getHubWorkerThreads());
+		return sessionSocketManager -> {
+			Synchronizer sessionSynchronizer = new Synchronizer(syncFolder, directoryWatcher.snapshot(), true,
+					DateTime.now(), sessionSocketManager, objectMapper, directoryWatcher, hashCache, groupCommitter,
+					requestedPaths, requestWorkers, syncProperty);
+			return new SocketScheduler(syncProperty.getScheduleDelayInMillis(), syncProperty.getDataDeliveryDelay(),
+					syncProperty.getReconnectDelay(), sessionSocketManager, sessionSynchronizer, true,
+					new SocketListener(sessionSocketManager, sessionSynchronizer));
+		};
+	}
+
 	/**
 	 * Parse config.properties file and return SyncProperty with all the
 	 * configuration
@@ -131,6 +240,9 @@ public class Main {
 			logger.error(MessageFormat.format("Invalid port: {0}", property.getProperty(SyncProperty.getSERVER_PORT())),
 					e);
 			return null;
+		} catch (IllegalArgumentException e) {
+			logger.error("Invalid config properties. Exiting.", e);
+			return null;
 		}
 		return syncProperty;
 
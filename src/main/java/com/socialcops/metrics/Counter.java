@@ -0,0 +1,37 @@
+package com.socialcops.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author PratickChokhani Value that only goes up, e.g. number of requests or
+ *         bytes sent. Increments from many threads do not contend
+ */
+public class Counter extends Metric {
+	private final LongAdder value = new LongAdder();
+
+	Counter(String name, String help, String labels) {
+		super(name, help, labels);
+	}
+
+	public void inc() {
+		value.increment();
+	}
+
+	public void add(long amount) {
+		value.add(amount);
+	}
+
+	public long get() {
+		return value.sum();
+	}
+
+	@Override
+	String getType() {
+		return "counter";
+	}
+
+	@Override
+	void write(StringBuilder out) {
+		writeSample(out, "", null, Long.toString(get()));
+	}
+}
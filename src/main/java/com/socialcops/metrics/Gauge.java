@@ -0,0 +1,26 @@
+package com.socialcops.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * @author PratickChokhani Value read when metrics are scraped, e.g. depth of a
+ *         queue. Supplier is called on the scraping thread and must not block
+ */
+public class Gauge extends Metric {
+	private final DoubleSupplier supplier;
+
+	Gauge(String name, String help, String labels, DoubleSupplier supplier) {
+		super(name, help, labels);
+		this.supplier = supplier;
+	}
+
+	@Override
+	String getType() {
+		return "gauge";
+	}
+
+	@Override
+	void write(StringBuilder out) {
+		writeSample(out, "", null, Metrics.format(supplier.getAsDouble()));
+	}
+}
@@ -0,0 +1,118 @@
+package com.socialcops.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author PratickChokhani Distribution of recorded values, e.g. latencies in
+ *         nanoseconds. Like an HDR histogram, values are counted in buckets
+ *         whose width grows with the value: each power of two is split into
+ *         sub-buckets, so the relative error is bounded whatever the
+ *         magnitude. Recording is a couple of atomic increments.
+ *
+ *         Buckets within the configured range are exposed as Prometheus
+ *         buckets, scaled to the exposed unit (e.g. seconds).
+ */
+public class Histogram extends Metric {
+	/**
+	 * Each power of two is split into 8 sub-buckets, so a bucket is at most
+	 * 12.5% of its values wide
+	 */
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(Long.SIZE * SUB_BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final int lowestBucket;
+	private final int highestBucket;
+	private final double scale;
+
+	/**
+	 * @param name
+	 * @param help
+	 * @param labels
+	 * @param lowest
+	 *            lowest value whose bucket is exposed. Smaller values are
+	 *            counted in its bucket
+	 * @param highest
+	 *            highest value whose bucket is exposed. Larger values are only
+	 *            counted in the +Inf bucket
+	 * @param scale
+	 *            recorded units in an exposed unit, e.g. 1e9 for nanoseconds
+	 *            exposed as seconds
+	 */
+	Histogram(String name, String help, String labels, long lowest, long highest, double scale) {
+		super(name, help, labels);
+		this.lowestBucket = index(lowest);
+		this.highestBucket = index(highest);
+		this.scale = scale;
+	}
+
+	/**
+	 * @param value
+	 *            negative values are recorded as 0
+	 */
+	public void record(long value) {
+		value = Math.max(0L, value);
+		counts.incrementAndGet(index(value));
+		sum.add(value);
+	}
+
+	/**
+	 * Records time elapsed since the start
+	 * 
+	 * @param startNanos
+	 *            value of {@link System#nanoTime()} at the start
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @param value
+	 * @return index of the bucket counting the value
+	 */
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @param index
+	 * @return highest value counted in the bucket
+	 */
+	private static long upperBound(int index) {
+		int group = index / SUB_BUCKETS;
+		int subBucket = index % SUB_BUCKETS;
+		if (group == 0) {
+			return subBucket;
+		}
+		int exponent = group + SUB_BUCKET_BITS - 1;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + subBucket * width + width - 1;
+	}
+
+	@Override
+	String getType() {
+		return "histogram";
+	}
+
+	@Override
+	void write(StringBuilder out) {
+		long cumulative = 0L;
+		for (int i = 0; i < counts.length(); i++) {
+			cumulative += counts.get(i);
+			if (i >= lowestBucket && i <= highestBucket) {
+				writeSample(out, "_bucket", "le=\"" + Metrics.format(upperBound(i) / scale) + "\"",
+						Long.toString(cumulative));
+			}
+		}
+		writeSample(out, "_bucket", "le=\"+Inf\"", Long.toString(cumulative));
+		writeSample(out, "_sum", null, Metrics.format(sum.sum() / scale));
+		writeSample(out, "_count", null, Long.toString(cumulative));
+	}
+}
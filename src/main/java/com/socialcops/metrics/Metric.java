@@ -0,0 +1,66 @@
+package com.socialcops.metrics;
+
+/**
+ * @author PratickChokhani Value exposed in the Prometheus text format. Metrics
+ *         of the same name differ by their labels
+ */
+public abstract class Metric {
+	private final String name;
+	private final String help;
+	/**
+	 * Labels rendered as name="value" pairs separated by commas
+	 */
+	private final String labels;
+
+	Metric(String name, String help, String labels) {
+		this.name = name;
+		this.help = help;
+		this.labels = labels;
+	}
+
+	/**
+	 * @return counter, gauge or histogram
+	 */
+	abstract String getType();
+
+	/**
+	 * Appends the samples of the metric, one per line
+	 * 
+	 * @param out
+	 */
+	abstract void write(StringBuilder out);
+
+	/**
+	 * Appends a sample of the metric
+	 * 
+	 * @param out
+	 * @param suffix
+	 *            appended to the name, e.g. _bucket
+	 * @param extraLabel
+	 *            label added to the labels of the metric or null
+	 * @param value
+	 */
+	void writeSample(StringBuilder out, String suffix, String extraLabel, String value) {
+		out.append(name).append(suffix);
+		if (!labels.isEmpty() || extraLabel != null) {
+			out.append('{').append(labels);
+			if (extraLabel != null) {
+				out.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+			}
+			out.append('}');
+		}
+		out.append(' ').append(value).append('\n');
+	}
+
+	String getName() {
+		return name;
+	}
+
+	String getHelp() {
+		return help;
+	}
+
+	String getLabels() {
+		return labels;
+	}
+}
@@ -0,0 +1,144 @@
+package com.socialcops.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * @author PratickChokhani Registry of the metrics of the process. Metrics are
+ *         registered once, usually in a static field of the class they
+ *         measure, and are scraped in the Prometheus text format.
+ *
+ *         Labels are given as name, value pairs. Registering a counter or
+ *         histogram with the same name and labels again returns the existing
+ *         one, whereas a gauge is replaced so that it reads the latest
+ *         instance. Gauges of an instance that does not live as long as the
+ *         process, e.g. a hub session, carry a label of their own and are
+ *         unregistered once the instance is done.
+ */
+public final class Metrics {
+	/**
+	 * Latency histograms record nanoseconds and expose seconds
+	 */
+	private static final double NANOS_PER_SECOND = 1e9;
+	private static final long LATENCY_LOWEST = 1000L;
+	private static final long LATENCY_HIGHEST = 128L * 1000 * 1000 * 1000;
+
+	/**
+	 * Metrics by name and then by labels
+	 */
+	private static final Map<String, Map<String, Metric>> registry = new TreeMap<>();
+
+	private Metrics() {
+	}
+
+	public static synchronized Counter counter(String name, String help, String... labels) {
+		String renderedLabels = render(labels);
+		Metric metric = family(name).get(renderedLabels);
+		if (metric == null) {
+			metric = new Counter(name, help, renderedLabels);
+			family(name).put(renderedLabels, metric);
+		}
+		return (Counter) metric;
+	}
+
+	public static synchronized Gauge gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+		String renderedLabels = render(labels);
+		Gauge gauge = new Gauge(name, help, renderedLabels, supplier);
+		family(name).put(renderedLabels, gauge);
+		return gauge;
+	}
+
+	/**
+	 * @param name
+	 * @param help
+	 * @param lowest
+	 *            lowest value whose bucket is exposed
+	 * @param highest
+	 *            highest value whose bucket is exposed
+	 * @param scale
+	 *            recorded units in an exposed unit
+	 * @param labels
+	 * @return histogram
+	 */
+	public static synchronized Histogram histogram(String name, String help, long lowest, long highest,
+			double scale, String... labels) {
+		String renderedLabels = render(labels);
+		Metric metric = family(name).get(renderedLabels);
+		if (metric == null) {
+			metric = new Histogram(name, help, renderedLabels, lowest, highest, scale);
+			family(name).put(renderedLabels, metric);
+		}
+		return (Histogram) metric;
+	}
+
+	/**
+	 * @return histogram recording nanoseconds from a microsecond to two
+	 *         minutes, exposed in seconds
+	 */
+	public static Histogram latency(String name, String help, String... labels) {
+		return histogram(name, help, LATENCY_LOWEST, LATENCY_HIGHEST, NANOS_PER_SECOND, labels);
+	}
+
+	/**
+	 * Removes the metrics registered with exactly the labels, so that they
+	 * are not scraped anymore and what they read can be collected
+	 *
+	 * @param labels
+	 *            name, value pairs
+	 */
+	public static synchronized void unregister(String... labels) {
+		String renderedLabels = render(labels);
+		registry.values().removeIf(family -> {
+			family.remove(renderedLabels);
+			return family.isEmpty();
+		});
+	}
+
+	/**
+	 * @return all metrics in the Prometheus text format
+	 */
+	public static synchronized String scrape() {
+		StringBuilder out = new StringBuilder(4096);
+		for (Map<String, Metric> family : registry.values()) {
+			Metric first = family.values().iterator().next();
+			out.append("# HELP ").append(first.getName()).append(' ').append(first.getHelp()).append('\n');
+			out.append("# TYPE ").append(first.getName()).append(' ').append(first.getType()).append('\n');
+			for (Metric metric : family.values()) {
+				metric.write(out);
+			}
+		}
+		return out.toString();
+	}
+
+	private static Map<String, Metric> family(String name) {
+		return registry.computeIfAbsent(name, key -> new LinkedHashMap<>());
+	}
+
+	private static String render(String... labels) {
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Labels are to be given as name, value pairs.");
+		}
+		StringBuilder rendered = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0) {
+				rendered.append(',');
+			}
+			rendered.append(labels[i]).append("=\"")
+					.append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+					.append('"');
+		}
+		return rendered.toString();
+	}
+
+	static String format(double value) {
+		if (Double.isNaN(value)) {
+			return "NaN";
+		}
+		if (Double.isInfinite(value)) {
+			return value > 0 ? "+Inf" : "-Inf";
+		}
+		return Double.toString(value);
+	}
+}
@@ -0,0 +1,69 @@
+package com.socialcops.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @author PratickChokhani Embedded HTTP endpoint from where Prometheus scrapes
+ *         the metrics at /metrics
+ */
+public class MetricsServer {
+	private static final Logger logger = LoggerFactory.getLogger(MetricsServer.class);
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final int port;
+	private HttpServer server = null;
+
+	/**
+	 * @param port
+	 *            port on which metrics are served
+	 */
+	public MetricsServer(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Starts serving metrics on a daemon thread
+	 * 
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", this::handle);
+		server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-server");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		server.start();
+		logger.info("Serving metrics on port {}", port);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package com.socialcops.models;
+
+/**
+ * @author PratickChokhani Directory whose listing is requested along with the
+ *         digest of requester's copy
+ */
+public class DirectoryDigest {
+
+	/**
+	 * Path relative to the sync folder. Empty for the sync folder
+	 */
+	private String path;
+	/**
+	 * Digest of requester's copy or null if the listing is always to be sent
+	 */
+	private String digest;
+
+	public DirectoryDigest(String path, String digest) {
+		this.path = path;
+		this.digest = digest;
+	}
+
+	public DirectoryDigest() {
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public String getDigest() {
+		return digest;
+	}
+
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
+	@Override
+	public String toString() {
+		return "DirectoryDigest [path=" + path + ", digest=" + digest + "]";
+	}
+
+}
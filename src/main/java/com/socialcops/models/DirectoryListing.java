@@ -0,0 +1,64 @@
+package com.socialcops.models;
+
+import java.util.List;
+
+/**
+ * @author PratickChokhani Entries of a requested directory. Entries are not
+ *         sent if the directory has the same digest as requester's copy or
+ *         does not exist
+ */
+public class DirectoryListing {
+
+	/**
+	 * Path relative to the sync folder. Empty for the sync folder
+	 */
+	private String path;
+	/**
+	 * True if the directory has the same digest as requester's copy
+	 */
+	private boolean same;
+	/**
+	 * Entries sorted by name, without their own childs. Sub directories carry
+	 * their digest. Null if the directory does not exist or is the same
+	 */
+	private List<FileTree> childs;
+
+	public DirectoryListing(String path, boolean same, List<FileTree> childs) {
+		this.path = path;
+		this.same = same;
+		this.childs = childs;
+	}
+
+	public DirectoryListing() {
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public boolean isSame() {
+		return same;
+	}
+
+	public void setSame(boolean same) {
+		this.same = same;
+	}
+
+	public List<FileTree> getChilds() {
+		return childs;
+	}
+
+	public void setChilds(List<FileTree> childs) {
+		this.childs = childs;
+	}
+
+	@Override
+	public String toString() {
+		return "DirectoryListing [path=" + path + ", same=" + same + ", childs=" + childs + "]";
+	}
+
+}
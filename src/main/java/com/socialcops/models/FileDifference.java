@@ -19,6 +19,15 @@ public class FileDifference implements Serializable {
 	private FileOperation fileOperation;
 	private String path;
 	private DateTime lastModified;
+	private long size;
+	/**
+	 * Content hash of the file. Present only if it is already known
+	 */
+	private String hash;
+	/**
+	 * Path the file is moved from. Present only for move
+	 */
+	private String sourcePath;
 
 	public FileDifference(FileOperation fileOperation, String path, DateTime lastModified) {
 		super();
@@ -27,6 +36,12 @@ public class FileDifference implements Serializable {
 		this.lastModified = lastModified;
 	}
 
+	public FileDifference(FileOperation fileOperation, String path, DateTime lastModified, long size, String hash) {
+		this(fileOperation, path, lastModified);
+		this.size = size;
+		this.hash = hash;
+	}
+
 	public FileDifference() {
 	}
 
@@ -54,10 +69,34 @@ public class FileDifference implements Serializable {
 		this.lastModified = lastModified;
 	}
 
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public void setHash(String hash) {
+		this.hash = hash;
+	}
+
+	public String getSourcePath() {
+		return sourcePath;
+	}
+
+	public void setSourcePath(String sourcePath) {
+		this.sourcePath = sourcePath;
+	}
+
 	@Override
 	public String toString() {
 		return "FileDifference [fileOperation=" + fileOperation + ", path=" + path + ", lastModified=" + lastModified
-				+ "]";
+				+ ", size=" + size + ", hash=" + hash + ", sourcePath=" + sourcePath + "]";
 	}
 
 }
@@ -13,11 +13,25 @@ public class FileTree implements Serializable {
 	 * 
 	 */
 	private static final long serialVersionUID = -8325978093455770240L;
+	/**
+	 * Orders nodes by name. Childs of a directory are always kept in this
+	 * order
+	 */
+	public static final Comparator<FileTree> NAME_COMPARATOR = new SortComparator();
 	private boolean directory;
 	private String name;
 	private String absolutePath;
 	private String relativePath;
 	private DateTime lastModified;
+	private long size;
+	/**
+	 * Content hash of the file. Present only if it is already known
+	 */
+	private String hash;
+	/**
+	 * Digest of the childs of the directory. Null if it is not computed yet
+	 */
+	private String digest;
 	private List<FileTree> childs;
 
 	public FileTree() {
@@ -33,6 +47,24 @@ public class FileTree implements Serializable {
 		childs = new ArrayList<FileTree>();
 	}
 
+	/**
+	 * Creates deep copy of the file tree
+	 *
+	 * @param fileTree
+	 *            file tree to be copied
+	 */
+	public FileTree(FileTree fileTree) {
+		this(fileTree.directory, fileTree.name, fileTree.absolutePath, fileTree.relativePath, fileTree.lastModified);
+		this.size = fileTree.size;
+		this.hash = fileTree.hash;
+		this.digest = fileTree.digest;
+		if (fileTree.childs != null) {
+			for (FileTree child : fileTree.childs) {
+				childs.add(new FileTree(child));
+			}
+		}
+	}
+
 	public boolean isDirectory() {
 		return directory;
 	}
@@ -73,6 +105,30 @@ public class FileTree implements Serializable {
 		this.lastModified = lastModified;
 	}
 
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public void setHash(String hash) {
+		this.hash = hash;
+	}
+
+	public String getDigest() {
+		return digest;
+	}
+
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
 	public List<FileTree> getChilds() {
 		return childs;
 	}
@@ -84,7 +140,8 @@ public class FileTree implements Serializable {
 	@Override
 	public String toString() {
 		return "FileTree [directory=" + directory + ", name=" + name + ", absolutePath=" + absolutePath
-				+ ", relativePath=" + relativePath + ", lastModified=" + lastModified + ", childs=" + childs + "]";
+				+ ", relativePath=" + relativePath + ", lastModified=" + lastModified + ", size=" + size + ", hash="
+				+ hash + ", digest=" + digest + ", childs=" + childs + "]";
 	}
 
 	public static class SortComparator implements Comparator<FileTree> {
@@ -1,32 +1,58 @@
 package com.socialcops.models;
 
-import java.util.Arrays;
+import com.socialcops.enums.DataIdentifier;
 
 /**
- * @author PratickChokhani Contains data identifier and next data size to
- *         identify next data
+ * @author PratickChokhani Contains data identifier, stream ID and next data
+ *         size to identify next data
  */
 public class SocketStreamData {
 
-	private byte[] dataIdentifier;
+	private DataIdentifier dataIdentifier;
+	/**
+	 * Stream the data belongs to
+	 */
+	private int streamId;
+	/**
+	 * True if the data is the last part of the stream
+	 */
+	private boolean last;
 	private long dataSize;
 
-	public SocketStreamData(byte[] dataIdentifier, long dataSize) {
+	public SocketStreamData(DataIdentifier dataIdentifier, int streamId, boolean last, long dataSize) {
 		this.dataIdentifier = dataIdentifier;
+		this.streamId = streamId;
+		this.last = last;
 		this.dataSize = dataSize;
 	}
 
 	public SocketStreamData() {
 	}
 
-	public byte[] getDataIdentifier() {
+	public DataIdentifier getDataIdentifier() {
 		return dataIdentifier;
 	}
 
-	public void setDataIdentifier(byte[] dataIdentifier) {
+	public void setDataIdentifier(DataIdentifier dataIdentifier) {
 		this.dataIdentifier = dataIdentifier;
 	}
 
+	public int getStreamId() {
+		return streamId;
+	}
+
+	public void setStreamId(int streamId) {
+		this.streamId = streamId;
+	}
+
+	public boolean isLast() {
+		return last;
+	}
+
+	public void setLast(boolean last) {
+		this.last = last;
+	}
+
 	public long getDataSize() {
 		return dataSize;
 	}
@@ -37,7 +63,8 @@ public class SocketStreamData {
 
 	@Override
 	public String toString() {
-		return "SocketStreamData [dataIdentifier=" + Arrays.toString(dataIdentifier) + ", dataSize=" + dataSize + "]";
+		return "SocketStreamData [dataIdentifier=" + dataIdentifier + ", streamId=" + streamId
+				+ ", last=" + last + ", dataSize=" + dataSize + "]";
 	}
 
 }
@@ -1,7 +1,16 @@
 package com.socialcops.properties;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
+import com.google.common.base.CharMatcher;
+
+import com.socialcops.enums.FsyncMode;
+import com.socialcops.enums.TransferOrder;
+import com.socialcops.shaping.RateSchedule;
+
 /**
  * @author PratickChokhani Property received from config.properties is stored
  *         here.
@@ -15,6 +24,36 @@ public class SyncProperty {
 	private static String FILE_TREE_NAME = "file_tree.data";
 	private static String SCHEDULE_DELAY_IN_MILLIS = "schedule.delay.in.millis";
 	private static String DATA_DELIVERY_DELAY = "data.delivery.delay";
+	private static String FILE_TREE_INDEX = "file.tree.index";
+	private static String FILE_TREE_CHECKPOINT_DELAY = "file.tree.checkpoint.delay";
+	private static String SCAN_PARALLELISM = "scan.parallelism";
+	private static String HASH_CACHE = "hash.cache";
+	private static String HASH_CACHE_NAME = "hash_cache.data";
+	private static String DELTA_MIN_SIZE = "delta.min.size";
+	private static String DELTA_BLOCK_SIZE = "delta.block.size";
+	private static String REQUEST_WINDOW_SIZE = "request.window.size";
+	private static String ZERO_COPY = "zero.copy";
+	private static String TRANSFER_BUFFER_SIZE = "transfer.buffer.size";
+	private static String COMPRESSION = "compression";
+	private static String PAYLOAD_FORMAT = "payload.format";
+	private static String JSON = "json";
+	private static String BUNDLE_MAX_FILE_SIZE = "bundle.max.file.size";
+	private static String BUNDLE_MAX_ENTRIES = "bundle.max.entries";
+	private static String DATA_CONNECTIONS = "data.connections";
+	private static String STRIPE_MIN_SIZE = "stripe.min.size";
+	private static String RESUME_CHUNK_SIZE = "resume.chunk.size";
+	private static String RECONNECT_DELAY = "reconnect.delay";
+	private static String FSYNC_MODE = "fsync.mode";
+	private static String FSYNC_BATCH_DELAY = "fsync.batch.delay";
+	private static String METRICS_PORT = "metrics.port";
+	private static String HUB_MAX_CLIENTS = "hub.max.clients";
+	private static String HUB_WORKER_THREADS = "hub.worker.threads";
+	private static String RELAY_PORT = "relay.port";
+	private static String BANDWIDTH_LIMIT = "bandwidth.limit";
+	private static String BANDWIDTH_SCHEDULE = "bandwidth.schedule";
+	private static String CONTROL_BANDWIDTH_LIMIT = "control.bandwidth.limit";
+	private static String TRANSFER_ORDER = "transfer.order";
+	private static String TRANSFER_PRIORITY_PATHS = "transfer.priority.paths";
 
 	/**
 	 * True is current run is master else false
@@ -40,6 +79,125 @@ public class SyncProperty {
 	 * Delay after which folder is to be synced again
 	 */
 	private long dataDeliveryDelay;
+	/**
+	 * File where file tree of the sync folder is stored
+	 */
+	private String fileTreeIndex;
+	/**
+	 * Millis after which file tree is saved again
+	 */
+	private long fileTreeCheckpointDelay;
+	/**
+	 * Number of threads used to scan the sync folder
+	 */
+	private int scanParallelism;
+	/**
+	 * File where content hashes of the files are cached
+	 */
+	private String hashCache;
+	/**
+	 * Files of at least this size are updated by receiving only the changed
+	 * blocks
+	 */
+	private long deltaMinSize;
+	/**
+	 * Block size used to find the changed blocks. Derived from file size if 0
+	 */
+	private int deltaBlockSize;
+	/**
+	 * Maximum number of file requests sent without waiting for their replies
+	 */
+	private int requestWindowSize;
+	/**
+	 * True if files are sent by the kernel straight from the file to socket
+	 */
+	private boolean zeroCopy;
+	/**
+	 * Size of the frames in which files are sent and of the buffer used to
+	 * copy file data
+	 */
+	private int transferBufferSize;
+	/**
+	 * True if data sent is compressed. Compression is switched off for the
+	 * data that does not compress
+	 */
+	private boolean compression;
+	/**
+	 * True if file tree and file differences are sent in binary, false if in
+	 * JSON for debugging
+	 */
+	private boolean binaryPayload;
+	/**
+	 * Files of at most this size are requested together in bundles. Bundles
+	 * are not used if 0
+	 */
+	private long bundleMaxFileSize;
+	/**
+	 * Maximum number of files requested in a bundle
+	 */
+	private int bundleMaxEntries;
+	/**
+	 * Number of data connections opened by the slave along with the primary
+	 * connection. Large files are sent in ranges over them in parallel
+	 */
+	private int dataConnections;
+	/**
+	 * Files of at least this size are sent in ranges over the data
+	 * connections
+	 */
+	private long stripeMinSize;
+	/**
+	 * Size of the chunks in which progress of a file being received is kept.
+	 * Files smaller than a chunk are received again from the start
+	 */
+	private int resumeChunkSize;
+	/**
+	 * Time to wait before connecting again once the connection is lost
+	 */
+	private long reconnectDelay;
+	/**
+	 * How received files are made durable
+	 */
+	private FsyncMode fsyncMode;
+	/**
+	 * Time for which more received files are awaited before a batch is
+	 * synced
+	 */
+	private long fsyncBatchDelay;
+	/**
+	 * Port on which metrics are served, 0 if they are not served
+	 */
+	private int metricsPort;
+	/**
+	 * Maximum number of clients served at once by the master or a relaying
+	 * slave. Master runs as a hub if it is more than 1
+	 */
+	private int hubMaxClients;
+	/**
+	 * Number of threads serving the file requests of the hub's clients
+	 */
+	private int hubWorkerThreads;
+	/**
+	 * Port on which a slave serves its own clients, 0 if it does not relay
+	 */
+	private int relayPort;
+	/**
+	 * Rate of the files, deltas and ranges sent, at each time of the day
+	 */
+	private RateSchedule bulkRateSchedule;
+	/**
+	 * Rate of the control messages sent
+	 */
+	private RateSchedule controlRateSchedule;
+	/**
+	 * Order in which the files to be received are requested
+	 */
+	private TransferOrder transferOrder;
+	/**
+	 * Paths relative to the sync folder whose files are requested first, in
+	 * the order of their priority
+	 */
+	private List<String> transferPriorityPaths;
 
 	public SyncProperty(Properties properties) throws NumberFormatException {
 		this.master = properties.getProperty(MASTER).equals(MASTER) ? true : false;
@@ -48,6 +206,44 @@ public class SyncProperty {
 		this.syncFolder = properties.getProperty(SYNC_FOLDER);
 		this.scheduleDelayInMillis = Long.parseLong(properties.getProperty(SCHEDULE_DELAY_IN_MILLIS));
 		this.dataDeliveryDelay = Long.parseLong(properties.getProperty(DATA_DELIVERY_DELAY));
+		this.fileTreeIndex = properties.getProperty(FILE_TREE_INDEX, FILE_TREE_NAME);
+		this.fileTreeCheckpointDelay = Long.parseLong(properties.getProperty(FILE_TREE_CHECKPOINT_DELAY, "300000"));
+		this.scanParallelism = Integer.parseInt(properties.getProperty(SCAN_PARALLELISM,
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
+		this.hashCache = properties.getProperty(HASH_CACHE, HASH_CACHE_NAME);
+		this.deltaMinSize = Long.parseLong(properties.getProperty(DELTA_MIN_SIZE, "1048576"));
+		this.deltaBlockSize = Integer.parseInt(properties.getProperty(DELTA_BLOCK_SIZE, "0"));
+		this.requestWindowSize = Math.max(1, Integer.parseInt(properties.getProperty(REQUEST_WINDOW_SIZE, "8")));
+		this.zeroCopy = Boolean.parseBoolean(properties.getProperty(ZERO_COPY, "true"));
+		this.transferBufferSize = Integer.parseInt(properties.getProperty(TRANSFER_BUFFER_SIZE, "1048576"));
+		this.compression = Boolean.parseBoolean(properties.getProperty(COMPRESSION, "true"));
+		this.binaryPayload = !JSON.equals(properties.getProperty(PAYLOAD_FORMAT));
+		this.bundleMaxFileSize = Long.parseLong(properties.getProperty(BUNDLE_MAX_FILE_SIZE, "8192"));
+		this.bundleMaxEntries = Math.max(1, Integer.parseInt(properties.getProperty(BUNDLE_MAX_ENTRIES, "128")));
+		this.dataConnections = Math.max(0, Integer.parseInt(properties.getProperty(DATA_CONNECTIONS, "0")));
+		this.stripeMinSize = Long.parseLong(properties.getProperty(STRIPE_MIN_SIZE, "67108864"));
+		this.resumeChunkSize = Integer.parseInt(properties.getProperty(RESUME_CHUNK_SIZE, "4194304"));
+		this.reconnectDelay = Long.parseLong(properties.getProperty(RECONNECT_DELAY, "5000"));
+		this.fsyncMode = FsyncMode.valueOf(properties.getProperty(FSYNC_MODE, "batch").trim().toUpperCase());
+		this.fsyncBatchDelay = Long.parseLong(properties.getProperty(FSYNC_BATCH_DELAY, "20"));
+		this.metricsPort = Integer.parseInt(properties.getProperty(METRICS_PORT, "0"));
+		this.hubMaxClients = Math.max(1, Integer.parseInt(properties.getProperty(HUB_MAX_CLIENTS, "1")));
+		this.hubWorkerThreads = Math.max(1, Integer.parseInt(properties.getProperty(HUB_WORKER_THREADS,
+				String.valueOf(Runtime.getRuntime().availableProcessors()))));
+		this.relayPort = Integer.parseInt(properties.getProperty(RELAY_PORT, "0"));
+		this.bulkRateSchedule = new RateSchedule(Long.parseLong(properties.getProperty(BANDWIDTH_LIMIT, "0")),
+				properties.getProperty(BANDWIDTH_SCHEDULE, ""));
+		this.controlRateSchedule = new RateSchedule(
+				Long.parseLong(properties.getProperty(CONTROL_BANDWIDTH_LIMIT, "0")), "");
+		this.transferOrder = TransferOrder
+				.valueOf(properties.getProperty(TRANSFER_ORDER, "smallest").trim().toUpperCase());
+		this.transferPriorityPaths = new ArrayList<>();
+		for (String path : properties.getProperty(TRANSFER_PRIORITY_PATHS, "").split(",")) {
+			path = CharMatcher.is(File.separatorChar).trimTrailingFrom(path.trim());
+			if (!path.isEmpty()) {
+				transferPriorityPaths.add(path);
+			}
+		}
 	}
 
 	public static String getMASTER() {
@@ -102,11 +298,144 @@ public class SyncProperty {
 		return dataDeliveryDelay;
 	}
 
+	public String getFileTreeIndex() {
+		return fileTreeIndex;
+	}
+
+	public long getFileTreeCheckpointDelay() {
+		return fileTreeCheckpointDelay;
+	}
+
+	public int getScanParallelism() {
+		return scanParallelism;
+	}
+
+	public String getHashCache() {
+		return hashCache;
+	}
+
+	public long getDeltaMinSize() {
+		return deltaMinSize;
+	}
+
+	public int getDeltaBlockSize() {
+		return deltaBlockSize;
+	}
+
+	public int getRequestWindowSize() {
+		return requestWindowSize;
+	}
+
+	public boolean isZeroCopy() {
+		return zeroCopy;
+	}
+
+	public int getTransferBufferSize() {
+		return transferBufferSize;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	public boolean isBinaryPayload() {
+		return binaryPayload;
+	}
+
+	public long getBundleMaxFileSize() {
+		return bundleMaxFileSize;
+	}
+
+	public int getBundleMaxEntries() {
+		return bundleMaxEntries;
+	}
+
+	public int getDataConnections() {
+		return dataConnections;
+	}
+
+	public long getStripeMinSize() {
+		return stripeMinSize;
+	}
+
+	public int getResumeChunkSize() {
+		return resumeChunkSize;
+	}
+
+	public long getReconnectDelay() {
+		return reconnectDelay;
+	}
+
+	public FsyncMode getFsyncMode() {
+		return fsyncMode;
+	}
+
+	public long getFsyncBatchDelay() {
+		return fsyncBatchDelay;
+	}
+
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+
+	public int getHubMaxClients() {
+		return hubMaxClients;
+	}
+
+	public int getHubWorkerThreads() {
+		return hubWorkerThreads;
+	}
+
+	/**
+	 * @return true if the master serves many clients at once
+	 */
+	public boolean isHub() {
+		return master && hubMaxClients > 1;
+	}
+
+	public int getRelayPort() {
+		return relayPort;
+	}
+
+	/**
+	 * @return true if the slave serves the files it syncs to its own clients
+	 */
+	public boolean isRelay() {
+		return !master && relayPort > 0;
+	}
+
+	public RateSchedule getBulkRateSchedule() {
+		return bulkRateSchedule;
+	}
+
+	public RateSchedule getControlRateSchedule() {
+		return controlRateSchedule;
+	}
+
+	public TransferOrder getTransferOrder() {
+		return transferOrder;
+	}
+
+	public List<String> getTransferPriorityPaths() {
+		return transferPriorityPaths;
+	}
+
 	@Override
 	public String toString() {
 		return "SyncProperty [master=" + master + ", serverIp=" + serverIp + ", serverPort=" + serverPort
 				+ ", syncFolder=" + syncFolder + ", scheduleDelayInMillis=" + scheduleDelayInMillis
-				+ ", dataDeliveryDelay=" + dataDeliveryDelay + "]";
+				+ ", dataDeliveryDelay=" + dataDeliveryDelay + ", fileTreeIndex=" + fileTreeIndex
+				+ ", fileTreeCheckpointDelay=" + fileTreeCheckpointDelay + ", scanParallelism=" + scanParallelism
+				+ ", hashCache=" + hashCache + ", deltaMinSize=" + deltaMinSize + ", deltaBlockSize=" + deltaBlockSize
+				+ ", requestWindowSize=" + requestWindowSize + ", zeroCopy=" + zeroCopy + ", transferBufferSize="
+				+ transferBufferSize + ", compression=" + compression + ", binaryPayload=" + binaryPayload
+				+ ", bundleMaxFileSize=" + bundleMaxFileSize + ", bundleMaxEntries=" + bundleMaxEntries
+				+ ", dataConnections=" + dataConnections + ", stripeMinSize=" + stripeMinSize + ", resumeChunkSize="
+				+ resumeChunkSize + ", reconnectDelay=" + reconnectDelay + ", fsyncMode=" + fsyncMode + ", fsyncBatchDelay="
+				+ fsyncBatchDelay + ", metricsPort=" + metricsPort + ", hubMaxClients=" + hubMaxClients
+				+ ", hubWorkerThreads=" + hubWorkerThreads + ", relayPort=" + relayPort + ", bulkRateSchedule="
+				+ bulkRateSchedule + ", controlRateSchedule=" + controlRateSchedule + ", transferOrder=" + transferOrder
+				+ ", transferPriorityPaths=" + transferPriorityPaths + "]";
 	}
 
 }
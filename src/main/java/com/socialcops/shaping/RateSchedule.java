@@ -0,0 +1,94 @@
+package com.socialcops.shaping;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.LocalTime;
+
+/**
+ * @author PratickChokhani Rate at which data may be sent at each time of the
+ *         day. Schedule is a comma separated list of windows
+ *         "HH:mm-HH:mm=rate" in local time, rate being in bytes per second and
+ *         0 meaning unlimited. A window whose end is before its start runs
+ *         past midnight. First window containing the time gives the rate,
+ *         default rate applies outside the windows.
+ */
+public class RateSchedule {
+
+	private final long defaultRate;
+	private final List<Window> windows = new ArrayList<>();
+
+	/**
+	 * @param defaultRate
+	 *            bytes per second outside the windows, 0 if unlimited
+	 * @param schedule
+	 *            windows with their rates, empty if there are none
+	 * @throws IllegalArgumentException
+	 *             if the schedule cannot be parsed
+	 */
+	public RateSchedule(long defaultRate, String schedule) throws IllegalArgumentException {
+		this.defaultRate = Math.max(0L, defaultRate);
+		for (String window : schedule.split(",")) {
+			if (window.trim().isEmpty()) {
+				continue;
+			}
+			String[] parts = window.trim().split("[-=]");
+			if (parts.length != 3) {
+				throw new IllegalArgumentException("Invalid rate window: " + window);
+			}
+			windows.add(new Window(LocalTime.parse(parts[0].trim()).getMillisOfDay(),
+					LocalTime.parse(parts[1].trim()).getMillisOfDay(), Math.max(0L, Long.parseLong(parts[2].trim()))));
+		}
+	}
+
+	/**
+	 * @param time
+	 * @return bytes per second allowed at the time, 0 if unlimited
+	 */
+	public long rateAt(LocalTime time) {
+		int millisOfDay = time.getMillisOfDay();
+		for (Window window : windows) {
+			if (window.contains(millisOfDay)) {
+				return window.rate;
+			}
+		}
+		return defaultRate;
+	}
+
+	/**
+	 * @return bytes per second allowed now, 0 if unlimited
+	 */
+	public long currentRate() {
+		return rateAt(LocalTime.now());
+	}
+
+	@Override
+	public String toString() {
+		return "RateSchedule [defaultRate=" + defaultRate + ", windows=" + windows + "]";
+	}
+
+	private static class Window {
+		private final int start;
+		private final int end;
+		private final long rate;
+
+		private Window(int start, int end, long rate) {
+			this.start = start;
+			this.end = end;
+			this.rate = rate;
+		}
+
+		private boolean contains(int millisOfDay) {
+			if (start <= end) {
+				return millisOfDay >= start && millisOfDay < end;
+			}
+			return millisOfDay >= start || millisOfDay < end;
+		}
+
+		@Override
+		public String toString() {
+			return LocalTime.fromMillisOfDay(start).toString("HH:mm") + "-"
+					+ LocalTime.fromMillisOfDay(end).toString("HH:mm") + "=" + rate;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.socialcops.shaping;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author PratickChokhani Limits the rate at which data is sent. Tokens are
+ *         bytes added at the scheduled rate, up to a second worth of them,
+ *         and taken as frames are written. A frame is written once there is
+ *         any token, taking its whole size even if it leaves the bucket in
+ *         debt, so that frames larger than the bucket are written too and
+ *         the rate is kept on average. Tokens are taken for the frame before
+ *         it is written, so that writers sharing the bucket do not all write
+ *         on the same tokens, and the difference is settled once its size is
+ *         known.
+ *
+ *         A bucket is shared by all the connections whose data it limits, so
+ *         that together they keep to the rate.
+ */
+public class TokenBucket {
+	private static final Logger logger = LoggerFactory.getLogger(TokenBucket.class);
+
+	private final String name;
+	private final RateSchedule schedule;
+	private double tokens = 0;
+	private long lastRefill = System.nanoTime();
+	/**
+	 * Rate in bytes per second at the last refill, 0 if unlimited
+	 */
+	private long rate = 0L;
+
+	/**
+	 * @param name
+	 *            kind of data limited, used in logs and metrics
+	 * @param schedule
+	 *            rate at each time of the day
+	 */
+	public TokenBucket(String name, RateSchedule schedule) {
+		this.name = name;
+		this.schedule = schedule;
+	}
+
+	/**
+	 * @return nanoseconds to wait before the next frame can be written, 0 if
+	 *         it can be written now
+	 */
+	public synchronized long delayNanos() {
+		refill();
+		if (rate == 0 || tokens > 0) {
+			return 0L;
+		}
+		return (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate) + 1;
+	}
+
+	/**
+	 * Takes the tokens of a frame if there are any
+	 *
+	 * @param bytes
+	 *            expected size of the frame
+	 * @return 0 if the tokens are taken, else nanoseconds to wait before
+	 *         trying again
+	 */
+	public synchronized long tryConsume(long bytes) {
+		long delay = delayNanos();
+		if (delay == 0) {
+			consume(bytes);
+		}
+		return delay;
+	}
+
+	/**
+	 * Takes the tokens of a written frame, or gives them back if it is
+	 * negative
+	 *
+	 * @param bytes
+	 *            size of the frame
+	 */
+	public synchronized void consume(long bytes) {
+		refill();
+		if (rate > 0) {
+			tokens = Math.min(rate, tokens - bytes);
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		long currentRate = schedule.currentRate();
+		if (currentRate != rate) {
+			logger.info("Rate of {} data set to {} bytes per second (0 is unlimited)", name, currentRate);
+			rate = currentRate;
+			tokens = Math.min(tokens, rate);
+		}
+		tokens = Math.min(rate, tokens + (double) rate * (now - lastRefill) / TimeUnit.SECONDS.toNanos(1));
+		lastRefill = now;
+	}
+}
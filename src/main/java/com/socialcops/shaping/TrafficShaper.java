@@ -0,0 +1,48 @@
+package com.socialcops.shaping;
+
+import java.util.concurrent.TimeUnit;
+
+import com.socialcops.metrics.Counter;
+import com.socialcops.metrics.Metrics;
+
+/**
+ * @author PratickChokhani Budgets of the data sent over all the connections.
+ *         Control messages and bulk streams (files, deltas and ranges) have
+ *         separate budgets, so that requests and replies keep flowing while
+ *         files are held to their rate.
+ */
+public class TrafficShaper {
+	private static final Counter throttledMillis = Metrics.counter("sync_throttled_milliseconds_total",
+			"Time writers waited for the rate limits before sending");
+
+	private final TokenBucket controlBudget;
+	private final TokenBucket bulkBudget;
+
+	/**
+	 * @param controlSchedule
+	 *            rate of the control messages
+	 * @param bulkSchedule
+	 *            rate of the bulk streams
+	 */
+	public TrafficShaper(RateSchedule controlSchedule, RateSchedule bulkSchedule) {
+		this.controlBudget = new TokenBucket("control", controlSchedule);
+		this.bulkBudget = new TokenBucket("bulk", bulkSchedule);
+	}
+
+	public TokenBucket getControlBudget() {
+		return controlBudget;
+	}
+
+	public TokenBucket getBulkBudget() {
+		return bulkBudget;
+	}
+
+	/**
+	 * Records the time a writer waited for tokens
+	 *
+	 * @param nanos
+	 */
+	public void throttled(long nanos) {
+		throttledMillis.add(TimeUnit.NANOSECONDS.toMillis(nanos));
+	}
+}
@@ -0,0 +1,104 @@
+package com.socialcops.sockets;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author PratickChokhani Bounded pool of reusable buffers of the same size.
+ *         Buffer is taken when needed and given back once it is no longer
+ *         used, so that the memory held stays the same however much data
+ *         passes through.
+ *
+ *         If all buffers are in use, the caller waits for one to be given
+ *         back. If none is given back for a while, an extra buffer is
+ *         allocated so that the caller is not blocked forever, e.g. when both
+ *         systems are sending to each other and none of them is reading.
+ *         Extra buffers are bounded too: once they are all in use, callers
+ *         wait again until a buffer is given back.
+ */
+public class BufferPool {
+	private static final Logger logger = LoggerFactory.getLogger(BufferPool.class);
+	private static final long WAIT_MILLIS = 1000L;
+
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final int maxExtraBuffers;
+	private final Deque<byte[]> freeBuffers = new ArrayDeque<>();
+	private int createdBuffers = 0;
+	/**
+	 * Extra buffers in use. They are dropped once given back
+	 */
+	private int extraBuffers = 0;
+	/**
+	 * True if no buffer has been given back since the last wait timed out.
+	 * Callers do not wait while it is set
+	 */
+	private boolean stalled = false;
+
+	/**
+	 * @param bufferSize
+	 *            size of each buffer
+	 * @param maxBuffers
+	 *            maximum number of buffers kept in the pool
+	 * @param maxExtraBuffers
+	 *            maximum number of extra buffers in use while no buffer is
+	 *            given back
+	 */
+	public BufferPool(int bufferSize, int maxBuffers, int maxExtraBuffers) {
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+		this.maxExtraBuffers = maxExtraBuffers;
+	}
+
+	/**
+	 * @return free buffer, waiting for one if all are in use, including the
+	 *         extra buffers
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting
+	 */
+	public synchronized byte[] acquire() throws InterruptedIOException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (freeBuffers.isEmpty() && createdBuffers >= maxBuffers) {
+			long timeout = deadline - System.currentTimeMillis();
+			if ((stalled || timeout <= 0) && extraBuffers < maxExtraBuffers) {
+				if (!stalled) {
+					logger.warn("No buffer freed in {} ms. Allocating extra buffers.", WAIT_MILLIS);
+				}
+				stalled = true;
+				extraBuffers++;
+				return new byte[bufferSize];
+			}
+			try {
+				wait(timeout > 0 ? timeout : WAIT_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a buffer.");
+			}
+		}
+		if (!freeBuffers.isEmpty()) {
+			return freeBuffers.removeFirst();
+		}
+		createdBuffers++;
+		return new byte[bufferSize];
+	}
+
+	/**
+	 * Gives back the buffer. A buffer is dropped for each extra buffer in use
+	 *
+	 * @param buffer
+	 *            buffer taken from this pool
+	 */
+	public synchronized void release(byte[] buffer) {
+		stalled = false;
+		if (extraBuffers > 0) {
+			extraBuffers--;
+		} else if (buffer.length == bufferSize && freeBuffers.size() < maxBuffers) {
+			freeBuffers.addFirst(buffer);
+		}
+		notifyAll();
+	}
+}
@@ -0,0 +1,184 @@
+package com.socialcops.sockets;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.socialcops.enums.DataIdentifier;
+import com.socialcops.shaping.TrafficShaper;
+
+/**
+ * @author PratickChokhani Extra connection over which ranges of large files
+ *         are sent in parallel with the other data connections. Each range is
+ *         a bulk stream whose first frame starts with the request ID and the
+ *         offset of the range. Received ranges are written at their offset on
+ *         the connection's own thread.
+ *
+ *         Frames are not compressed on data connections.
+ */
+class DataConnection implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(DataConnection.class);
+	/**
+	 * Size of the header at the start of a range
+	 */
+	static final int RANGE_HEADER_BYTES = Long.BYTES + Long.BYTES;
+
+	private final SocketChannel socketChannel;
+	private final SocketManager socketManager;
+	private final FrameWriter frameWriter;
+	private final Selector selector;
+	private final ByteBuffer frameHeader = ByteBuffer.allocate(FrameWriter.OPCODE_BYTES + FrameWriter.HEADER_BYTES);
+	private final ByteBuffer rangeHeader = ByteBuffer.allocate(RANGE_HEADER_BYTES);
+	private final ByteBuffer buffer;
+	/**
+	 * Ranges being received, by stream ID. Each is the request ID, the offset
+	 * where the next data is to be written and the offset where the range
+	 * starts
+	 */
+	private final Map<Integer, long[]> ranges = new HashMap<>();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param socketChannel
+	 *            connected channel
+	 * @param socketManager
+	 *            where received ranges are reported
+	 * @param zeroCopy
+	 * @param transferBufferSize
+	 *            size of the frames and of the receive buffer
+	 * @param bufferPool
+	 * @param trafficShaper
+	 * @throws IOException
+	 */
+	DataConnection(SocketChannel socketChannel, SocketManager socketManager, boolean zeroCopy,
+			int transferBufferSize, BufferPool bufferPool, TrafficShaper trafficShaper) throws IOException {
+		this.socketChannel = socketChannel;
+		this.socketManager = socketManager;
+		socketChannel.configureBlocking(false);
+		socketChannel.socket().setKeepAlive(true);
+		this.selector = Selector.open();
+		socketChannel.register(selector, SelectionKey.OP_READ);
+		this.frameWriter = new FrameWriter(socketChannel, zeroCopy, false, transferBufferSize, bufferPool,
+				trafficShaper);
+		this.buffer = ByteBuffer.allocateDirect(transferBufferSize);
+	}
+
+	/**
+	 * Starts the threads writing to and reading from the connection
+	 *
+	 * @param index
+	 *            number of the connection used in thread names
+	 */
+	void start(int index) {
+		Thread writerThread = new Thread(frameWriter, "data-writer-" + index);
+		writerThread.setDaemon(true);
+		writerThread.start();
+		Thread readerThread = new Thread(this, "data-reader-" + index);
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+
+	FrameWriter getFrameWriter() {
+		return frameWriter;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!closed) {
+				readFrame();
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				socketManager.dataConnectionFailed(e);
+			}
+		} finally {
+			IOUtils.closeQuietly(selector);
+		}
+	}
+
+	/**
+	 * Reads a frame and writes its data at the offset of its range
+	 *
+	 * @throws IOException
+	 */
+	private void readFrame() throws IOException {
+		frameHeader.clear();
+		readFully(frameHeader);
+		frameHeader.flip();
+		DataIdentifier dataIdentifier = DataIdentifier.fromOpcode(frameHeader.get());
+		int streamId = frameHeader.getInt();
+		byte flags = frameHeader.get();
+		long size = frameHeader.getInt();
+		if (dataIdentifier != DataIdentifier.FRG || (flags & FrameWriter.COMPRESSED) != 0) {
+			throw new IOException("Invalid frame received on data connection: " + dataIdentifier);
+		}
+
+		long[] range = ranges.get(streamId);
+		if (range == null) {
+			rangeHeader.clear();
+			readFully(rangeHeader);
+			rangeHeader.flip();
+			long requestId = rangeHeader.getLong();
+			long offset = rangeHeader.getLong();
+			range = new long[] { requestId, offset, offset };
+			ranges.put(streamId, range);
+			size -= RANGE_HEADER_BYTES;
+		}
+		IncomingStripes incomingStripes = socketManager.getStripes(range[0]);
+		while (size > 0) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), size));
+			readFully(buffer);
+			buffer.flip();
+			int length = buffer.remaining();
+			if (incomingStripes != null) {
+				range[1] += incomingStripes.write(range[2], buffer, range[1]);
+			}
+			size -= length;
+			if (incomingStripes != null) {
+				socketManager.receivedStripe(range[0], incomingStripes, length);
+			} else {
+				logger.error("Received range was not requested. Request ID: {}", range[0]);
+			}
+		}
+		if ((flags & FrameWriter.LAST) != 0) {
+			ranges.remove(streamId);
+		}
+	}
+
+	private void readFully(ByteBuffer byteBuffer) throws IOException {
+		while (byteBuffer.hasRemaining()) {
+			int read = socketChannel.read(byteBuffer);
+			if (read < 0) {
+				throw new EOFException("Data connection closed by remote system.");
+			}
+			if (read == 0) {
+				selector.select(1000L);
+				selector.selectedKeys().clear();
+				if (closed) {
+					throw new IOException("Data connection is closed.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the threads and closes the connection
+	 */
+	void close() {
+		closed = true;
+		frameWriter.close();
+		selector.wakeup();
+		IOUtils.closeQuietly(socketChannel);
+	}
+}
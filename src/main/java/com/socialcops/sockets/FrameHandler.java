@@ -0,0 +1,21 @@
+package com.socialcops.sockets;
+
+import java.io.IOException;
+
+import com.socialcops.models.SocketStreamData;
+
+/**
+ * @author PratickChokhani Processes a frame of another stream received while a
+ *         message is being read
+ */
+public interface FrameHandler {
+
+	/**
+	 * Reads the payload of the frame whose header has been received
+	 *
+	 * @param socketStreamData
+	 *            header of the frame
+	 * @throws IOException
+	 */
+	void handle(SocketStreamData socketStreamData) throws IOException;
+}
@@ -0,0 +1,620 @@
+package com.socialcops.sockets;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.socialcops.enums.DataIdentifier;
+import com.socialcops.metrics.Counter;
+import com.socialcops.metrics.Metrics;
+import com.socialcops.shaping.TokenBucket;
+import com.socialcops.shaping.TrafficShaper;
+
+/**
+ * @author PratickChokhani Writes the data to socket as frames on its own
+ *         thread. Each message gets a stream ID and is split into frames, so
+ *         that messages can be interleaved on the same connection.
+ *
+ *         A frame is the opcode of the data identifier (byte), stream ID
+ *         (int), flags (byte, LAST is set on the last frame of the message),
+ *         payload size (int) and the payload.
+ *
+ *         Control messages are always written before bulk streams. A control
+ *         message may also be queued frame by frame while it is being
+ *         encoded, in buffers which are given back to the pool once written.
+ *         Control messages queued by other threads meanwhile are held back
+ *         until it is complete, so that control messages are not interleaved. Bulk streams
+ *         take turns frame by frame, so a large file does not hold back the
+ *         rest of the transfers. File data of the bulk streams is sent by the
+ *         kernel straight from the file to the socket if zero copy is
+ *         enabled, otherwise it is copied through the buffer.
+ *
+ *         Frames of at least MIN_COMPRESSION_SIZE bytes are compressed if
+ *         compression is enabled. Such frame has COMPRESSED flag and its
+ *         payload is the uncompressed size (int) followed by the deflated
+ *         data. Compression of a message is switched off for its remaining
+ *         frames once a frame does not shrink below MAX_COMPRESSION_RATIO,
+ *         so that media and archives are sent as they are.
+ *
+ *         Frames are written within the budgets of the traffic shaper, control
+ *         messages and bulk streams each taking from their own. A message
+ *         whose budget is spent waits while the other kind is written.
+ *
+ *         Socket is non blocking. Frames are collected in a buffer which is
+ *         written once it is full or there is nothing more to write, waiting
+ *         on a selector whenever the socket cannot take more data.
+ */
+public class FrameWriter implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(FrameWriter.class);
+
+	/**
+	 * Maximum payload of a control message frame
+	 */
+	public static final int FRAME_SIZE = 64 * 1024;
+	/**
+	 * Size of the opcode at the start of the frame
+	 */
+	public static final int OPCODE_BYTES = 1;
+	/**
+	 * Size of the frame header after the opcode
+	 */
+	public static final int HEADER_BYTES = Integer.BYTES + 1 + Integer.BYTES;
+	public static final byte LAST = 1;
+	public static final byte COMPRESSED = 2;
+	private static final int MIN_COMPRESSION_SIZE = 512;
+	private static final double MAX_COMPRESSION_RATIO = 0.9;
+	private static final Counter sentBytes = Metrics.counter("sync_socket_sent_bytes_total",
+			"Bytes written to the connections");
+
+	private final SocketChannel socketChannel;
+	private final Selector selector;
+	private final boolean zeroCopy;
+	private final boolean compression;
+	private final int bulkFrameSize;
+	private final BufferPool bufferPool;
+	private final TrafficShaper trafficShaper;
+	private final ByteBuffer buffer;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+	/**
+	 * Payload of the frame being compressed and its compressed form
+	 */
+	private final byte[] rawPayload;
+	private final byte[] compressedPayload;
+	private volatile long uncompressedBytes = 0L;
+	private volatile long compressedBytes = 0L;
+	private final Deque<OutgoingMessage> controlMessages = new ArrayDeque<>();
+	private final Deque<OutgoingMessage> bulkStreams = new ArrayDeque<>();
+	/**
+	 * Control messages queued while another is being queued frame by frame
+	 */
+	private final Deque<OutgoingMessage> deferredMessages = new ArrayDeque<>();
+	private int lastStreamId = 0;
+	/**
+	 * Stream ID of the control message being queued frame by frame, 0 if
+	 * there is none
+	 */
+	private int openStreamId = 0;
+	private volatile IOException failure = null;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param socketChannel
+	 *            non blocking channel of the socket
+	 * @param zeroCopy
+	 *            true if file data is to be transferred directly from the
+	 *            file to socket
+	 * @param compression
+	 *            true if frames are to be compressed
+	 * @param bulkFrameSize
+	 *            maximum payload of a bulk stream frame
+	 * @param bufferPool
+	 *            pool of FRAME_SIZE buffers in which messages are encoded
+	 * @param trafficShaper
+	 *            budgets within which frames are written
+	 * @throws IOException
+	 */
+	public FrameWriter(SocketChannel socketChannel, boolean zeroCopy, boolean compression, int bulkFrameSize,
+			BufferPool bufferPool, TrafficShaper trafficShaper) throws IOException {
+		this.socketChannel = socketChannel;
+		this.selector = Selector.open();
+		socketChannel.register(selector, SelectionKey.OP_WRITE);
+		this.zeroCopy = zeroCopy;
+		this.compression = compression;
+		this.bulkFrameSize = bulkFrameSize;
+		this.bufferPool = bufferPool;
+		this.trafficShaper = trafficShaper;
+		int frameSize = Math.max(FRAME_SIZE, bulkFrameSize);
+		this.buffer = ByteBuffer.allocateDirect(OPCODE_BYTES + HEADER_BYTES + Integer.BYTES + frameSize);
+		this.rawPayload = compression ? new byte[frameSize] : null;
+		this.compressedPayload = compression ? new byte[frameSize] : null;
+	}
+
+	/**
+	 * Queues a control message. Control messages are written ahead of bulk
+	 * streams in the order they are queued
+	 *
+	 * @param dataIdentifier
+	 * @param data
+	 * @throws IOException
+	 *             if the writer has failed
+	 */
+	public synchronized void sendMessage(DataIdentifier dataIdentifier, byte[] data) throws IOException {
+		checkFailure();
+		OutgoingMessage message = new OutgoingMessage(dataIdentifier, ++lastStreamId, data, null, data.length);
+		message.compress = compression;
+		if (openStreamId != 0) {
+			deferredMessages.add(message);
+			return;
+		}
+		controlMessages.add(message);
+		notifyAll();
+	}
+
+	/**
+	 * Starts a control message which is queued frame by frame as it is
+	 * written. Waits if another thread is writing such a message
+	 *
+	 * @param dataIdentifier
+	 * @return stream to which the message is to be written and then closed
+	 * @throws IOException
+	 *             if the writer has failed
+	 */
+	public synchronized MessageOutputStream openMessage(DataIdentifier dataIdentifier) throws IOException {
+		checkFailure();
+		while (openStreamId != 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a message to be written.");
+			}
+			checkFailure();
+		}
+		openStreamId = ++lastStreamId;
+		return new MessageOutputStream(this, dataIdentifier, openStreamId, bufferPool);
+	}
+
+	/**
+	 * Queues a frame of the control message being written. Buffer is given
+	 * back to the pool once the frame is written or dropped
+	 *
+	 * @param dataIdentifier
+	 * @param streamId
+	 *            stream ID of the message
+	 * @param data
+	 *            buffer taken from the pool
+	 * @param size
+	 *            size of the data in the buffer, at most FRAME_SIZE
+	 * @param last
+	 *            true if it is the last frame of the message
+	 * @throws IOException
+	 *             if the writer has failed
+	 */
+	synchronized void sendMessagePart(DataIdentifier dataIdentifier, int streamId, byte[] data, int size, boolean last)
+			throws IOException {
+		if (failure != null || closed) {
+			bufferPool.release(data);
+			checkFailure();
+		}
+		OutgoingMessage message = new OutgoingMessage(dataIdentifier, streamId, data, null, size);
+		message.dataLength = size;
+		message.last = last;
+		message.bufferPool = bufferPool;
+		message.compress = compression;
+		controlMessages.add(message);
+		if (last && streamId == openStreamId) {
+			openStreamId = 0;
+			controlMessages.addAll(deferredMessages);
+			deferredMessages.clear();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Queues a bulk stream. File is read while being written and closed
+	 * afterwards
+	 *
+	 * @param dataIdentifier
+	 * @param header
+	 *            bytes sent before the data, always in the first frame
+	 * @param size
+	 *            size of the data
+	 * @param channel
+	 *            file from where data is to be read from its current position
+	 * @throws IOException
+	 *             if the writer has failed
+	 */
+	public synchronized void sendStream(DataIdentifier dataIdentifier, byte[] header, long size, FileChannel channel)
+			throws IOException {
+		if (failure != null || closed) {
+			IOUtils.closeQuietly(channel);
+			checkFailure();
+		}
+		OutgoingMessage message = new OutgoingMessage(dataIdentifier, ++lastStreamId, header, channel,
+				header.length + size);
+		message.position = channel.position();
+		message.compress = compression;
+		bulkStreams.add(message);
+		notifyAll();
+	}
+
+	/**
+	 * Stops the writer. Queued messages are dropped
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		OutgoingMessage message = null;
+		try {
+			while ((message = nextMessage()) != null) {
+				int expectedSize = expectedFrameSize(message);
+				budget(message).consume(writeFrame(message) - expectedSize);
+				boolean idle;
+				synchronized (this) {
+					if (message.remaining == 0) {
+						message.close();
+						logCompression(message);
+					} else if (message.channel != null) {
+						// Next stream gets the next frame
+						bulkStreams.addLast(message);
+					} else {
+						// Control messages are written one after the other
+						controlMessages.addFirst(message);
+					}
+					message = null;
+					// Frames written so far are not held back while waiting for
+					// the budget
+					idle = delayNanos() != 0;
+				}
+				if (idle) {
+					flush();
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Cannot write to socket.", e);
+			failure = e;
+		} finally {
+			if (message != null) {
+				message.close();
+			}
+			closeQueued();
+			IOUtils.closeQuietly(selector);
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Waits for the next message to be written within its budget, taking the
+	 * expected size of its frame from the budget. Message is removed from the
+	 * queue and added back by the caller if it is not complete
+	 *
+	 * @return message or null if writer is closed
+	 */
+	private synchronized OutgoingMessage nextMessage() {
+		while (!closed) {
+			if (!controlMessages.isEmpty() && trafficShaper.getControlBudget()
+					.tryConsume(expectedFrameSize(controlMessages.peekFirst())) == 0) {
+				return controlMessages.removeFirst();
+			}
+			if (!bulkStreams.isEmpty()
+					&& trafficShaper.getBulkBudget().tryConsume(expectedFrameSize(bulkStreams.peekFirst())) == 0) {
+				return bulkStreams.removeFirst();
+			}
+			long delay = delayNanos();
+			try {
+				if (delay < 0) {
+					wait();
+				} else {
+					long start = System.nanoTime();
+					TimeUnit.NANOSECONDS.timedWait(this, delay);
+					trafficShaper.throttled(System.nanoTime() - start);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return 0 if a queued message can be written now, else nanoseconds until
+	 *         the budget of one allows it or -1 if nothing is queued
+	 */
+	private synchronized long delayNanos() {
+		long delay = -1L;
+		if (!controlMessages.isEmpty()) {
+			delay = trafficShaper.getControlBudget().delayNanos();
+		}
+		if (!bulkStreams.isEmpty()) {
+			long bulkDelay = trafficShaper.getBulkBudget().delayNanos();
+			delay = delay < 0 ? bulkDelay : Math.min(delay, bulkDelay);
+		}
+		return delay;
+	}
+
+	/**
+	 * @param message
+	 * @return size of the next frame of the message if it is not compressed
+	 */
+	private int expectedFrameSize(OutgoingMessage message) {
+		return OPCODE_BYTES + HEADER_BYTES + payloadSize(message);
+	}
+
+	private int payloadSize(OutgoingMessage message) {
+		return (int) Math.min(message.channel == null ? FRAME_SIZE : bulkFrameSize, message.remaining);
+	}
+
+	private TokenBucket budget(OutgoingMessage message) {
+		return message.channel == null ? trafficShaper.getControlBudget() : trafficShaper.getBulkBudget();
+	}
+
+	/**
+	 * @param message
+	 * @return size of the frame written
+	 * @throws IOException
+	 */
+	private int writeFrame(OutgoingMessage message) throws IOException {
+		int size = payloadSize(message);
+		if (buffer.remaining() < OPCODE_BYTES + HEADER_BYTES + Integer.BYTES + size) {
+			flush();
+		}
+		if (message.compress && size >= MIN_COMPRESSION_SIZE) {
+			return writeCompressedFrame(message, size);
+		}
+		message.remaining -= size;
+		putHeader(message, lastFlag(message), size);
+
+		int dataSize = Math.min(size, message.dataLength - message.dataOffset);
+		buffer.put(message.data, message.dataOffset, dataSize);
+		message.dataOffset += dataSize;
+		if (size > dataSize) {
+			writeFile(message, size - dataSize);
+		}
+		return OPCODE_BYTES + HEADER_BYTES + size;
+	}
+
+	/**
+	 * Compresses the next part of the message. Part is sent uncompressed and
+	 * compression is switched off for the message if it is not compressible
+	 *
+	 * @param message
+	 * @param size
+	 *            uncompressed size of the frame
+	 * @return size of the frame written
+	 * @throws IOException
+	 */
+	private int writeCompressedFrame(OutgoingMessage message, int size) throws IOException {
+		int dataSize = Math.min(size, message.dataLength - message.dataOffset);
+		System.arraycopy(message.data, message.dataOffset, rawPayload, 0, dataSize);
+		message.dataOffset += dataSize;
+		int read = dataSize;
+		while (read < size) {
+			int fileRead = message.channel.read(ByteBuffer.wrap(rawPayload, read, size - read), message.position);
+			if (fileRead < 0) {
+				throw new IOException("File ended before its size. Stream ID: " + message.streamId);
+			}
+			message.position += fileRead;
+			read += fileRead;
+		}
+		message.remaining -= size;
+		byte flags = lastFlag(message);
+
+		deflater.reset();
+		deflater.setInput(rawPayload, 0, size);
+		deflater.finish();
+		int compressedSize = deflater.deflate(compressedPayload, 0, (int) (size * MAX_COMPRESSION_RATIO));
+		if (deflater.finished()) {
+			putHeader(message, (byte) (flags | COMPRESSED), Integer.BYTES + compressedSize);
+			buffer.putInt(size);
+			buffer.put(compressedPayload, 0, compressedSize);
+			message.uncompressedSize += size;
+			message.compressedSize += Integer.BYTES + compressedSize;
+			return OPCODE_BYTES + HEADER_BYTES + Integer.BYTES + compressedSize;
+		}
+
+		logger.info("Stream is not compressible. Sending it uncompressed. Stream ID: {}", message.streamId);
+		message.compress = false;
+		putHeader(message, flags, size);
+		buffer.put(rawPayload, 0, size);
+		return OPCODE_BYTES + HEADER_BYTES + size;
+	}
+
+	/**
+	 * @param message
+	 * @return LAST if the message ends with the frame being written
+	 */
+	private static byte lastFlag(OutgoingMessage message) {
+		return message.remaining == 0 && message.last ? LAST : 0;
+	}
+
+	private void putHeader(OutgoingMessage message, byte flags, int size) {
+		buffer.put(message.dataIdentifier.getOpcode());
+		buffer.putInt(message.streamId);
+		buffer.put(flags);
+		buffer.putInt(size);
+	}
+
+	/**
+	 * Logs the compression ratio achieved for the message and adds it to the
+	 * total. Frames of a message queued frame by frame are only added to the
+	 * total
+	 *
+	 * @param message
+	 *            message that has been written
+	 */
+	private void logCompression(OutgoingMessage message) {
+		if (message.uncompressedSize == 0) {
+			return;
+		}
+		uncompressedBytes += message.uncompressedSize;
+		compressedBytes += message.compressedSize;
+		if (message.bufferPool != null) {
+			return;
+		}
+		logger.info("Stream compressed. Stream ID: {}, size: {}, compressed size: {}, ratio: {}, total ratio: {}",
+				message.streamId, message.uncompressedSize, message.compressedSize,
+				String.format("%.3f", (double) message.compressedSize / message.uncompressedSize),
+				String.format("%.3f", getCompressionRatio()));
+	}
+
+	/**
+	 * @return compressed size by uncompressed size of all the compressed
+	 *         frames sent so far. 1 if nothing has been compressed
+	 */
+	public double getCompressionRatio() {
+		return uncompressedBytes == 0 ? 1.0 : (double) compressedBytes / uncompressedBytes;
+	}
+
+	/**
+	 * Writes the next part of the file of bulk stream
+	 *
+	 * @param message
+	 * @param size
+	 *            number of bytes to be written
+	 * @throws IOException
+	 */
+	private void writeFile(OutgoingMessage message, int size) throws IOException {
+		long end = message.position + size;
+		if (zeroCopy) {
+			// Frame header is sent before the file data
+			flush();
+			while (message.position < end) {
+				long transferred = message.channel.transferTo(message.position, end - message.position,
+						socketChannel);
+				if (transferred == 0) {
+					if (message.position >= message.channel.size()) {
+						throw new IOException("File ended before its size. Stream ID: " + message.streamId);
+					}
+					awaitWritable();
+				}
+				message.position += transferred;
+				sentBytes.add(transferred);
+			}
+			return;
+		}
+
+		while (message.position < end) {
+			int limit = buffer.limit();
+			buffer.limit(buffer.position() + (int) (end - message.position));
+			int read = message.channel.read(buffer, message.position);
+			buffer.limit(limit);
+			if (read < 0) {
+				throw new IOException("File ended before its size. Stream ID: " + message.streamId);
+			}
+			message.position += read;
+		}
+	}
+
+	/**
+	 * Writes the buffered frames to socket
+	 *
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			int written = socketChannel.write(buffer);
+			if (written == 0) {
+				awaitWritable();
+			}
+			sentBytes.add(written);
+		}
+		buffer.clear();
+	}
+
+	private void awaitWritable() throws IOException {
+		selector.select(1000L);
+		selector.selectedKeys().clear();
+		if (closed || !socketChannel.isOpen()) {
+			throw new IOException("Socket is closed.");
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Socket writer failed.", failure);
+		}
+		if (closed) {
+			throw new IOException("Socket writer is closed.");
+		}
+	}
+
+	private synchronized void closeQueued() {
+		closed = true;
+		for (OutgoingMessage message : bulkStreams) {
+			message.close();
+		}
+		for (OutgoingMessage message : controlMessages) {
+			message.close();
+		}
+		bulkStreams.clear();
+		controlMessages.clear();
+		deferredMessages.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Message being written along with the bytes not written yet. Data of a
+	 * control message is in memory, either whole or a frame of it in a pooled
+	 * buffer. A bulk stream has its header in memory followed by the file
+	 */
+	private static class OutgoingMessage {
+		private final DataIdentifier dataIdentifier;
+		private final int streamId;
+		private final byte[] data;
+		private final FileChannel channel;
+		private int dataLength;
+		/**
+		 * False if more frames of the message are still to be queued
+		 */
+		private boolean last = true;
+		/**
+		 * Pool to which the data buffer is given back or null if it is not
+		 * pooled
+		 */
+		private BufferPool bufferPool = null;
+		private int dataOffset = 0;
+		private long position = 0;
+		private long remaining;
+		private boolean compress = false;
+		/**
+		 * Size of the compressed frames before and after compression
+		 */
+		private long uncompressedSize = 0L;
+		private long compressedSize = 0L;
+
+		private OutgoingMessage(DataIdentifier dataIdentifier, int streamId, byte[] data, FileChannel channel,
+				long size) {
+			this.dataIdentifier = dataIdentifier;
+			this.streamId = streamId;
+			this.data = data;
+			this.dataLength = data.length;
+			this.channel = channel;
+			this.remaining = size;
+		}
+
+		private void close() {
+			IOUtils.closeQuietly(channel);
+			if (bufferPool != null) {
+				bufferPool.release(data);
+			}
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.socialcops.sockets;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * @author PratickChokhani Hello exchanged when a connection is established,
+ *         stating the version of the protocol and the features each side
+ *         supports and wants to use. Client sends its hello on each of its
+ *         connections and master answers the hello of the primary connection
+ *         with its own. Both sides then use the lower version, the
+ *         capabilities both have and the smaller sizes, so that a new feature
+ *         is used only between the peers that have it and the peers need not
+ *         be upgraded at once.
+ *
+ *         Hello is the magic bytes, version (byte), size of the body (short)
+ *         and the body: kind of the connection (byte), session ID (long),
+ *         capabilities (int), request window size (int) and frame size (int).
+ *         Later versions append their fields to the body, which earlier
+ *         versions skip. Hellos with sizes that are not positive are rejected
+ *         and negotiated sizes are kept within bounds, so that a peer cannot
+ *         stall the connection or make it allocate without limit.
+ */
+public class Handshake {
+	/**
+	 * Version of the protocol spoken by this build. Frames carry single byte
+	 * opcodes since version 2
+	 */
+	public static final byte PROTOCOL_VERSION = 2;
+	/**
+	 * Lowest version of the protocol that can be spoken with
+	 */
+	private static final byte MIN_PROTOCOL_VERSION = 2;
+	private static final byte[] MAGIC = { 'S', 'Y', 'N' };
+	private static final int PREFIX_BYTES = MAGIC.length + 1 + Short.BYTES;
+	private static final int BODY_BYTES = 1 + Long.BYTES + Integer.BYTES + Integer.BYTES + Integer.BYTES;
+	private static final int TIMEOUT_MILLIS = 5000;
+	private static final int MIN_FRAME_SIZE = 4 * 1024;
+	private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+	private static final int MAX_REQUEST_WINDOW_SIZE = 64 * 1024;
+
+	static final byte PRIMARY_CONNECTION = 0;
+	static final byte DATA_CONNECTION = 1;
+
+	/**
+	 * Frames may be compressed
+	 */
+	public static final int COMPRESSION = 1;
+	/**
+	 * File tree and file differences are sent in binary instead of JSON
+	 */
+	public static final int BINARY_PAYLOAD = 1 << 1;
+	/**
+	 * SHA-256 content hashes are compared to skip the files whose content is
+	 * the same
+	 */
+	public static final int CONTENT_HASH = 1 << 2;
+	/**
+	 * Files are updated by sending the delta against the requester's copy
+	 */
+	public static final int DELTA = 1 << 3;
+	/**
+	 * Moved files are sent as moves so that the receiver renames its own copy
+	 */
+	public static final int MOVE = 1 << 4;
+	/**
+	 * Files received in ranges are resumed by requesting only their missing
+	 * ranges
+	 */
+	public static final int RANGE_RESUME = 1 << 5;
+
+	private final byte version;
+	private final byte kind;
+	private final long sessionId;
+	private final int capabilities;
+	private final int requestWindowSize;
+	private final int frameSize;
+
+	/**
+	 * @param version
+	 *            version of the protocol
+	 * @param kind
+	 *            PRIMARY_CONNECTION or DATA_CONNECTION
+	 * @param sessionId
+	 *            session to which the connection belongs
+	 * @param capabilities
+	 *            features supported and wanted
+	 * @param requestWindowSize
+	 *            maximum number of file requests outstanding at once
+	 * @param frameSize
+	 *            maximum payload of a bulk stream frame
+	 */
+	Handshake(byte version, byte kind, long sessionId, int capabilities, int requestWindowSize, int frameSize) {
+		this.version = version;
+		this.kind = kind;
+		this.sessionId = sessionId;
+		this.capabilities = capabilities;
+		this.requestWindowSize = requestWindowSize;
+		this.frameSize = frameSize;
+	}
+
+	/**
+	 * @param kind
+	 * @param sessionId
+	 * @return the same hello for the connection of the kind and session
+	 */
+	Handshake forConnection(byte kind, long sessionId) {
+		return new Handshake(version, kind, sessionId, capabilities, requestWindowSize, frameSize);
+	}
+
+	/**
+	 * @param remote
+	 *            hello received from the peer
+	 * @return settings used by both sides on the connection
+	 */
+	Handshake negotiate(Handshake remote) {
+		return new Handshake((byte) Math.min(version, remote.version), kind, sessionId,
+				capabilities & remote.capabilities,
+				clamp(Math.min(requestWindowSize, remote.requestWindowSize), 1, MAX_REQUEST_WINDOW_SIZE),
+				clamp(Math.min(frameSize, remote.frameSize), MIN_FRAME_SIZE, MAX_FRAME_SIZE));
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	/**
+	 * @param channel
+	 *            blocking channel
+	 * @throws IOException
+	 */
+	void write(SocketChannel channel) throws IOException {
+		ByteBuffer hello = ByteBuffer.allocate(PREFIX_BYTES + BODY_BYTES);
+		hello.put(MAGIC).put(version).putShort((short) BODY_BYTES);
+		hello.put(kind).putLong(sessionId).putInt(capabilities).putInt(requestWindowSize).putInt(frameSize);
+		hello.flip();
+		while (hello.hasRemaining()) {
+			channel.write(hello);
+		}
+	}
+
+	/**
+	 * Reads the hello sent by the peer once it connects
+	 *
+	 * @param channel
+	 *            blocking channel
+	 * @return hello of the peer
+	 * @throws IOException
+	 *             if it is not received in time, its version is not supported
+	 *             or its sizes are not positive
+	 */
+	static Handshake read(SocketChannel channel) throws IOException {
+		Socket channelSocket = channel.socket();
+		channelSocket.setSoTimeout(TIMEOUT_MILLIS);
+		// Stream is not closed as it would close the connection
+		DataInputStream in = new DataInputStream(channelSocket.getInputStream());
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException("Connection does not start with a hello.");
+		}
+		byte version = in.readByte();
+		if (version < MIN_PROTOCOL_VERSION) {
+			throw new IOException("Unsupported protocol version: " + version);
+		}
+		int size = in.readUnsignedShort();
+		if (size < BODY_BYTES) {
+			throw new IOException("Invalid hello of size: " + size);
+		}
+		byte[] body = new byte[size];
+		in.readFully(body);
+		channelSocket.setSoTimeout(0);
+		// Fields of later versions beyond the known ones are skipped
+		ByteBuffer buffer = ByteBuffer.wrap(body);
+		Handshake hello = new Handshake(version, buffer.get(), buffer.getLong(), buffer.getInt(), buffer.getInt(),
+				buffer.getInt());
+		if (hello.requestWindowSize <= 0 || hello.frameSize <= 0) {
+			throw new IOException("Invalid hello sizes. Request window size: " + hello.requestWindowSize
+					+ ", frame size: " + hello.frameSize);
+		}
+		return hello;
+	}
+
+	/**
+	 * @param capability
+	 * @return true if the capability is in the hello, or agreed by both sides
+	 *         once negotiated
+	 */
+	public boolean has(int capability) {
+		return (capabilities & capability) != 0;
+	}
+
+	public byte getVersion() {
+		return version;
+	}
+
+	byte getKind() {
+		return kind;
+	}
+
+	long getSessionId() {
+		return sessionId;
+	}
+
+	public int getRequestWindowSize() {
+		return requestWindowSize;
+	}
+
+	public int getFrameSize() {
+		return frameSize;
+	}
+
+	@Override
+	public String toString() {
+		return "Handshake [version=" + version + ", kind=" + kind + ", compression=" + has(COMPRESSION)
+				+ ", binaryPayload=" + has(BINARY_PAYLOAD) + ", contentHash=" + has(CONTENT_HASH) + ", delta="
+				+ has(DELTA) + ", move=" + has(MOVE) + ", rangeResume=" + has(RANGE_RESUME) + ", requestWindowSize="
+				+ requestWindowSize + ", frameSize=" + frameSize + "]";
+	}
+}
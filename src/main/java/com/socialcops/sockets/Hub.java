@@ -0,0 +1,229 @@
+package com.socialcops.sockets;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.MessageFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.socialcops.enums.DataIdentifier;
+import com.socialcops.metrics.Metrics;
+import com.socialcops.shaping.TrafficShaper;
+
+/**
+ * @author PratickChokhani Master serving many clients at once. Each client
+ *         gets its own session with its own connections, requests and event
+ *         loop running on its own thread, while the sessions share the file
+ *         tree, hash cache and committer of the sync folder.
+ *
+ *         Connections are told apart by the hello sent by the client. A
+ *         primary connection starts a session and a data connection is added
+ *         to the session whose ID it carries. Hellos are read off the accept
+ *         loop, so that a slow client does not hold back the others. A client beyond the maximum
+ *         number of sessions is disconnected and connects again later.
+ *
+ *         Clients are told once the sync folder changes, so that they request
+ *         the differences without waiting for their delivery delay. A slave
+ *         running a hub relays the files it receives to its own clients.
+ */
+public class Hub {
+	private static final Logger logger = LoggerFactory.getLogger(Hub.class);
+	/**
+	 * Connections whose hello is being read at once. Connections beyond them
+	 * are closed and the clients connect again later
+	 */
+	private static final int MAX_PENDING_HELLOS = 16;
+
+	private final int port;
+	private final int maxClients;
+	private final boolean zeroCopy;
+	private final boolean compression;
+	private final int transferBufferSize;
+	private final boolean binaryPayload;
+	private final int requestWindowSize;
+	private final TrafficShaper trafficShaper;
+	private ServerSocketChannel serverChannel = null;
+	/**
+	 * Connections of the running sessions by session ID
+	 */
+	private final Map<Long, SocketManager> sessions = new ConcurrentHashMap<>();
+	private int lastSessionNumber = 0;
+	private final ExecutorService helloReaders = new ThreadPoolExecutor(0, MAX_PENDING_HELLOS, 60L,
+			TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+				Thread thread = new Thread(runnable, "hub-hello");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	/**
+	 * @param port
+	 *            port on which clients connect
+	 * @param maxClients
+	 *            maximum number of sessions running at once
+	 * @param zeroCopy
+	 * @param compression
+	 * @param transferBufferSize
+	 * @param binaryPayload
+	 * @param requestWindowSize
+	 * @param trafficShaper
+	 *            budgets shared by the sessions
+	 */
+	public Hub(int port, int maxClients, boolean zeroCopy, boolean compression, int transferBufferSize,
+			boolean binaryPayload, int requestWindowSize, TrafficShaper trafficShaper) {
+		this.port = port;
+		this.maxClients = maxClients;
+		this.zeroCopy = zeroCopy;
+		this.compression = compression;
+		this.transferBufferSize = transferBufferSize;
+		this.binaryPayload = binaryPayload;
+		this.requestWindowSize = requestWindowSize;
+		this.trafficShaper = trafficShaper;
+		Metrics.gauge("sync_sessions", "Clients being served by the hub", sessions::size);
+	}
+
+	/**
+	 * Creates server socket. Clients are accepted once the hub is run
+	 *
+	 * @return true if the port is bound
+	 */
+	public boolean bind() {
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+			logger.info("Hub started. Serving at most {} clients", maxClients);
+			return true;
+		} catch (Exception e) {
+			logger.error(MessageFormat.format("Cannot initiate hub at port:{0}", port), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Accepts connections and starts a session for each client
+	 *
+	 * @param sessionFactory
+	 *            creates event loop of each session
+	 */
+	public void run(SessionFactory sessionFactory) {
+		while (serverChannel.isOpen()) {
+			SocketChannel socketChannel;
+			try {
+				socketChannel = serverChannel.accept();
+			} catch (IOException e) {
+				logger.error("Cannot accept connection. Exitting.", e);
+				return;
+			}
+			try {
+				helloReaders.execute(() -> accept(socketChannel, sessionFactory));
+			} catch (RejectedExecutionException e) {
+				logger.error("Too many connections waiting for their hello. Closing connection: {}", socketChannel);
+				IOUtils.closeQuietly(socketChannel);
+			}
+		}
+	}
+
+	/**
+	 * Reads the hello of the connection and starts its session or adds it to
+	 * its session
+	 *
+	 * @param socketChannel
+	 * @param sessionFactory
+	 */
+	private void accept(SocketChannel socketChannel, SessionFactory sessionFactory) {
+		try {
+			Handshake remote = Handshake.read(socketChannel);
+			if (remote.getKind() == Handshake.PRIMARY_CONNECTION) {
+				startSession(socketChannel, remote, sessionFactory);
+			} else {
+				addDataConnection(socketChannel, remote.getSessionId());
+			}
+		} catch (Exception e) {
+			logger.error("Cannot accept connection: " + socketChannel, e);
+			IOUtils.closeQuietly(socketChannel);
+		}
+	}
+
+	private synchronized void startSession(SocketChannel socketChannel, Handshake remote, SessionFactory sessionFactory)
+			throws IOException {
+		long sessionId = remote.getSessionId();
+		if (sessions.size() >= maxClients || sessions.containsKey(sessionId)) {
+			logger.error("Cannot serve more than {} clients. Closing connection: {}", maxClients, socketChannel);
+			IOUtils.closeQuietly(socketChannel);
+			return;
+		}
+		int sessionNumber = ++lastSessionNumber;
+		// Gauges of the session are told apart from those of the others
+		String[] metricLabels = { "session", String.valueOf(sessionNumber) };
+		SocketManager socketManager = new SocketManager(port, null, true, zeroCopy, compression,
+				transferBufferSize, 0, binaryPayload, requestWindowSize, trafficShaper, metricLabels);
+		socketManager.attach(socketChannel, remote);
+		SocketScheduler socketScheduler = sessionFactory.createSession(socketManager);
+		sessions.put(sessionId, socketManager);
+		Thread sessionThread = new Thread(() -> {
+			try {
+				socketScheduler.run();
+			} finally {
+				sessions.remove(sessionId);
+				Metrics.unregister(metricLabels);
+				logger.info("Session {} ended. Clients: {}", sessionNumber, sessions.size());
+			}
+		}, "session-" + sessionNumber);
+		sessionThread.start();
+		logger.info("Session {} started for {}. Clients: {}", sessionNumber, socketChannel.getRemoteAddress(),
+				sessions.size());
+	}
+
+	/**
+	 * Adds the data connection to its session. Waits for the session being
+	 * started, as the client connects once it is answered
+	 *
+	 * @param socketChannel
+	 * @param sessionId
+	 * @throws IOException
+	 */
+	private synchronized void addDataConnection(SocketChannel socketChannel, long sessionId) throws IOException {
+		SocketManager socketManager = sessions.get(sessionId);
+		if (socketManager == null) {
+			logger.error("Data connection of an unknown session. Closing connection: {}", socketChannel);
+			IOUtils.closeQuietly(socketChannel);
+			return;
+		}
+		socketManager.addDataConnection(socketChannel);
+	}
+
+	/**
+	 * Announces to the clients that the sync folder has changed
+	 */
+	public void announceChanges() {
+		for (SocketManager socketManager : sessions.values()) {
+			try {
+				socketManager.sendByteToSocket(DataIdentifier.CHG, new byte[0]);
+			} catch (IOException e) {
+				// Session ends once its connection is found to be lost
+				logger.error("Cannot announce changes.", e);
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting clients and closes the running sessions
+	 */
+	public void close() {
+		IOUtils.closeQuietly(serverChannel);
+		helloReaders.shutdownNow();
+		for (SocketManager socketManager : sessions.values()) {
+			socketManager.disconnect();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.socialcops.sockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * @author PratickChokhani File being received in ranges over the data
+ *         connections. Ranges are written at their offset as they arrive and
+ *         the file is complete once its size is known and the expected
+ *         number of bytes have been written, i.e. the whole file or only the
+ *         missing ranges of a resumed transfer.
+ */
+class IncomingStripes {
+	private final FileChannel channel;
+	/**
+	 * Progress recorded as ranges are written or null
+	 */
+	private final StripeProgress progress;
+	/**
+	 * Size of the file or -1 if it is not known yet
+	 */
+	private long size = -1L;
+	/**
+	 * Bytes to be received or -1 if the whole file is
+	 */
+	private long expected;
+	private long received = 0L;
+	private boolean complete = false;
+
+	/**
+	 * @param channel
+	 *            file where ranges are written
+	 * @param progress
+	 *            progress of the file or null if it is not kept
+	 * @param expected
+	 *            bytes to be received or -1 if the whole file is
+	 */
+	IncomingStripes(FileChannel channel, StripeProgress progress, long expected) {
+		this.channel = channel;
+		this.progress = progress;
+		this.expected = expected;
+	}
+
+	/**
+	 * Writes data of a range at its position
+	 *
+	 * @param rangeStart
+	 *            offset at which the range starts
+	 * @param buffer
+	 *            data to be written
+	 * @param position
+	 *            offset of the data in the file
+	 * @return bytes written
+	 * @throws IOException
+	 */
+	int write(long rangeStart, ByteBuffer buffer, long position) throws IOException {
+		ByteBuffer data = buffer.duplicate();
+		int written = 0;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer, position + written);
+		}
+		if (progress != null) {
+			progress.written(rangeStart, data);
+		}
+		return written;
+	}
+
+	/**
+	 * @param size
+	 *            size of the file
+	 * @return true if the file has just become complete
+	 */
+	synchronized boolean setSize(long size) {
+		this.size = size;
+		if (expected < 0) {
+			expected = size;
+		}
+		return checkComplete();
+	}
+
+	/**
+	 * @param bytes
+	 *            number of bytes written
+	 * @return true if the file has just become complete
+	 */
+	synchronized boolean addReceived(long bytes) {
+		received += bytes;
+		return checkComplete();
+	}
+
+	/**
+	 * Closes the file and its progress
+	 */
+	void close() {
+		IOUtils.closeQuietly(channel);
+		IOUtils.closeQuietly(progress);
+	}
+
+	private boolean checkComplete() {
+		if (complete || size < 0 || received < expected) {
+			return false;
+		}
+		complete = true;
+		return true;
+	}
+}
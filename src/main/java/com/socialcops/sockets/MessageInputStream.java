@@ -0,0 +1,92 @@
+package com.socialcops.sockets;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.socialcops.models.SocketStreamData;
+
+/**
+ * @author PratickChokhani Control message read straight from the socket as it
+ *         is being decoded, frame by frame. Frames of bulk streams received in
+ *         between are passed to the frame handler.
+ *
+ *         Closing the stream skips the rest of the message.
+ */
+public class MessageInputStream extends InputStream {
+	private final SocketManager socketManager;
+	private final int streamId;
+	private final FrameHandler frameHandler;
+	private final byte[] single = new byte[1];
+	/**
+	 * Bytes of the current frame not read yet
+	 */
+	private long remaining;
+	private boolean last;
+
+	/**
+	 * @param socketManager
+	 * @param socketStreamData
+	 *            header of the first frame of the message
+	 * @param frameHandler
+	 *            processes frames of other streams
+	 */
+	MessageInputStream(SocketManager socketManager, SocketStreamData socketStreamData, FrameHandler frameHandler) {
+		this.socketManager = socketManager;
+		this.streamId = socketStreamData.getStreamId();
+		this.frameHandler = frameHandler;
+		this.remaining = socketStreamData.getDataSize();
+		this.last = socketStreamData.isLast();
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		while (remaining == 0) {
+			if (last) {
+				return -1;
+			}
+			nextFrame();
+		}
+		int read = socketManager.read(bytes, offset, (int) Math.min(length, remaining));
+		remaining -= read;
+		return read;
+	}
+
+	/**
+	 * Reads and discards the rest of the message
+	 */
+	@Override
+	public void close() throws IOException {
+		while (remaining > 0 || !last) {
+			if (remaining > 0) {
+				socketManager.readToFile(null, remaining);
+				remaining = 0;
+			} else {
+				nextFrame();
+			}
+		}
+	}
+
+	/**
+	 * Receives frame headers until the next frame of the message, passing
+	 * frames of other streams to the handler
+	 *
+	 * @throws IOException
+	 */
+	private void nextFrame() throws IOException {
+		SocketStreamData socketStreamData = socketManager.getDataIdentifier();
+		if (socketStreamData.getStreamId() == streamId) {
+			remaining = socketStreamData.getDataSize();
+			last = socketStreamData.isLast();
+			return;
+		}
+		frameHandler.handle(socketStreamData);
+	}
+}
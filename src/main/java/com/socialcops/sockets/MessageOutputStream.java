@@ -0,0 +1,98 @@
+package com.socialcops.sockets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.socialcops.enums.DataIdentifier;
+
+/**
+ * @author PratickChokhani Control message written as it is being encoded.
+ *         Data is collected in buffers taken from the pool and each full
+ *         buffer is queued as a frame of the message. Last frame is queued
+ *         when the stream is closed.
+ *
+ *         No other control message is to be sent until the stream is closed,
+ *         as frames of control messages are not interleaved.
+ */
+public class MessageOutputStream extends OutputStream {
+	private final FrameWriter frameWriter;
+	private final DataIdentifier dataIdentifier;
+	private final int streamId;
+	private final BufferPool bufferPool;
+	private byte[] buffer = null;
+	private int count = 0;
+	private boolean closed = false;
+
+	MessageOutputStream(FrameWriter frameWriter, DataIdentifier dataIdentifier, int streamId, BufferPool bufferPool) {
+		this.frameWriter = frameWriter;
+		this.dataIdentifier = dataIdentifier;
+		this.streamId = streamId;
+		this.bufferPool = bufferPool;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureCapacity();
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			ensureCapacity();
+			int size = Math.min(length, buffer.length - count);
+			System.arraycopy(bytes, offset, buffer, count, size);
+			count += size;
+			offset += size;
+			length -= size;
+		}
+	}
+
+	/**
+	 * Does nothing. Frames are queued once the buffer is full or the stream is
+	 * closed
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Queues the remaining data as the last frame of the message
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (buffer == null) {
+			buffer = bufferPool.acquire();
+		}
+		sendFrame(true);
+	}
+
+	/**
+	 * Queues the buffer if it is full and takes a new one
+	 *
+	 * @throws IOException
+	 */
+	private void ensureCapacity() throws IOException {
+		if (closed) {
+			throw new IOException("Message stream is closed.");
+		}
+		if (buffer != null && count == buffer.length) {
+			sendFrame(false);
+		}
+		if (buffer == null) {
+			buffer = bufferPool.acquire();
+		}
+	}
+
+	private void sendFrame(boolean last) throws IOException {
+		byte[] data = buffer;
+		buffer = null;
+		int size = count;
+		count = 0;
+		frameWriter.sendMessagePart(dataIdentifier, streamId, data, size, last);
+	}
+}
@@ -0,0 +1,15 @@
+package com.socialcops.sockets;
+
+/**
+ * @author PratickChokhani Creates the state of a client's session once the
+ *         hub accepts its primary connection
+ */
+public interface SessionFactory {
+
+	/**
+	 * @param socketManager
+	 *            connections of the client
+	 * @return event loop of the session, run until the connection is lost
+	 */
+	SocketScheduler createSession(SocketManager socketManager);
+}
@@ -6,7 +6,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.socialcops.directory.Synchronizer;
-import com.socialcops.enums.DataIdentifier;
 
 /**
  * @author PratickChokhani Listens to socket and passes the data for processing
@@ -14,7 +13,6 @@ import com.socialcops.enums.DataIdentifier;
  */
 public class SocketListener {
 	private static final Logger logger = LoggerFactory.getLogger(SocketListener.class);
-	private static int IDENTIFIER_BYTES = DataIdentifier.FID.getNameInByte().length;
 	private final SocketManager socketManager;
 	private final Synchronizer synchronizer;
 
@@ -25,7 +23,8 @@ public class SocketListener {
 
 	/**
 	 * Listens to socket and if data is available, the passes that data for
-	 * processing
+	 * processing. All the data already received is processed along with the
+	 * files whose ranges have all been received on the data connections
 	 * 
 	 * @throws IOException
 	 */
@@ -33,14 +32,24 @@ public class SocketListener {
 		int availableByteSize;
 		try {
 			logger.info("Listening to socket.");
+			processCompletedStripes();
 			availableByteSize = socketManager.checkDataAvailability();
 			logger.info("Available byte size: {}", availableByteSize);
-			if (availableByteSize >= IDENTIFIER_BYTES) {
+			while (availableByteSize > 0) {
 				synchronizer.processInput();
+				processCompletedStripes();
+				availableByteSize = socketManager.checkDataAvailability();
 			}
 		} catch (IOException e) {
 			logger.error("Invalid connection error. Exitting", e);
 			throw new IOException();
 		}
 	}
+
+	private void processCompletedStripes() throws IOException {
+		Long requestId;
+		while ((requestId = socketManager.pollCompletedStripes()) != null) {
+			synchronizer.processReceivedStripes(requestId);
+		}
+	}
 }
@@ -1,33 +1,123 @@
 package com.socialcops.sockets;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.primitives.Longs;
 import com.socialcops.enums.DataIdentifier;
+import com.socialcops.metrics.Counter;
+import com.socialcops.metrics.Metrics;
 import com.socialcops.models.SocketStreamData;
+import com.socialcops.shaping.TrafficShaper;
 
 /**
  * @author PratickChokhani Manages all the socket connections, receiving and
- *         sending of data.
+ *         sending of data. Data is read by a single thread, while it may be
+ *         sent from any thread as the frame writer queues it.
  */
 public class SocketManager {
 	private static final Logger logger = LoggerFactory.getLogger(SocketManager.class);
-	private static int IDENTIFIER_BYTES = DataIdentifier.FID.getNameInByte().length;
+	/**
+	 * Number of buffers in which control messages are encoded while being
+	 * sent
+	 */
+	private static final int MESSAGE_BUFFERS = 16;
+	/**
+	 * Number of extra buffers allocated for control messages while no buffer
+	 * is given back, after which senders wait
+	 */
+	private static final int MESSAGE_EXTRA_BUFFERS = 256;
+
+	private static final Counter receivedBytes = Metrics.counter("sync_socket_received_bytes_total",
+			"Bytes received on the primary connection");
+	private static final Counter sentFileBytes = Metrics.counter("sync_file_sent_bytes_total",
+			"Bytes of files, deltas and ranges queued to be sent");
+	private static final Counter receivedFileBytes = Metrics.counter("sync_file_received_bytes_total",
+			"Bytes of files and deltas received on the primary connection and written to disk");
+	private static final Counter reconnects = Metrics.counter("sync_disconnects_total",
+			"Connections closed to be established again");
 
 	private Socket socket = null;
-	private ServerSocket server = null;
+	private SocketChannel socketChannel = null;
+	private ServerSocketChannel serverChannel = null;
+	private volatile FrameWriter frameWriter = null;
 	private final String address;
 	private int port;
 	private boolean master;
+	private final boolean zeroCopy;
+	private final int dataConnectionCount;
+	private final TrafficShaper trafficShaper;
+	/**
+	 * Hello sent on each connection, stating what this side supports
+	 */
+	private final Handshake hello;
+	/**
+	 * Settings agreed with the peer of the current session
+	 */
+	private volatile Handshake settings = null;
+	/**
+	 * Session to which the primary and data connections belong. Client
+	 * starts each connection with a hello carrying it, so that the data
+	 * connections are matched with their primary connection
+	 */
+	private long sessionId;
+	/**
+	 * Extra connections over which ranges of large files are sent. Control
+	 * messages are sent on the primary connection only
+	 */
+	private final List<DataConnection> dataConnections = new ArrayList<>();
+	/**
+	 * Files being received in ranges by request ID
+	 */
+	private final Map<Long, IncomingStripes> stripes = new ConcurrentHashMap<>();
+	/**
+	 * Request IDs of the files whose ranges are all received
+	 */
+	private final Queue<Long> completedStripes = new ConcurrentLinkedQueue<>();
+	/**
+	 * Error due to which a data connection stopped reading
+	 */
+	private volatile IOException dataConnectionFailure = null;
+	private final BufferPool bufferPool = new BufferPool(FrameWriter.FRAME_SIZE, MESSAGE_BUFFERS,
+			MESSAGE_EXTRA_BUFFERS);
+	private final ByteBuffer frameHeader = ByteBuffer.allocate(FrameWriter.OPCODE_BYTES + FrameWriter.HEADER_BYTES);
+	/**
+	 * Data read from socket and not consumed yet. Received files are written
+	 * from this buffer
+	 */
+	private final ByteBuffer inBuffer;
+	/**
+	 * Decompressed payload of the current frame if it was compressed
+	 */
+	private ByteBuffer inflated = ByteBuffer.allocate(0);
+	private final Inflater inflater = new Inflater(true);
+	/**
+	 * Notifies when data is received on the socket
+	 */
+	private Selector readSelector = null;
+	private final String[] metricLabels;
 
 	/**
 	 * @param port
@@ -36,11 +126,60 @@ public class SocketManager {
 	 *            Master IP address
 	 * @param master
 	 *            true if current run is master else false
+	 * @param zeroCopy
+	 *            true if files are to be sent by the kernel straight from the
+	 *            file to socket
+	 * @param compression
+	 *            true if the frames are to be compressed, once the peer agrees
+	 * @param transferBufferSize
+	 *            size of the frames in which files are sent and of the buffer
+	 *            used to copy file data
+	 * @param dataConnectionCount
+	 *            number of data connections opened by the slave along with the
+	 *            primary connection
+	 * @param binaryPayload
+	 *            true if file tree and file differences are to be sent in
+	 *            binary, once the peer agrees
+	 * @param requestWindowSize
+	 *            maximum number of file requests outstanding at once
+	 * @param trafficShaper
+	 *            budgets within which data is sent, shared by all the
+	 *            connections
+	 * @param metricLabels
+	 *            labels of the gauges of these connections and of their
+	 *            session, as name, value pairs
 	 */
-	public SocketManager(int port, String address, boolean master) {
+	public SocketManager(int port, String address, boolean master, boolean zeroCopy, boolean compression,
+			int transferBufferSize, int dataConnectionCount, boolean binaryPayload, int requestWindowSize,
+			TrafficShaper trafficShaper, String... metricLabels) {
 		this.address = address;
 		this.port = port;
 		this.master = master;
+		this.zeroCopy = zeroCopy;
+		this.dataConnectionCount = dataConnectionCount;
+		this.trafficShaper = trafficShaper;
+		this.metricLabels = metricLabels;
+		int capabilities = Handshake.CONTENT_HASH | Handshake.DELTA | Handshake.MOVE | Handshake.RANGE_RESUME;
+		if (compression) {
+			capabilities |= Handshake.COMPRESSION;
+		}
+		if (binaryPayload) {
+			capabilities |= Handshake.BINARY_PAYLOAD;
+		}
+		this.hello = new Handshake(Handshake.PROTOCOL_VERSION, Handshake.PRIMARY_CONNECTION, 0L, capabilities,
+				requestWindowSize, transferBufferSize);
+		this.inBuffer = ByteBuffer.allocateDirect(Math.max(FrameWriter.FRAME_SIZE, transferBufferSize));
+		Metrics.gauge("sync_compression_ratio", "Compressed size of the compressed frames over their original size",
+				() -> frameWriter == null ? 1.0 : frameWriter.getCompressionRatio(), metricLabels);
+		Metrics.gauge("sync_data_connections", "Data connections over which ranges of files are sent",
+				this::getDataConnectionCount, metricLabels);
+	}
+
+	/**
+	 * @return labels of the gauges of the session, as name, value pairs
+	 */
+	public String[] getMetricLabels() {
+		return metricLabels;
 	}
 
 	/**
@@ -52,8 +191,20 @@ public class SocketManager {
 		// establish a connection
 		try {
 			logger.info("Connecting to server.");
-			socket = new Socket(address, port);
+			sessionId = ThreadLocalRandom.current().nextLong();
+			socketChannel = SocketChannel.open(new InetSocketAddress(address, port));
+			socket = socketChannel.socket();
 			socket.setKeepAlive(true);
+			Handshake local = hello.forConnection(Handshake.PRIMARY_CONNECTION, sessionId);
+			local.write(socketChannel);
+			negotiate(local, Handshake.read(socketChannel));
+			startStreams();
+			closeDataConnections();
+			for (int i = 0; i < dataConnectionCount; i++) {
+				SocketChannel dataChannel = SocketChannel.open(new InetSocketAddress(address, port));
+				hello.forConnection(Handshake.DATA_CONNECTION, sessionId).write(dataChannel);
+				addDataConnection(dataChannel);
+			}
 			logger.info("Client Connected");
 			return true;
 		} catch (Exception e) {
@@ -71,7 +222,8 @@ public class SocketManager {
 	public boolean initiateMaster() {
 		// starts server and waits for a connection
 		try {
-			server = new ServerSocket(port);
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
 			logger.info("Master started");
 
 			logger.info("Waiting for a client ...");
@@ -89,19 +241,328 @@ public class SocketManager {
 	 * @throws IOException
 	 */
 	public boolean acceptConnection() throws IOException {
-
-		socket = server.accept();
+		if (readSelector != null) {
+			// Deregisters the server channel so that it can block on accept
+			readSelector.close();
+			readSelector = null;
+		}
+		serverChannel.configureBlocking(true);
+		while (true) {
+			socketChannel = serverChannel.accept();
+			try {
+				Handshake remote = Handshake.read(socketChannel);
+				if (remote.getKind() == Handshake.PRIMARY_CONNECTION) {
+					answer(remote);
+					break;
+				}
+				logger.error("Data connection received before the primary connection. Closing it.");
+			} catch (IOException e) {
+				logger.error("Cannot complete handshake of the connection. Closing it.", e);
+			}
+			IOUtils.closeQuietly(socketChannel);
+		}
+		socket = socketChannel.socket();
 		socket.setKeepAlive(true);
+		startStreams();
+		closeDataConnections();
+		// Data connections of the client are accepted as they arrive
+		serverChannel.configureBlocking(false);
+		serverChannel.register(readSelector, SelectionKey.OP_ACCEPT);
 		logger.info("Client accepted");
 		return true;
 	}
 
 	/**
-	 * @return available data size in input stream
+	 * Accepts the data connections opened by the client without waiting
+	 * 
+	 * @throws IOException
+	 */
+	private void acceptDataConnections() throws IOException {
+		if (!master || serverChannel == null) {
+			return;
+		}
+		SocketChannel dataChannel;
+		while ((dataChannel = serverChannel.accept()) != null) {
+			try {
+				Handshake remote = Handshake.read(dataChannel);
+				if (remote.getKind() == Handshake.DATA_CONNECTION && remote.getSessionId() == sessionId) {
+					addDataConnection(dataChannel);
+					continue;
+				}
+				logger.error("Connection does not belong to the current session. Closing it.");
+			} catch (IOException e) {
+				logger.error("Cannot complete handshake of the connection. Closing it.", e);
+			}
+			IOUtils.closeQuietly(dataChannel);
+		}
+	}
+
+	/**
+	 * Starts the session of the client whose primary connection has been
+	 * accepted by the hub. Session is not established again once the
+	 * connection is lost
+	 * 
+	 * @param socketChannel
+	 *            primary connection
+	 * @param remote
+	 *            hello received on the connection
+	 * @throws IOException
+	 */
+	synchronized void attach(SocketChannel socketChannel, Handshake remote) throws IOException {
+		this.socketChannel = socketChannel;
+		answer(remote);
+		socket = socketChannel.socket();
+		socket.setKeepAlive(true);
+		startStreams();
+	}
+
+	/**
+	 * Answers the hello received on the primary connection with the hello of
+	 * this side
+	 * 
+	 * @param remote
+	 *            hello of the client
+	 * @throws IOException
+	 */
+	private void answer(Handshake remote) throws IOException {
+		sessionId = remote.getSessionId();
+		Handshake local = hello.forConnection(Handshake.PRIMARY_CONNECTION, sessionId);
+		local.write(socketChannel);
+		negotiate(local, remote);
+	}
+
+	private void negotiate(Handshake local, Handshake remote) {
+		settings = local.negotiate(remote);
+		logger.info("Protocol negotiated: {}", settings);
+	}
+
+	/**
+	 * @return settings agreed with the peer of the current session, null
+	 *         until it is connected
+	 */
+	public Handshake getSettings() {
+		return settings;
+	}
+
+	void addDataConnection(SocketChannel dataChannel) throws IOException {
+		DataConnection dataConnection = new DataConnection(dataChannel, this, zeroCopy, settings.getFrameSize(),
+				bufferPool, trafficShaper);
+		synchronized (dataConnections) {
+			dataConnections.add(dataConnection);
+			dataConnection.start(dataConnections.size());
+		}
+		logger.info("Data connection {} established", dataConnections.size());
+	}
+
+	private void closeDataConnections() {
+		synchronized (dataConnections) {
+			for (DataConnection dataConnection : dataConnections) {
+				dataConnection.close();
+			}
+			dataConnections.clear();
+		}
+		for (IncomingStripes incomingStripes : stripes.values()) {
+			incomingStripes.close();
+		}
+		stripes.clear();
+		completedStripes.clear();
+		dataConnectionFailure = null;
+	}
+
+	/**
+	 * @return number of data connections over which ranges of files can be
+	 *         sent
+	 */
+	public int getDataConnectionCount() {
+		synchronized (dataConnections) {
+			return dataConnections.size();
+		}
+	}
+
+	/**
+	 * Queues range of a file to be sent on the data connection
+	 * 
+	 * @param index
+	 *            data connection on which the range is sent, wrapped around
+	 *            the number of connections
+	 * @param requestId
+	 *            request for which the file is sent
+	 * @param offset
+	 *            offset of the range in the file
+	 * @param size
+	 *            size of the range
+	 * @param channel
+	 *            file positioned at the offset. It is closed once the range is
+	 *            sent
+	 * @throws IOException
+	 */
+	public void sendStripe(int index, long requestId, long offset, long size, FileChannel channel)
+			throws IOException {
+		DataConnection dataConnection;
+		synchronized (dataConnections) {
+			dataConnection = dataConnections.get(index % dataConnections.size());
+		}
+		ByteBuffer header = ByteBuffer.allocate(DataConnection.RANGE_HEADER_BYTES);
+		header.putLong(requestId).putLong(offset);
+		dataConnection.getFrameWriter().sendStream(DataIdentifier.FRG, header.array(), size,
+				channel);
+		sentFileBytes.add(size);
+	}
+
+	/**
+	 * Registers file where the ranges received for the request are written
+	 * 
+	 * @param requestId
+	 * @param channel
+	 *            file where ranges are written. It is closed once all the
+	 *            ranges are received or the request is cancelled
+	 * @param progress
+	 *            where written ranges are recorded or null. It is closed
+	 *            along with the file
+	 * @param expected
+	 *            bytes to be received or -1 if the whole file is
+	 */
+	public void expectStripes(long requestId, FileChannel channel, StripeProgress progress, long expected) {
+		stripes.put(requestId, new IncomingStripes(channel, progress, expected));
+	}
+
+	/**
+	 * Sets size of the file being received in ranges
+	 * 
+	 * @param requestId
+	 * @param size
+	 */
+	public void setStripedSize(long requestId, long size) {
+		IncomingStripes incomingStripes = stripes.get(requestId);
+		if (incomingStripes != null && incomingStripes.setSize(size)) {
+			stripeCompleted(requestId);
+		}
+	}
+
+	/**
+	 * Stops receiving ranges for the request
+	 * 
+	 * @param requestId
+	 * @return true if ranges were expected for the request
+	 */
+	public boolean cancelStripes(long requestId) {
+		IncomingStripes incomingStripes = stripes.remove(requestId);
+		if (incomingStripes == null) {
+			return false;
+		}
+		incomingStripes.close();
+		return true;
+	}
+
+	/**
+	 * @return request ID of a file whose ranges are all received or null if
+	 *         there is none
+	 */
+	public Long pollCompletedStripes() {
+		Long requestId = completedStripes.poll();
+		if (requestId != null) {
+			cancelStripes(requestId);
+		}
+		return requestId;
+	}
+
+	IncomingStripes getStripes(long requestId) {
+		return stripes.get(requestId);
+	}
+
+	/**
+	 * Called by the data connections once a part of range is written
+	 */
+	void receivedStripe(long requestId, IncomingStripes incomingStripes, long bytes) {
+		if (incomingStripes.addReceived(bytes)) {
+			stripeCompleted(requestId);
+		}
+	}
+
+	private void stripeCompleted(long requestId) {
+		completedStripes.add(requestId);
+		wakeup();
+	}
+
+	/**
+	 * Called by the data connection that stopped reading due to the error
+	 */
+	void dataConnectionFailed(IOException e) {
+		logger.error("Data connection failed.", e);
+		dataConnectionFailure = e;
+		wakeup();
+	}
+
+	private void wakeup() {
+		Selector selector = readSelector;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Makes the connected socket non blocking, registers it for reading and
+	 * starts the frame writer
+	 * 
+	 * @throws IOException
+	 */
+	private void startStreams() throws IOException {
+		socketChannel.configureBlocking(false);
+		if (readSelector != null) {
+			readSelector.close();
+		}
+		readSelector = Selector.open();
+		socketChannel.register(readSelector, SelectionKey.OP_READ);
+		inBuffer.clear();
+		inBuffer.flip();
+		inflated.limit(0);
+		frameWriter = new FrameWriter(socketChannel, zeroCopy, settings.has(Handshake.COMPRESSION),
+				settings.getFrameSize(), bufferPool, trafficShaper);
+		Thread writerThread = new Thread(frameWriter, "socket-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Reads the data already received without waiting. Socket is read only
+	 * after the buffered data is consumed
+	 * 
+	 * @return available data size
 	 * @throws IOException
 	 */
 	public synchronized int checkDataAvailability() throws IOException {
-		return socket.getInputStream().available();
+		if (dataConnectionFailure != null) {
+			throw new IOException("Data connection failed.", dataConnectionFailure);
+		}
+		if (inBuffer.hasRemaining()) {
+			return inBuffer.remaining();
+		}
+		inBuffer.clear();
+		int read = socketChannel.read(inBuffer);
+		inBuffer.flip();
+		if (read < 0) {
+			throw new EOFException("Connection closed by remote system.");
+		}
+		receivedBytes.add(read);
+		return inBuffer.remaining();
+	}
+
+	/**
+	 * Waits until data is received, a file received in ranges is complete or
+	 * the timeout expires
+	 * 
+	 * @param timeoutInMillis
+	 * @return true if data is available or a file is complete
+	 * @throws IOException
+	 */
+	public synchronized boolean awaitData(long timeoutInMillis) throws IOException {
+		if (inBuffer.hasRemaining() || !completedStripes.isEmpty()) {
+			return true;
+		}
+		readSelector.select(Math.max(1L, timeoutInMillis));
+		readSelector.selectedKeys().clear();
+		acceptDataConnections();
+		return checkDataAvailability() > 0 || !completedStripes.isEmpty();
 	}
 
 	/**
@@ -110,6 +571,9 @@ public class SocketManager {
 	 */
 	public synchronized boolean testConnection() throws IOException {
 		if (socket == null || socket.isClosed() || !socket.isConnected()) {
+			if (!isReconnectable()) {
+				return false;
+			}
 			if (master) {
 				return acceptConnection();
 			} else {
@@ -120,48 +584,49 @@ public class SocketManager {
 	}
 
 	/**
-	 * Reads file and store in output stream
-	 * 
-	 * @param out
-	 *            output stream where the read file is to be stored
-	 * @param fileSize
-	 *            size of the file to be read
-	 * @throws IOException
+	 * @return false if it is a session of the hub, which ends once the
+	 *         connection is lost
 	 */
-	public synchronized void readFile(OutputStream out, long fileSize) throws IOException {
-
-		byte[] data = new byte[4096];
-		long sizeWritten = 0;
-		int currentSize = 0;
-		InputStream in = socket.getInputStream();
-		while (sizeWritten < fileSize) {
-			if (fileSize - currentSize < data.length) {
-				currentSize = in.read(data, 0, (int) (fileSize - sizeWritten));
-				out.write(data, 0, currentSize);
-			} else {
-				currentSize = in.read(data);
-				out.write(data, 0, currentSize);
-			}
-			sizeWritten += currentSize;
-		}
+	public boolean isReconnectable() {
+		return !master || serverChannel != null;
 	}
 
 	/**
 	 * Streams file from input stream and send to
 	 * 
+	 * @param header
+	 *            bytes sent before the file
 	 * @param size
 	 *            size of the data to be sent
-	 * @param in
-	 *            from where file is to be read
+	 * @param channel
+	 *            from where file is to be read. It is closed once the file is
+	 *            sent
 	 * @throws IOException
 	 */
-	public synchronized void sendFile(long size, InputStream in) throws IOException {
-
-		IOUtils.write(DataIdentifier.FIR.getNameInByte(), socket.getOutputStream());
-		IOUtils.write(Longs.toByteArray(size), socket.getOutputStream());
-		OutputStream out = socket.getOutputStream();
-		IOUtils.copy(in, out);
+	public void sendFile(byte[] header, long size, FileChannel channel) throws IOException {
+		sendStream(DataIdentifier.FIR, header, size, channel);
+	}
 
+	/**
+	 * Queues data from file to be sent as a bulk stream with the identifier.
+	 * Bulk streams are interleaved with each other and sent after the control
+	 * messages. Size of the message includes the header
+	 * 
+	 * @param dataIdentifier
+	 *            identifying the type of data
+	 * @param header
+	 *            bytes sent before the data
+	 * @param size
+	 *            size of the data to be sent
+	 * @param channel
+	 *            from where data is to be read. It is closed once the data is
+	 *            sent
+	 * @throws IOException
+	 */
+	public void sendStream(DataIdentifier dataIdentifier, byte[] header, long size, FileChannel channel)
+			throws IOException {
+		frameWriter.sendStream(dataIdentifier, header, size, channel);
+		sentFileBytes.add(size);
 	}
 
 	/**
@@ -174,36 +639,213 @@ public class SocketManager {
 	 */
 	public synchronized byte[] getByteFromSocket(long size) throws IOException {
 
-		return IOUtils.toByteArray(socket.getInputStream(), size);
+		byte[] bytes = new byte[(int) size];
+		readFully(ByteBuffer.wrap(bytes));
+		return bytes;
+	}
+
+	/**
+	 * Receive data from socket and write it to the file
+	 * 
+	 * @param channel
+	 *            file where data is to be written or null if data is to be
+	 *            discarded
+	 * @param size
+	 *            size of data in bytes to be received from socket
+	 * @throws IOException
+	 */
+	public synchronized void readToFile(WritableByteChannel channel, long size) throws IOException {
+		while (size > 0) {
+			ByteBuffer source = nextData();
+			int length = (int) Math.min(source.remaining(), size);
+			ByteBuffer data = source.duplicate();
+			data.limit(data.position() + length);
+			while (channel != null && data.hasRemaining()) {
+				channel.write(data);
+			}
+			source.position(source.position() + length);
+			size -= length;
+			if (channel != null) {
+				receivedFileBytes.add(length);
+			}
+		}
+	}
+
+	/**
+	 * Receive at most the given number of bytes from socket, waiting until
+	 * some data is received
+	 * 
+	 * @param bytes
+	 *            where data is to be written
+	 * @param offset
+	 * @param length
+	 *            maximum number of bytes to be received
+	 * @return number of bytes received
+	 * @throws IOException
+	 */
+	public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+		ByteBuffer source = nextData();
+		int size = Math.min(source.remaining(), length);
+		source.get(bytes, offset, size);
+		return size;
+	}
+
+	/**
+	 * Starts reading a control message whose first frame header has been
+	 * received
+	 * 
+	 * @param socketStreamData
+	 *            header of the first frame
+	 * @param frameHandler
+	 *            processes frames of bulk streams received in between
+	 * @return stream from which the message is read as it is received
+	 */
+	public MessageInputStream getMessageStream(SocketStreamData socketStreamData, FrameHandler frameHandler) {
+		return new MessageInputStream(this, socketStreamData, frameHandler);
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			ByteBuffer source = nextData();
+			int length = Math.min(source.remaining(), buffer.remaining());
+			ByteBuffer data = source.duplicate();
+			data.limit(data.position() + length);
+			buffer.put(data);
+			source.position(source.position() + length);
+		}
+	}
+
+	/**
+	 * @return decompressed payload of the current frame if it is not consumed
+	 *         yet, otherwise data received from socket
+	 * @throws IOException
+	 */
+	private ByteBuffer nextData() throws IOException {
+		if (inflated.hasRemaining()) {
+			return inflated;
+		}
+		if (!inBuffer.hasRemaining()) {
+			fill();
+		}
+		return inBuffer;
+	}
+
+	/**
+	 * Waits until more data is received
+	 * 
+	 * @throws IOException
+	 */
+	private void fill() throws IOException {
+		while (checkDataAvailability() == 0) {
+			readSelector.select();
+			readSelector.selectedKeys().clear();
+			acceptDataConnections();
+		}
 	}
 
 	/**
-	 * Receive data identifier from socket stating what next data is about and
-	 * will be the size of data
+	 * Receive frame header from socket stating what next data is about, the
+	 * stream it belongs to and will be the size of data in the frame
 	 * 
-	 * @return SocketStream containing data identifier and size of next data
-	 *         both in bytes
+	 * @return SocketStream containing data identifier, stream ID and size of
+	 *         next data
 	 * @throws IOException
 	 */
 	public synchronized SocketStreamData getDataIdentifier() throws IOException {
-		byte[] dataIdentifier = IOUtils.toByteArray(socket.getInputStream(), IDENTIFIER_BYTES);
-		byte[] dataSize = IOUtils.toByteArray(socket.getInputStream(), Long.BYTES);
-		return new SocketStreamData(dataIdentifier, Longs.fromByteArray(dataSize));
+		frameHeader.clear();
+		readFully(frameHeader);
+		frameHeader.flip();
+		DataIdentifier dataIdentifier = DataIdentifier.fromOpcode(frameHeader.get());
+		int streamId = frameHeader.getInt();
+		byte flags = frameHeader.get();
+		int dataSize = frameHeader.getInt();
+		if ((flags & FrameWriter.COMPRESSED) != 0) {
+			dataSize = inflate(dataSize);
+		}
+		return new SocketStreamData(dataIdentifier, streamId, (flags & FrameWriter.LAST) != 0, dataSize);
+	}
+
+	/**
+	 * Reads compressed payload of the frame and decompresses it. Decompressed
+	 * payload is read before the next data from socket. Sizes sent by the
+	 * remote system are checked against the frame size before anything is
+	 * allocated
+	 * 
+	 * @param size
+	 *            size of the compressed payload
+	 * @return size of the decompressed payload
+	 * @throws IOException
+	 */
+	private int inflate(int size) throws IOException {
+		int maxFrameSize = settings == null ? FrameWriter.FRAME_SIZE
+				: Math.max(FrameWriter.FRAME_SIZE, settings.getFrameSize());
+		if (size <= Integer.BYTES || size > Integer.BYTES + maxFrameSize) {
+			throw new IOException("Invalid compressed frame size: " + size);
+		}
+		ByteBuffer compressed = ByteBuffer.allocate(size);
+		readFully(compressed);
+		int uncompressedSize = compressed.getInt(0);
+		if (uncompressedSize <= 0 || uncompressedSize > maxFrameSize) {
+			throw new IOException("Invalid uncompressed frame size: " + uncompressedSize);
+		}
+		if (inflated.capacity() < uncompressedSize) {
+			inflated = ByteBuffer.allocate(uncompressedSize);
+		}
+		inflater.reset();
+		inflater.setInput(compressed.array(), Integer.BYTES, size - Integer.BYTES);
+		try {
+			int inflatedSize = inflater.inflate(inflated.array(), 0, uncompressedSize);
+			if (inflatedSize != uncompressedSize || !inflater.finished()) {
+				throw new IOException("Invalid compressed frame.");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid compressed frame.", e);
+		}
+		inflated.position(0);
+		inflated.limit(uncompressedSize);
+		return uncompressedSize;
 	}
 
 	/**
-	 * Send the data with the identifier to socket
+	 * Queues the data with the identifier to be sent as a control message.
+	 * Control messages are sent ahead of the bulk streams
 	 * 
 	 * @param dataIdentifiers
 	 *            identifying the type of data
 	 * @param data
 	 * @throws IOException
 	 */
-	public synchronized void sendByteToSocket(DataIdentifier dataIdentifiers, byte[] data) throws IOException {
-		long length = data.length;
-		IOUtils.write(dataIdentifiers.getNameInByte(), socket.getOutputStream());
-		IOUtils.write(Longs.toByteArray(length), socket.getOutputStream());
-		IOUtils.write(data, socket.getOutputStream());
+	public void sendByteToSocket(DataIdentifier dataIdentifiers, byte[] data) throws IOException {
+		frameWriter.sendMessage(dataIdentifiers, data);
+	}
+
+	/**
+	 * Starts a control message with the identifier which is sent as it is
+	 * written. Memory used does not depend on the size of the message
+	 * 
+	 * @param dataIdentifier
+	 *            identifying the type of data
+	 * @return stream to which the message is to be written and then closed
+	 * @throws IOException
+	 */
+	public MessageOutputStream openMessage(DataIdentifier dataIdentifier) throws IOException {
+		return frameWriter.openMessage(dataIdentifier);
+	}
+
+	/**
+	 * Closes the primary and data connections so that they are established
+	 * again by {@link #testConnection()}. Master keeps listening for the client
+	 */
+	public synchronized void disconnect() {
+		reconnects.inc();
+		closeDataConnections();
+		if (frameWriter != null) {
+			frameWriter.close();
+		}
+		IOUtils.closeQuietly(readSelector);
+		readSelector = null;
+		IOUtils.closeQuietly(socketChannel);
+		IOUtils.closeQuietly(socket);
 	}
 
 	/**
@@ -212,12 +854,19 @@ public class SocketManager {
 	 * @throws IOException
 	 */
 	public void close() throws IOException {
+		closeDataConnections();
+		if (frameWriter != null) {
+			frameWriter.close();
+		}
+		if (readSelector != null) {
+			readSelector.close();
+		}
 		if (socket != null) {
 			socket.close();
 		}
 
-		if (server != null) {
-			server.close();
+		if (serverChannel != null) {
+			serverChannel.close();
 		}
 	}
 }
@@ -1,9 +1,6 @@
 package com.socialcops.sockets;
 
 import java.io.IOException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
@@ -12,8 +9,9 @@ import org.slf4j.LoggerFactory;
 import com.socialcops.directory.Synchronizer;
 
 /**
- * @author PratickChokhani Scheduler to check periodically for data in input
- *         stream and also to request file difference to sync data
+ * @author PratickChokhani Event loop that processes data as soon as it is
+ *         received and also requests file difference periodically to sync
+ *         data
  *
  */
 public class SocketScheduler implements Runnable {
@@ -21,73 +19,118 @@ public class SocketScheduler implements Runnable {
 
 	private long scheduleDelayInMillis = 2000;
 	private long dataDeliveryDelay = 120000;
+	private long reconnectDelay = 5000;
 	private final SocketManager socketManager;
 	private final Synchronizer synchronizer;
-	private final ScheduledExecutorService executorService;
 	private final boolean master;
 	private final SocketListener socketListener;
 	private long lastListenerRun = 0L;
 	private long lastProcessorRun = 0L;
 
-	public SocketScheduler(long scheduleDelayInMillis, long dataDeliveryDelay, SocketManager socketManager,
-			Synchronizer synchronizer, boolean master, SocketListener socketListener) {
+	public SocketScheduler(long scheduleDelayInMillis, long dataDeliveryDelay, long reconnectDelay,
+			SocketManager socketManager, Synchronizer synchronizer, boolean master, SocketListener socketListener) {
 		super();
 		this.scheduleDelayInMillis = scheduleDelayInMillis;
 		this.dataDeliveryDelay = dataDeliveryDelay;
+		this.reconnectDelay = reconnectDelay;
 		this.socketManager = socketManager;
 		this.synchronizer = synchronizer;
-		this.executorService = Executors.newSingleThreadScheduledExecutor();
 		this.master = master;
 		this.socketListener = socketListener;
 	}
 
-	public void scheduleNextSync() {
-		executorService.schedule(this, scheduleDelayInMillis, TimeUnit.MILLISECONDS);
-	}
-
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see java.lang.Runnable#run() Runs periodically to check data for data in
-	 * input stream and request for file difference from second party to sync
-	 * folder
+	 * @see java.lang.Runnable#run() Event loop. Waits for data on the socket
+	 * and passes it for processing as soon as it is received. In between,
+	 * initial sync and file difference are requested every
+	 * scheduleDelayInMillis to keep the folder in sync with second party.
+	 * Connection is established again if it is lost and the initial sync is
+	 * redone. Session of the hub ends instead, as the client connects again
+	 * in a new session
 	 */
 	@Override
 	public void run() {
 
 		try {
-			logger.info("Running scheduler.");
-			boolean connectionStatus = socketManager.testConnection();
-			if (!connectionStatus) {
-				logger.error("Cannot established the connection.");
-				throw new IOException("Invalid connection");
-			}
-			socketListener.listenToSocket();
-			if (!synchronizer.isInitialSyncComplete()) {
-				if (master) {
-					logger.info("Initializing sync.");
-					synchronizer.requestFileTree();
-				}
-			} else {
-				long curMillis = DateTime.now().getMillis();
-				logger.info("Processing file difference.");
-				if (!synchronizer.processFileDifference()) {
-					if (curMillis - lastProcessorRun >= dataDeliveryDelay) {
-						logger.info("Requesting file difference.");
-						if (synchronizer.requestFileDifference()) {
-							lastProcessorRun = curMillis;
-						}
+			long nextTimerRun = 0L;
+			while (true) {
+				try {
+					boolean connectionStatus = socketManager.testConnection();
+					if (!connectionStatus && !socketManager.isReconnectable()) {
+						logger.info("Session closed.");
+						synchronizer.reset();
+						return;
+					}
+					if (!connectionStatus) {
+						logger.error("Cannot established the connection. Retrying in {} ms", reconnectDelay);
+						Thread.sleep(reconnectDelay);
+						continue;
 					}
+					long timeout = nextTimerRun - DateTime.now().getMillis();
+					if (timeout > 0 && socketManager.awaitData(timeout)) {
+						socketListener.listenToSocket();
+					}
+					long curMillis = DateTime.now().getMillis();
+					if (curMillis >= nextTimerRun) {
+						runTimer(curMillis);
+						nextTimerRun = curMillis + scheduleDelayInMillis;
+					}
+				} catch (IOException e) {
+					if (!socketManager.isReconnectable()) {
+						logger.error("Connection lost. Closing session.", e);
+						socketManager.close();
+						synchronizer.reset();
+						return;
+					}
+					logger.error("Connection lost. Reconnecting in " + reconnectDelay + " ms", e);
+					socketManager.disconnect();
+					synchronizer.reset();
+					nextTimerRun = 0L;
+					Thread.sleep(reconnectDelay);
 				}
 			}
-			scheduleNextSync();
 		} catch (Exception e) {
 			logger.error("Unexpected exception. Exitting", e);
 			try {
 				socketManager.close();
 			} catch (IOException e1) {
 			}
+			if (!socketManager.isReconnectable()) {
+				// Other sessions of the hub are kept running
+				synchronizer.reset();
+				return;
+			}
 			System.exit(1);
 		}
 	}
+
+	/**
+	 * Requests initial sync till it is complete and then file difference
+	 * after every dataDeliveryDelay, or as soon as the remote system announces
+	 * changes
+	 * 
+	 * @param curMillis
+	 * @throws IOException
+	 */
+	private void runTimer(long curMillis) throws IOException {
+		logger.info("Running scheduler.");
+		if (!synchronizer.isInitialSyncComplete()) {
+			if (master) {
+				logger.info("Initializing sync.");
+				synchronizer.requestFileTree();
+			}
+		} else {
+			logger.info("Processing file difference.");
+			if (!synchronizer.processFileDifference()) {
+				if (curMillis - lastProcessorRun >= dataDeliveryDelay || synchronizer.isChangesAnnounced()) {
+					logger.info("Requesting file difference.");
+					if (synchronizer.requestFileDifference()) {
+						lastProcessorRun = curMillis;
+					}
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,25 @@
+package com.socialcops.sockets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * @author PratickChokhani Records progress of a file being received in
+ *         ranges, so that only the missing ranges are requested if the
+ *         transfer is interrupted
+ */
+public interface StripeProgress extends Closeable {
+
+	/**
+	 * Called once data of a range has been written to the file. Data of a
+	 * range is given in order, while ranges are written in parallel
+	 *
+	 * @param rangeStart
+	 *            offset at which the range starts in the file
+	 * @param data
+	 *            data written
+	 * @throws IOException
+	 */
+	void written(long rangeStart, ByteBuffer data) throws IOException;
+}
@@ -0,0 +1,122 @@
+package com.socialcops.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.google.common.hash.Hashing;
+import com.socialcops.enums.FileOperation;
+import com.socialcops.models.FileDifference;
+import com.socialcops.models.FileDifferenceData;
+import com.socialcops.models.FileTree;
+import com.socialcops.models.FileTreeWrapper;
+
+/**
+ * @author PratickChokhani Checks that file trees and file differences decode
+ *         to what was encoded, including front coded paths with non ASCII
+ *         names.
+ */
+public class BinaryCodecTest {
+	private final BinaryCodec binaryCodec = new BinaryCodec();
+
+	@Test
+	public void fileTreeRoundTrip() throws IOException {
+		FileTree root = new FileTree(true, "data", null, "", new DateTime(1000L));
+		FileTree photos = directory(root, "fotos é");
+		file(photos, "café.jpg", 12345L, hash("café"));
+		file(photos, "naïve 日本.txt", 0L, null);
+		directory(photos, "空");
+		file(root, "big.bin", 5L * 1024 * 1024 * 1024, hash("big"));
+		FileTreeWrapper fileTreeWrapper = new FileTreeWrapper(root, new DateTime(2000L));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		binaryCodec.encode(fileTreeWrapper, out);
+		FileTreeWrapper decoded = binaryCodec.decodeFileTreeWrapper(new ByteArrayInputStream(out.toByteArray()));
+
+		assertEquals(fileTreeWrapper.getCurDataTime(), decoded.getCurDataTime());
+		assertTreeEquals(root, decoded.getFileTree());
+	}
+
+	@Test
+	public void fileDifferenceDataRoundTrip() throws IOException {
+		List<FileDifference> fileDifferences = new ArrayList<>();
+		fileDifferences.add(new FileDifference(FileOperation.UPDATE, "docs/a.txt", new DateTime(3000L), 10L,
+				hash("a")));
+		fileDifferences.add(new FileDifference(FileOperation.UPDATE, "docs/ab.txt", new DateTime(3001L), 0L,
+				null));
+		// Both names start with the same byte of a two byte character
+		fileDifferences.add(new FileDifference(FileOperation.UPDATE, "docs/é.txt", new DateTime(3002L), 7L,
+				hash("é")));
+		fileDifferences.add(new FileDifference(FileOperation.DELETE, "docs/ê.txt", new DateTime(3003L)));
+		FileDifference move = new FileDifference(FileOperation.MOVE, "日本/新しい.txt", new DateTime(3004L), 3L,
+				hash("move"));
+		move.setSourcePath("日本/古い.txt");
+		fileDifferences.add(move);
+		fileDifferences.add(new FileDifference(FileOperation.UPDATE, "日本/新しい.txt.bak", null, 3L, null));
+		fileDifferences.add(new FileDifference(FileOperation.UPDATE, "z", new DateTime(3005L), 1L, null));
+		FileDifferenceData fileDifferenceData = new FileDifferenceData(fileDifferences, new DateTime(4000L), null);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		binaryCodec.encode(fileDifferenceData, out);
+		FileDifferenceData decoded = binaryCodec
+				.decodeFileDifferenceData(new ByteArrayInputStream(out.toByteArray()));
+
+		assertEquals(fileDifferenceData.getLastUpdate(), decoded.getLastUpdate());
+		assertNull(decoded.getCurrentDataTime());
+		assertEquals(fileDifferences.size(), decoded.getFileDifferences().size());
+		for (int i = 0; i < fileDifferences.size(); i++) {
+			FileDifference expected = fileDifferences.get(i);
+			FileDifference actual = decoded.getFileDifferences().get(i);
+			assertEquals(expected.getFileOperation(), actual.getFileOperation());
+			assertEquals(expected.getPath(), actual.getPath());
+			assertEquals(expected.getLastModified(), actual.getLastModified());
+			assertEquals(expected.getSize(), actual.getSize());
+			assertEquals(expected.getHash(), actual.getHash());
+			assertEquals(expected.getSourcePath(), actual.getSourcePath());
+		}
+	}
+
+	private static FileTree directory(FileTree parent, String name) {
+		FileTree directory = new FileTree(true, name, null, childPath(parent, name), new DateTime(1000L));
+		parent.getChilds().add(directory);
+		return directory;
+	}
+
+	private static void file(FileTree parent, String name, long size, String hash) {
+		FileTree file = new FileTree(false, name, null, childPath(parent, name), new DateTime(1500L));
+		file.setSize(size);
+		file.setHash(hash);
+		parent.getChilds().add(file);
+	}
+
+	private static String childPath(FileTree parent, String name) {
+		return parent.getRelativePath().isEmpty() ? name : parent.getRelativePath() + File.separator + name;
+	}
+
+	private static String hash(String content) {
+		return Hashing.sha256().hashString(content, StandardCharsets.UTF_8).toString();
+	}
+
+	private static void assertTreeEquals(FileTree expected, FileTree actual) {
+		assertEquals(expected.isDirectory(), actual.isDirectory());
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getRelativePath(), actual.getRelativePath());
+		assertEquals(expected.getLastModified(), actual.getLastModified());
+		assertEquals(expected.getSize(), actual.getSize());
+		assertEquals(expected.getHash(), actual.getHash());
+		assertEquals(expected.getChilds().size(), actual.getChilds().size());
+		for (int i = 0; i < expected.getChilds().size(); i++) {
+			assertTreeEquals(expected.getChilds().get(i), actual.getChilds().get(i));
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.socialcops.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Bytes;
+
+/**
+ * @author PratickChokhani Checks that a delta generated against the signature
+ *         of the basis rebuilds the target from the basis.
+ */
+public class DeltaTest {
+	private static final int BLOCK_SIZE = 2048;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Random random = new Random(42);
+
+	@Test
+	public void sameFile() throws IOException {
+		byte[] basis = randomBytes(40 * BLOCK_SIZE + 100);
+		assertRebuilds(basis, basis);
+	}
+
+	@Test
+	public void changedInTheMiddle() throws IOException {
+		byte[] basis = randomBytes(40 * BLOCK_SIZE + 100);
+		byte[] target = basis.clone();
+		System.arraycopy(randomBytes(300), 0, target, 10 * BLOCK_SIZE + 5, 300);
+		assertRebuilds(basis, target);
+	}
+
+	@Test
+	public void insertAtStart() throws IOException {
+		byte[] basis = randomBytes(40 * BLOCK_SIZE);
+		assertRebuilds(basis, Bytes.concat(randomBytes(13), basis));
+	}
+
+	@Test
+	public void insertAtEnd() throws IOException {
+		byte[] basis = randomBytes(40 * BLOCK_SIZE);
+		assertRebuilds(basis, Bytes.concat(basis, randomBytes(13)));
+	}
+
+	@Test
+	public void deleteAtStart() throws IOException {
+		byte[] basis = randomBytes(40 * BLOCK_SIZE);
+		assertRebuilds(basis, Arrays.copyOfRange(basis, 13, basis.length));
+	}
+
+	@Test
+	public void deleteAtEnd() throws IOException {
+		byte[] basis = randomBytes(40 * BLOCK_SIZE);
+		assertRebuilds(basis, Arrays.copyOf(basis, basis.length - 13));
+	}
+
+	@Test
+	public void targetShorterThanBlock() throws IOException {
+		byte[] basis = randomBytes(40 * BLOCK_SIZE);
+		assertRebuilds(basis, Arrays.copyOf(basis, BLOCK_SIZE - 1));
+	}
+
+	@Test
+	public void basisShorterThanBlock() throws IOException {
+		byte[] target = randomBytes(10 * BLOCK_SIZE);
+		assertRebuilds(Arrays.copyOf(target, BLOCK_SIZE - 1), target);
+	}
+
+	@Test
+	public void emptyTarget() throws IOException {
+		assertRebuilds(randomBytes(10 * BLOCK_SIZE), new byte[0]);
+	}
+
+	@Test
+	public void unrelatedTarget() throws IOException {
+		assertRebuilds(randomBytes(10 * BLOCK_SIZE), randomBytes(12 * BLOCK_SIZE + 7));
+	}
+
+	private void assertRebuilds(byte[] basis, byte[] target) throws IOException {
+		Path basisFile = folder.newFile().toPath();
+		Path targetFile = folder.newFile().toPath();
+		Path rebuiltFile = folder.newFile().toPath();
+		Files.write(basisFile, basis);
+		Files.write(targetFile, target);
+
+		String basisHash = Hashing.sha256().hashBytes(basis).toString();
+		FileSignature signature = FileSignature.create("file", basisFile, basisHash, BLOCK_SIZE);
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(delta)) {
+			new DeltaGenerator(signature).generate(targetFile, Hashing.sha256().hashBytes(target).toString(), out);
+		}
+
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta.toByteArray()))) {
+			assertTrue(DeltaApplier.apply(in, basisFile, rebuiltFile));
+		}
+		assertArrayEquals(target, Files.readAllBytes(rebuiltFile));
+	}
+
+	private byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,44 @@
+package com.socialcops.delta;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author PratickChokhani Checks that rolling the checksum gives the same
+ *         value as computing it from scratch at every offset.
+ */
+public class RollingChecksumTest {
+
+	@Test
+	public void rollMatchesFreshChecksum() {
+		byte[] data = new byte[64 * 1024];
+		new Random(42).nextBytes(data);
+		for (int blockSize : new int[] { 1, 7, 2048 }) {
+			assertRolls(data, blockSize);
+		}
+	}
+
+	@Test
+	public void rollMatchesFreshChecksumOfHighBytes() {
+		byte[] data = new byte[8 * 1024];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (0xff - i % 3);
+		}
+		assertRolls(data, 4096);
+	}
+
+	private static void assertRolls(byte[] data, int blockSize) {
+		RollingChecksum rollingChecksum = new RollingChecksum(blockSize);
+		rollingChecksum.reset(data, 0);
+		for (int offset = 0; offset + blockSize <= data.length; offset++) {
+			if (offset > 0) {
+				rollingChecksum.roll(data[offset - 1], data[offset + blockSize - 1]);
+			}
+			assertEquals("Block size: " + blockSize + ", offset: " + offset,
+					RollingChecksum.checksum(data, offset, blockSize), rollingChecksum.getValue());
+		}
+	}
+}